@@ -5,9 +5,18 @@ public interface Debuggable {
 	public static DefaultDebuggable DEBUG = new DefaultDebuggable();
 				
 	class DefaultDebuggable implements Debuggable{ 
+		
+		//System.out is synchronized, so benchmarks turn this off
+		private volatile boolean enabled = true;
+		
+		public void setEnabled(boolean enabled){
+			this.enabled = enabled;
+		}
 	
 		public void debug(String s){
-			System.out.println(Thread.currentThread().getName()+": "+s);
+			if (enabled){
+				System.out.println(Thread.currentThread().getName()+": "+s);
+			}
 		}
 	}
 }
@@ -0,0 +1,637 @@
+package edu.berkeley.cs162;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides which entry of a KVCache set is dropped when the set is full.
+ *
+ * A KVCache is constructed with one EvictionPolicy, which creates a SetPolicy for each of its sets.
+ * A SetPolicy only deals with slot numbers of its set. The set calls it:
+ *  - hit() and miss(), under the read lock of the set (possibly from many threads at once)
+ *  - insert(), remove() and evict(), under the write lock of the set
+ * The EvictionPolicy counts hits, misses and evictions over all the sets of its cache.
+ *
+ * An EvictionPolicy instance belongs to a single KVCache.
+ */
+public abstract class EvictionPolicy {
+	public static final String CLOCK = "clock";
+	public static final String LRU = "lru";
+	public static final String LFU = "lfu";
+	public static final String WTINYLFU = "wtinylfu";
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	/**
+	 * @param name one of CLOCK, LRU, LFU, WTINYLFU
+	 * @return a new policy with that name
+	 * @throws IllegalArgumentException if the name is unknown
+	 */
+	public static EvictionPolicy forName(String name) {
+		if (name.equalsIgnoreCase(CLOCK)) {
+			return new Clock();
+		} else if (name.equalsIgnoreCase(LRU)) {
+			return new Lru();
+		} else if (name.equalsIgnoreCase(LFU)) {
+			return new Lfu();
+		} else if (name.equalsIgnoreCase(WTINYLFU)) {
+			return new WindowTinyLfu();
+		}
+		throw new IllegalArgumentException("Unknown eviction policy: "+name);
+	}
+
+	/**
+	 * @return the name accepted by forName()
+	 */
+	public abstract String getName();
+
+	/**
+	 * Create the replacement state of a single set
+	 * @param capacity number of slots in the set
+	 * @return
+	 */
+	abstract SetPolicy newSetPolicy(int capacity);
+
+	public long getHitCount() {
+		return hits.sum();
+	}
+
+	public long getMissCount() {
+		return misses.sum();
+	}
+
+	public long getEvictionCount() {
+		return evictions.sum();
+	}
+
+	/**
+	 * @return hits / (hits + misses), or 0 if there was no lookup yet
+	 */
+	public double getHitRate() {
+		long h = getHitCount();
+		long total = h + getMissCount();
+		return total == 0 ? 0 : (double) h / total;
+	}
+
+	public String toString() {
+		return String.format("%s: hits=%d misses=%d evictions=%d hitRate=%.3f",
+				getName(), getHitCount(), getMissCount(), getEvictionCount(), getHitRate());
+	}
+
+	/**
+	 * Replacement state of one set. Every slot carries a reference bit which is set on a hit;
+	 * it is reported in KVCache.toXML(), and CLOCK also uses it for replacement.
+	 */
+	abstract class SetPolicy {
+		protected final int capacity;
+		private final AtomicIntegerArray referenced;
+		//only changed under the write lock
+		private final boolean[] occupied;
+
+		SetPolicy(int capacity) {
+			this.capacity = capacity;
+			this.referenced = new AtomicIntegerArray(capacity);
+			this.occupied = new boolean[capacity];
+		}
+
+		/**
+		 * The entry at slot was found by a lookup. Called under the read lock.
+		 * @param slot
+		 * @param hash hash of the key
+		 */
+		final void hit(int slot, int hash) {
+			hits.increment();
+			//only write the bit when it is clear, so that hot entries do not keep dirtying the cache line
+			if (this.referenced.get(slot) == 0) {
+				this.referenced.set(slot, 1);
+			}
+			onHit(slot, hash);
+		}
+
+		/**
+		 * A lookup did not find its key
+		 * @param hash hash of the key
+		 */
+		final void miss(int hash) {
+			misses.increment();
+			onMiss(hash);
+		}
+
+		/**
+		 * A new entry now occupies slot
+		 * @param slot
+		 * @param hash hash of the key
+		 */
+		final void insert(int slot, int hash) {
+			this.referenced.set(slot, 0);
+			this.occupied[slot] = true;
+			onInsert(slot, hash);
+		}
+
+		/**
+		 * The entry at slot was deleted
+		 * @param slot
+		 */
+		final void remove(int slot) {
+			this.referenced.set(slot, 0);
+			this.occupied[slot] = false;
+			onRemove(slot);
+		}
+
+		/**
+		 * Choose the entry to drop. Only called when at least one slot is occupied.
+		 * The victim counts as removed; the caller either frees the slot or overwrites it
+		 * and then calls insert() for the new entry.
+		 * @return the slot of the victim
+		 */
+		final int evict() {
+			evictions.increment();
+			int slot = victim();
+			this.referenced.set(slot, 0);
+			this.occupied[slot] = false;
+			return slot;
+		}
+
+		boolean isOccupied(int slot) {
+			return this.occupied[slot];
+		}
+
+		boolean isReferenced(int slot) {
+			return this.referenced.get(slot) != 0;
+		}
+
+		void clearReferenced(int slot) {
+			this.referenced.set(slot, 0);
+		}
+
+		/**
+		 * Order in which the slots are listed by KVCache.toXML()
+		 * @param i
+		 * @return the i-th slot
+		 */
+		int slotAt(int i) {
+			return i;
+		}
+
+		void onHit(int slot, int hash) {
+		}
+
+		void onMiss(int hash) {
+		}
+
+		abstract void onInsert(int slot, int hash);
+
+		void onRemove(int slot) {
+		}
+
+		/**
+		 * @return an occupied slot. victim() must update its own state as if the slot had been removed.
+		 */
+		abstract int victim();
+	}
+
+	/**
+	 * Second-chance replacement. The hand sweeps the slots, clearing reference bits,
+	 * and the first entry whose bit is already clear is dropped.
+	 */
+	static class Clock extends EvictionPolicy {
+		public String getName() {
+			return CLOCK;
+		}
+
+		SetPolicy newSetPolicy(int capacity) {
+			return new SetPolicy(capacity) {
+				private int hand = 0;
+
+				void onInsert(int slot, int hash) {
+				}
+
+				int victim() {
+					while (true) {
+						int slot = this.hand;
+						this.hand = (this.hand + 1) % this.capacity;
+						if (!isOccupied(slot)) {
+							continue;
+						}
+						if (!isReferenced(slot)) {
+							return slot;
+						}
+						//second chance
+						clearReferenced(slot);
+					}
+				}
+
+				int slotAt(int i) {
+					return (this.hand + i) % this.capacity;
+				}
+			};
+		}
+	}
+
+	/**
+	 * Doubly linked lists of the slots of a set, threaded through arrays indexed by slot, so that a slot is
+	 * moved in constant time and without allocation. A slot is in at most one of the lists.
+	 * Only used under the write lock of the set.
+	 */
+	static class SlotLists {
+		private final int[] prev;
+		private final int[] next;
+		//the list of each slot, -1 if it is in none
+		private final int[] listOf;
+		private final int[] head;
+		private final int[] tail;
+		private final int[] size;
+
+		SlotLists(int capacity, int lists) {
+			this.prev = new int[capacity];
+			this.next = new int[capacity];
+			this.listOf = new int[capacity];
+			Arrays.fill(this.listOf, -1);
+			this.head = new int[lists];
+			this.tail = new int[lists];
+			Arrays.fill(this.head, -1);
+			Arrays.fill(this.tail, -1);
+			this.size = new int[lists];
+		}
+
+		/**
+		 * Add slot at the end of list. The slot must not be in a list.
+		 * @param list
+		 * @param slot
+		 */
+		void append(int list, int slot) {
+			this.listOf[slot] = list;
+			this.prev[slot] = this.tail[list];
+			this.next[slot] = -1;
+			if (this.tail[list] < 0) {
+				this.head[list] = slot;
+			} else {
+				this.next[this.tail[list]] = slot;
+			}
+			this.tail[list] = slot;
+			this.size[list]++;
+		}
+
+		/**
+		 * Take slot out of its list, if it is in one
+		 * @param slot
+		 */
+		void remove(int slot) {
+			int list = this.listOf[slot];
+			if (list < 0) {
+				return;
+			}
+			if (this.prev[slot] < 0) {
+				this.head[list] = this.next[slot];
+			} else {
+				this.next[this.prev[slot]] = this.next[slot];
+			}
+			if (this.next[slot] < 0) {
+				this.tail[list] = this.prev[slot];
+			} else {
+				this.prev[this.next[slot]] = this.prev[slot];
+			}
+			this.listOf[slot] = -1;
+			this.size[list]--;
+		}
+
+		/**
+		 * @param list
+		 * @return the slot at the start of list, or -1 if it is empty
+		 */
+		int first(int list) {
+			return this.head[list];
+		}
+
+		int size(int list) {
+			return this.size[list];
+		}
+
+		int listOf(int slot) {
+			return this.listOf[slot];
+		}
+	}
+
+	/**
+	 * Base for policies that need the last access time of every slot.
+	 * Readers stamp the slot with System.nanoTime() so hits do not share any counter, and do not touch the
+	 * lists of the set, which the write lock guards. A list is kept in the order of the stamps the slots had
+	 * when they were appended; at eviction, a slot at the start of its list that was hit since is moved to
+	 * the end rather than dropped, so each hit costs at most one move.
+	 */
+	abstract static class Recency extends EvictionPolicy {
+		abstract class RecencySetPolicy extends SetPolicy {
+			protected final AtomicLongArray lastAccess;
+			//the stamp of each slot when it was appended to its list
+			private final long[] listedAt;
+			protected final SlotLists lists;
+
+			RecencySetPolicy(int capacity, int lists) {
+				super(capacity);
+				this.lastAccess = new AtomicLongArray(capacity);
+				this.listedAt = new long[capacity];
+				this.lists = new SlotLists(capacity, lists);
+			}
+
+			void onHit(int slot, int hash) {
+				this.lastAccess.lazySet(slot, System.nanoTime());
+			}
+
+			void onRemove(int slot) {
+				this.lists.remove(slot);
+			}
+
+			/**
+			 * Append a slot that was just accessed at the end of list
+			 * @param list
+			 * @param slot
+			 */
+			void appendAccessed(int list, int slot) {
+				long now = System.nanoTime();
+				this.lastAccess.set(slot, now);
+				this.listedAt[slot] = now;
+				this.lists.append(list, slot);
+			}
+
+			/**
+			 * Move slot to the end of list, as recent as its last access
+			 * @param list
+			 * @param slot
+			 */
+			void moveTo(int list, int slot) {
+				this.listedAt[slot] = this.lastAccess.get(slot);
+				this.lists.remove(slot);
+				this.lists.append(list, slot);
+			}
+
+			/**
+			 * @param list that is not empty
+			 * @return the least recently used slot of list, which stays in it
+			 */
+			int leastRecent(int list) {
+				//bounded, as readers keep hitting while the writer looks
+				for (int moved = this.lists.size(list); moved > 0; moved--) {
+					int slot = this.lists.first(list);
+					if (this.lastAccess.get(slot) == this.listedAt[slot]) {
+						return slot;
+					}
+					//hit since it was appended
+					this.moveTo(list, slot);
+				}
+				return this.lists.first(list);
+			}
+		}
+	}
+
+	/**
+	 * Least recently used, over a list of the slots that hits reorder lazily (see Recency), which keeps hits
+	 * free of any list manipulation and evictions free of scans.
+	 */
+	static class Lru extends Recency {
+		public String getName() {
+			return LRU;
+		}
+
+		SetPolicy newSetPolicy(int capacity) {
+			return new RecencySetPolicy(capacity, 1) {
+				void onInsert(int slot, int hash) {
+					appendAccessed(0, slot);
+				}
+
+				int victim() {
+					int victim = leastRecent(0);
+					this.lists.remove(victim);
+					return victim;
+				}
+			};
+		}
+	}
+
+	/**
+	 * Least frequently used, with ties broken by recency.
+	 * All counts are halved after every capacity evictions, so that formerly popular entries age out.
+	 * The slots are kept in a list per count, up to MAX_BUCKET, the count they had when they were last listed:
+	 * hits only increment the count of their slot, and a slot at the start of the lowest list whose count has
+	 * grown since is moved to the list of its count at eviction. Counts of MAX_BUCKET and more share a list.
+	 */
+	static class Lfu extends EvictionPolicy {
+		private static final int MAX_BUCKET = 63;
+
+		public String getName() {
+			return LFU;
+		}
+
+		SetPolicy newSetPolicy(int capacity) {
+			return new SetPolicy(capacity) {
+				private final AtomicIntegerArray counts = new AtomicIntegerArray(capacity);
+				private final SlotLists buckets = new SlotLists(capacity, MAX_BUCKET + 1);
+				private int evictionsSinceAging = 0;
+
+				void onHit(int slot, int hash) {
+					if (this.counts.get(slot) < Integer.MAX_VALUE) {
+						this.counts.incrementAndGet(slot);
+					}
+				}
+
+				void onInsert(int slot, int hash) {
+					this.counts.set(slot, 1);
+					this.buckets.append(1, slot);
+				}
+
+				void onRemove(int slot) {
+					this.buckets.remove(slot);
+				}
+
+				private int bucketOf(int slot) {
+					return Math.min(this.counts.get(slot), MAX_BUCKET);
+				}
+
+				int victim() {
+					if (++this.evictionsSinceAging >= this.capacity) {
+						this.evictionsSinceAging = 0;
+						age();
+					}
+
+					for (int bucket = 0; bucket <= MAX_BUCKET; bucket++) {
+						int slot;
+						while ((slot = this.buckets.first(bucket)) >= 0) {
+							int actual = bucketOf(slot);
+							this.buckets.remove(slot);
+							if (actual <= bucket) {
+								return slot;
+							}
+							//hit since it was listed
+							this.buckets.append(actual, slot);
+						}
+					}
+					throw new IllegalStateException("no occupied slot");
+				}
+
+				/**
+				 * halve every count, and list the slots again by count, keeping their order within each list
+				 */
+				private void age() {
+					int[] order = new int[this.capacity];
+					int n = 0;
+					for (int bucket = 0; bucket <= MAX_BUCKET; bucket++) {
+						int slot;
+						while ((slot = this.buckets.first(bucket)) >= 0) {
+							this.buckets.remove(slot);
+							order[n++] = slot;
+						}
+					}
+					for (int i = 0; i < n; i++) {
+						int slot = order[i];
+						this.counts.set(slot, this.counts.get(slot) >>> 1);
+						this.buckets.append(bucketOf(slot), slot);
+					}
+				}
+			};
+		}
+	}
+
+	/**
+	 * W-TinyLFU. New entries enter a small LRU window (1% of the set, at least one slot).
+	 * When the window overflows, its LRU entry is only admitted to the main LRU region if a
+	 * count-min sketch of recent accesses, misses included, estimates it to be more frequent than
+	 * the main region's LRU entry; the loser is dropped. A scan therefore only churns the window.
+	 * The main region is a plain LRU rather than a segmented one. Each region is a list that hits
+	 * reorder lazily, as in Recency.
+	 */
+	static class WindowTinyLfu extends Recency {
+		private static final int WINDOW = 0;
+		private static final int MAIN = 1;
+
+		public String getName() {
+			return WTINYLFU;
+		}
+
+		SetPolicy newSetPolicy(int capacity) {
+			return new TinyLfuSetPolicy(capacity);
+		}
+
+		private class TinyLfuSetPolicy extends RecencySetPolicy {
+			private final int windowSize;
+			private final int[] hashes;
+			private final FrequencySketch sketch;
+
+			TinyLfuSetPolicy(int capacity) {
+				super(capacity, 2);
+				this.windowSize = Math.max(1, capacity / 100);
+				this.hashes = new int[capacity];
+				this.sketch = new FrequencySketch(capacity);
+			}
+
+			void onHit(int slot, int hash) {
+				super.onHit(slot, hash);
+				this.sketch.increment(hash);
+			}
+
+			void onMiss(int hash) {
+				this.sketch.increment(hash);
+			}
+
+			void onInsert(int slot, int hash) {
+				this.hashes[slot] = hash;
+				appendAccessed(WINDOW, slot);
+
+				//window overflow while the set still has room: the window LRU moves to main
+				if (this.lists.size(WINDOW) > this.windowSize) {
+					moveTo(MAIN, leastRecent(WINDOW));
+				}
+			}
+
+			int victim() {
+				int windowCount = this.lists.size(WINDOW);
+				int victim;
+				if (this.lists.size(MAIN) == 0) {
+					victim = leastRecent(WINDOW);
+				} else if (windowCount == 0 || windowCount < this.windowSize) {
+					victim = leastRecent(MAIN);
+				} else {
+					int candidate = leastRecent(WINDOW);
+					int mainVictim = leastRecent(MAIN);
+					if (this.sketch.frequency(this.hashes[candidate]) > this.sketch.frequency(this.hashes[mainVictim])) {
+						//admit the candidate into main
+						moveTo(MAIN, candidate);
+						victim = mainVictim;
+					} else {
+						victim = candidate;
+					}
+				}
+				this.lists.remove(victim);
+				return victim;
+			}
+		}
+	}
+
+	/**
+	 * Count-min sketch with four rows. Counters saturate at 15 and are all halved once the
+	 * number of increments reaches ten times the sampled capacity, so the estimate follows recent history.
+	 */
+	static class FrequencySketch {
+		private static final int[] SEEDS = { 0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F };
+		private static final int MAX_COUNT = 15;
+
+		private final AtomicIntegerArray[] rows = new AtomicIntegerArray[SEEDS.length];
+		private final int shift;
+		private final int sampleSize;
+		private final AtomicInteger additions = new AtomicInteger();
+
+		FrequencySketch(int capacity) {
+			//a row several times wider than the set keeps one-hit keys from inflating each other's estimates
+			int bits = 4;
+			while ((1 << bits) < 8 * capacity) {
+				bits++;
+			}
+			for (int i = 0; i < SEEDS.length; i++) {
+				this.rows[i] = new AtomicIntegerArray(1 << bits);
+			}
+			this.shift = 32 - bits;
+			this.sampleSize = 10 * Math.max(capacity, 1 << 4);
+		}
+
+		private int indexOf(int hash, int row) {
+			return (hash * SEEDS[row]) >>> this.shift;
+		}
+
+		void increment(int hash) {
+			boolean added = false;
+			for (int i = 0; i < SEEDS.length; i++) {
+				int index = indexOf(hash, i);
+				int c = this.rows[i].get(index);
+				if (c < MAX_COUNT) {
+					added |= this.rows[i].compareAndSet(index, c, c + 1);
+				}
+			}
+			if (added && this.additions.incrementAndGet() >= this.sampleSize) {
+				reset();
+			}
+		}
+
+		int frequency(int hash) {
+			int min = MAX_COUNT;
+			for (int i = 0; i < SEEDS.length; i++) {
+				min = Math.min(min, this.rows[i].get(indexOf(hash, i)));
+			}
+			return min;
+		}
+
+		/**
+		 * halve every counter. Races with concurrent increments only lose a few counts.
+		 */
+		private void reset() {
+			this.additions.set(0);
+			for (AtomicIntegerArray row : this.rows) {
+				for (int j = 0; j < row.length(); j++) {
+					row.set(j, row.get(j) >>> 1);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package edu.berkeley.cs162;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class EvictionPolicyTest {
+
+	private void put(KVCache cache, String key, String value) {
+		cache.getWriteLock(key).lock();
+		cache.put(key, value);
+		cache.getWriteLock(key).unlock();
+	}
+
+	private String get(KVCache cache, String key) {
+		cache.getReadLock(key).lock();
+		try {
+			return cache.get(key);
+		} finally {
+			cache.getReadLock(key).unlock();
+		}
+	}
+
+	@Test
+	public void lruTest() throws InterruptedException {
+		KVCache cache = new KVCache(1, 3, EvictionPolicy.forName(EvictionPolicy.LRU));
+		put(cache, "key1", "val1");
+		put(cache, "key2", "val2");
+		put(cache, "key3", "val3");
+
+		Thread.sleep(1);
+		get(cache, "key1");
+
+		put(cache, "key4", "val4"); //should replace key2
+		assertEquals(get(cache, "key2"), null);
+		assertEquals(get(cache, "key1"), "val1");
+		assertEquals(get(cache, "key3"), "val3");
+		assertEquals(get(cache, "key4"), "val4");
+	}
+
+	@Test
+	public void lfuTest() {
+		KVCache cache = new KVCache(1, 3, EvictionPolicy.forName(EvictionPolicy.LFU));
+		put(cache, "key1", "val1");
+		put(cache, "key2", "val2");
+		put(cache, "key3", "val3");
+
+		get(cache, "key1");
+		get(cache, "key1");
+		get(cache, "key3");
+
+		put(cache, "key4", "val4"); //should replace key2
+		assertEquals(get(cache, "key2"), null);
+		assertEquals(get(cache, "key1"), "val1");
+		assertEquals(get(cache, "key3"), "val3");
+	}
+
+	@Test
+	public void tinyLfuScanTest() {
+		KVCache cache = new KVCache(1, 100, EvictionPolicy.forName(EvictionPolicy.WTINYLFU));
+		for (int round = 0; round < 10; round++) {
+			for (int i = 0; i < 50; i++) {
+				if (get(cache, "hot"+i) == null) {
+					put(cache, "hot"+i, "val"+i);
+				}
+			}
+		}
+
+		//a scan of keys that are never read again should not flush the hot keys
+		for (int i = 0; i < 1000; i++) {
+			if (get(cache, "scan"+i) == null) {
+				put(cache, "scan"+i, "val"+i);
+			}
+		}
+
+		for (int i = 0; i < 50; i++) {
+			assertEquals(get(cache, "hot"+i), "val"+i);
+		}
+	}
+
+	@Test
+	public void largeSetTest() throws InterruptedException {
+		//evictions follow the hits that happened since the entries were listed, and skip deleted entries
+		for (String name : new String[] { EvictionPolicy.LRU, EvictionPolicy.LFU }) {
+			KVCache cache = new KVCache(1, 1000, EvictionPolicy.forName(name));
+			for (int i = 0; i < 1000; i++) {
+				put(cache, "key"+i, "val"+i);
+			}
+			Thread.sleep(1);
+			for (int i = 0; i < 500; i++) {
+				get(cache, "key"+i);
+			}
+			cache.getWriteLock("key600").lock();
+			cache.del("key600");
+			cache.getWriteLock("key600").unlock();
+
+			for (int i = 0; i < 500; i++) {
+				put(cache, "new"+i, "val"+i);
+			}
+			for (int i = 0; i < 500; i++) {
+				assertEquals(get(cache, "key"+i), "val"+i);
+			}
+			for (int i = 500; i < 1000; i++) {
+				assertEquals(get(cache, "key"+i), null);
+			}
+			assertEquals(cache.getEvictionPolicy().getEvictionCount(), 499);
+		}
+	}
+
+	@Test
+	public void countersTest() {
+		KVCache cache = new KVCache(1, 2);
+		put(cache, "key1", "val1");
+		put(cache, "key2", "val2");
+		get(cache, "key1");
+		get(cache, "key3");
+		put(cache, "key3", "val3");
+
+		EvictionPolicy policy = cache.getEvictionPolicy();
+		assertEquals(policy.getName(), EvictionPolicy.CLOCK);
+		assertEquals(policy.getHitCount(), 1);
+		assertEquals(policy.getMissCount(), 1);
+		assertEquals(policy.getEvictionCount(), 1);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void unknownPolicyTest() {
+		EvictionPolicy.forName("fifo");
+	}
+}
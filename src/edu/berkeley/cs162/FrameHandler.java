@@ -0,0 +1,16 @@
+package edu.berkeley.cs162;
+
+/**
+ * Handler of the messages that a NIOSocketServer receives, the counterpart of NetworkHandler for a server
+ * that reads the connections itself.
+ */
+public interface FrameHandler {
+	/**
+	 * Handle a message. Called on the thread of the server, so anything that blocks is to be handed to a thread
+	 * of the handler.
+	 * @param client holds exactly one message, which receive() parses. send() answers on the connection the message
+	 * came from, and close() closes that connection once what was sent is written. The next message of the
+	 * connection is handed over once the response is sent.
+	 */
+	public void handle(KVConnection client);
+}
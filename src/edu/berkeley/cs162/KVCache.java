@@ -31,8 +31,8 @@
 package edu.berkeley.cs162;
 
 import java.io.StringWriter;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock.ReadLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
@@ -48,30 +48,141 @@ import org.w3c.dom.*;
  * A set-associate cache which has a fixed maximum number of sets (numSets).
  * Each set has a maximum number of elements (MAX_ELEMS_PER_SET).
  * If a set is full and another entry is added, an entry is dropped based on the eviction policy.
+ * Optionally the cache also has a byte budget, shared equally by the sets. A set then drops
+ * entries until the new entry fits in its share, and never caches an entry larger than its share.
+ * Values may also be kept off-heap, UTF-8 encoded in the slabs of a SlabAllocator. They are then
+ * only decoded to Strings by get() and toXML().
  */
 public class KVCache implements KeyValueInterface, Debuggable {	
 	private int numSets = 100;
 	private int maxElemsPerSet = 10;
 		
 	private CacheSet[] sets;
+	private EvictionPolicy policy;
+	private long maxBytes = 0;
+	//null unless values are kept off-heap
+	private SlabAllocator valueStore = null;
+	
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
 	/**
-	 * Creates a new LRU cache.
-	 * @param cacheSize	the maximum number of entries that will be kept in this cache.
+	 * Creates a new cache with CLOCK (second-chance) replacement.
+	 * @param numSets number of sets
+	 * @param maxElemsPerSet the maximum number of entries that will be kept in a set.
 	 */
 	public KVCache(int numSets, int maxElemsPerSet) {
+		this(numSets, maxElemsPerSet, EvictionPolicy.forName(EvictionPolicy.CLOCK));
+	}
+	
+	/**
+	 * Creates a new cache.
+	 * @param numSets number of sets
+	 * @param maxElemsPerSet the maximum number of entries that will be kept in a set.
+	 * @param policy decides which entry of a full set is replaced. Must not be shared with another cache.
+	 */
+	public KVCache(int numSets, int maxElemsPerSet, EvictionPolicy policy) {
+		this(numSets, maxElemsPerSet, 0, policy);
+	}
+	
+	/**
+	 * Creates a new cache whose keys and values take at most maxBytes, as measured by weigh().
+	 * @param numSets number of sets
+	 * @param maxElemsPerSet the maximum number of entries that will be kept in a set.
+	 * @param maxBytes byte budget of the whole cache, split equally between the sets. 0 means no budget.
+	 * @param policy decides which entry of a full set is replaced. Must not be shared with another cache.
+	 */
+	public KVCache(int numSets, int maxElemsPerSet, long maxBytes, EvictionPolicy policy) {
+		this(numSets, maxElemsPerSet, maxBytes, policy, null);
+	}
+	
+	/**
+	 * Creates a new cache whose values are stored off-heap. In this mode the byte budget counts
+	 * the UTF-16 key and the slab chunk that holds the value.
+	 * @param numSets number of sets
+	 * @param maxElemsPerSet the maximum number of entries that will be kept in a set.
+	 * @param maxBytes byte budget of the whole cache, split equally between the sets. 0 means no budget.
+	 * @param policy decides which entry of a full set is replaced. Must not be shared with another cache.
+	 * @param valueStore holds the values. null keeps them on the heap. 
+	 * A value that does not fit in valueStore is not cached.
+	 */
+	public KVCache(int numSets, int maxElemsPerSet, long maxBytes, EvictionPolicy policy, SlabAllocator valueStore) {
 		this.numSets = numSets;
 		this.maxElemsPerSet = maxElemsPerSet;    
+		this.policy = policy;
+		this.maxBytes = maxBytes;
+		this.valueStore = valueStore;
 		this.sets = new CacheSet[numSets];
 		
+		long maxBytesPerSet = maxBytes > 0 ? maxBytes / numSets : Long.MAX_VALUE;
 		for (int i = 0; i < numSets; i++){
-			this.sets[i] = new CacheSet(maxElemsPerSet);
+			this.sets[i] = new CacheSet(maxElemsPerSet, maxBytesPerSet, policy.newSetPolicy(maxElemsPerSet));
 		}
 		
 	}
+	
+	/**
+	 * Size of an entry as counted against the byte budget: the UTF-16 payload of its key and value.
+	 * @param key
+	 * @param value
+	 * @return
+	 */
+	public static long weigh(String key, String value) {
+		return 2L * (key.length() + value.length());
+	}
+	
+	/**
+	 * Weight of <key, value> once cached. Off-heap, the value counts as the chunk it will take.
+	 * @param key
+	 * @param value
+	 * @return
+	 */
+	private long weightOf(String key, Utf8Value value) {
+		if (this.valueStore == null) {
+			return KVCache.weigh(key, value.toString());
+		}
+		int length = value.utf8Length();
+		int chunk = SlabAllocator.chunkSize(length);
+		//too large for a chunk: the store will fail, so the weight only needs to be positive
+		return 2L * key.length() + (chunk < 0 ? length : chunk);
+	}
+	
+	/**
+	 * @return the byte budget given to the constructor; 0 if the cache only limits the number of entries
+	 */
+	public long getMaxBytes() {
+		return this.maxBytes;
+	}
+	
+	/**
+	 * Sum of the weights of all cached entries. The sets are not locked, so the result is only a snapshot.
+	 * @return
+	 */
+	public long getBytes() {
+		long bytes = 0;
+		for (CacheSet set : this.sets) {
+			bytes += set.bytes;
+		}
+		return bytes;
+	}
+	
+	/**
+	 * @return the eviction policy, which also holds the hit/miss/eviction counters of this cache
+	 */
+	public EvictionPolicy getEvictionPolicy() {
+		return this.policy;
+	}
+	
+	/**
+	 * @return the allocator that holds the values, or null if they are kept on the heap
+	 */
+	public SlabAllocator getValueStore() {
+		return this.valueStore;
+	}
 
 	/**
 	 * Retrieves an entry from the cache.
-	 * Assumes the corresponding set has already been locked for writing.
+	 * Assumes the corresponding set has already been locked, for reading or writing. 
+	 * Setting the reference bit on a hit does not need the write lock.
 	 * @param key the key whose associated value is to be returned.
 	 * @return the value associated to this key, or null if no value with this key exists in the cache.
 	 */
@@ -92,12 +203,37 @@ public class KVCache implements KeyValueInterface, Debuggable {
 	}
 	
 	/**
-	 * Called when a replacement happens
+	 * Version of the set of the key, which put() and del() change. Taken on a miss, so that replace() can tell
+	 * whether the value that was looked up since is still the latest one.
+	 * Assumes the corresponding set has already been locked, for reading at least.
+	 * @param key
+	 * @return
+	 */
+	public long getVersion(String key) {
+		return this.sets[getSetId(key)].version;
+	}
+	
+	/**
+	 * Called when a replacement happens: fill the cache with a value looked up after a miss.
+	 * Assumes the corresponding set has already been locked for writing.
 	 * @param key
 	 * @param value
+	 * @param version of the set at the miss, see getVersion()
 	 */
-	public void replace(String key, String value){
-		this.sets[getSetId(key)].replace(key, value);
+	public void replace(String key, String value, long version){
+		this.replace(key, new Utf8Value(value), version);
+	}
+	
+	/**
+	 * Called when a replacement happens. Off-heap, the bytes of value are copied without decoding it.
+	 * Nothing is filled if the key is already in the cache, or the set was written since the miss, as the
+	 * value may be older than what was written.
+	 * @param key
+	 * @param value
+	 * @param version of the set at the miss, see getVersion()
+	 */
+	public void replace(String key, Utf8Value value, long version){
+		this.sets[getSetId(key)].replace(key, value, version);
 	}
 	
 	/**
@@ -115,7 +251,9 @@ public class KVCache implements KeyValueInterface, Debuggable {
 
 		DEBUG.debug("Cache receives a put request with key "+key+" and value "+value);
 		try {			
-			this.sets[this.getSetId(key)].put(key, value);
+			CacheSet set = this.sets[this.getSetId(key)];
+			set.version++;
+			set.put(key, new Utf8Value(value));
 		} finally {
 			AutoGrader.agCachePutFinished(key, value);
 		}
@@ -134,7 +272,9 @@ public class KVCache implements KeyValueInterface, Debuggable {
 		
 		DEBUG.debug("Cache receives a del request with key "+key);
 		try {			
-			this.sets[this.getSetId(key)].del(key);
+			CacheSet set = this.sets[this.getSetId(key)];
+			set.version++;
+			set.del(key);
 		} finally {
 			AutoGrader.agCacheDelFinished(key);
 		}
@@ -161,14 +301,15 @@ public class KVCache implements KeyValueInterface, Debuggable {
 	/**
 	 * 
 	 * @param key
-	 * @return	set of the key
+	 * @return	set of the key, from 0 to the number of sets - 1
 	 */
-	private int getSetId(String key) {
-		return Math.abs(key.hashCode()) % numSets;
+	public int getSetId(String key) {
+		//the remainder first, as Math.abs(Integer.MIN_VALUE) is negative
+		return Math.abs(key.hashCode() % numSets);
 	}
 
 	/**
-	 * output the cache's content as XML
+	 * output the cache's content as XML. Each set is read locked while it is dumped.
 	 * @return XML representation of cache
 	 */
   public String toXML() {
@@ -195,39 +336,48 @@ public class KVCache implements KeyValueInterface, Debuggable {
 			Element setElement = doc.createElement("Set");
 			setElement.setAttribute("Id", ""+i);
 			
-			//add the existent entries in a set
-			for (int entryIndex = 0; entryIndex < set.entries.size(); entryIndex++) {
-				CacheEntry e = set.entries.get(entryIndex);
+			set.getReadLock().lock();
+			try {
+				//add the existent entries in a set, in the order given by the policy (for CLOCK, the order the hand will visit them)
+				for (int pos = 0; pos < this.maxElemsPerSet; pos++) {
+					int slot = set.policy.slotAt(pos);
+					CacheEntry e = set.slots[slot];
+					if (!e.isValid()) {
+						continue;
+					}
 				
-				Element entryElement = doc.createElement("CacheEntry");
-				boolean isReferenced = e.isReferred();
-				entryElement.setAttribute("isReferenced", ""+isReferenced);
-				entryElement.setAttribute("isValid", ""+true);
+					Element entryElement = doc.createElement("CacheEntry");
+					boolean isReferenced = set.policy.isReferenced(slot);
+					entryElement.setAttribute("isReferenced", ""+isReferenced);
+					entryElement.setAttribute("isValid", ""+true);
 				
-				Element keyElement = doc.createElement("Key");
-				keyElement.appendChild(doc.createTextNode(e.getKey()));
+					Element keyElement = doc.createElement("Key");
+					keyElement.appendChild(doc.createTextNode(e.getKey()));
 				
-				Element valueElement = doc.createElement("Value");
-				valueElement.appendChild(doc.createTextNode(e.getValue()));
+					Element valueElement = doc.createElement("Value");
+					valueElement.appendChild(doc.createTextNode(e.getValue()));
 				
-				entryElement.appendChild(keyElement);
-				entryElement.appendChild(valueElement);
+					entryElement.appendChild(keyElement);
+					entryElement.appendChild(valueElement);
 				
-				setElement.appendChild(entryElement);
-			}
+					setElement.appendChild(entryElement);
+				}
 			
-			for (int j = set.entries.size(); j < this.maxElemsPerSet; j++){
-				Element entryElement = doc.createElement("CacheEntry");
-				entryElement.setAttribute("isReferenced", ""+false);
-				entryElement.setAttribute("isValid", ""+false);
+				for (int j = set.size(); j < this.maxElemsPerSet; j++){
+					Element entryElement = doc.createElement("CacheEntry");
+					entryElement.setAttribute("isReferenced", ""+false);
+					entryElement.setAttribute("isValid", ""+false);
 				
-				Element keyElement = doc.createElement("Key");
-				Element valueElement = doc.createElement("Value");
+					Element keyElement = doc.createElement("Key");
+					Element valueElement = doc.createElement("Value");
 
-				entryElement.appendChild(keyElement);
-				entryElement.appendChild(valueElement);
+					entryElement.appendChild(keyElement);
+					entryElement.appendChild(valueElement);
 				
-				setElement.appendChild(entryElement);
+					setElement.appendChild(entryElement);
+				}
+			} finally {
+				set.getReadLock().unlock();
 			}
 			
 			rootElement.appendChild(setElement);
@@ -261,58 +411,155 @@ public class KVCache implements KeyValueInterface, Debuggable {
     return xml;
   }
   
-  /** CS162: Represents a single entry in the cache. */
+  /** 
+   * CS162: Represents a single entry in the cache. Entries are preallocated per slot and reused on replacement.
+   * Replacement state, including the reference bit, is kept by the set's EvictionPolicy.
+   * Off-heap, the entry only keeps the address and UTF-8 length of its value in the valueStore.
+   */
   private class CacheEntry {
-    private String value;
-    private boolean isReferred = false;
-    private String key;
+    private String value = null;
+    private long address = -1;
+    private int length = 0;
+    private String key = null;
+    private int hash = 0;
     
-    public CacheEntry(String key, String val) {
-      this.value = val;
+    /**
+     * reuse this entry for <key, value>. The entry must be clear.
+     * @param key
+     * @param hash hash of the key as computed by CacheSet.hash()
+     * @param val
+     * @return false if the value could not be stored; the entry is then left clear
+     */
+    public boolean set(String key, int hash, Utf8Value val) {
+      if (!this.setValue(val)) {
+        return false;
+      }
       this.key = key;
+      this.hash = hash;
+      return true;
     }
     
-    public void refer() {
-      this.isReferred = true;
+    /**
+     * mark this entry as unused, and give its chunk back to the valueStore
+     */
+    public void clear() {
+      this.key = null;
+      this.value = null;
+      if (this.address >= 0) {
+        valueStore.free(this.address, this.length);
+        this.address = -1;
+        this.length = 0;
+      }
     }
     
-    public boolean isReferred() {
-      return this.isReferred;
+    public boolean isValid() {
+      return this.key != null;
     }
     
-    public boolean shouldBeReplaced() {
-      return !isReferred();
-    }
-  
     public String getKey() {
       return this.key;
     }
     
-    public void miss() {
-      this.isReferred = false;
+    public int getHash() {
+      return this.hash;
+    }
+    
+    public long weight() {
+      if (valueStore == null) {
+        return KVCache.weigh(this.key, this.value);
+      }
+      return 2L * this.key.length() + SlabAllocator.chunkSize(this.length);
     }
     
+    /**
+     * Off-heap, this is where the value is decoded
+     * @return
+     */
     public String getValue() {
-      return this.value;
+      if (valueStore == null) {
+        return this.value;
+      }
+      return new String(valueStore.load(this.address, this.length), UTF8);
     }
     
-    public void setValue(String val) {
-      this.value = val;
+    /**
+     * @param val
+     * @return false if val could not be stored off-heap; the old value is then kept
+     */
+    public boolean setValue(Utf8Value val) {
+      if (valueStore == null) {
+        this.value = val.toString();
+        return true;
+      }
+      ByteBuffer bytes = val.utf8();
+      int newLength = bytes.remaining();
+      long newAddress = valueStore.store(bytes);
+      if (newAddress < 0) {
+        return false;
+      }
+      if (this.address >= 0) {
+        valueStore.free(this.address, this.length);
+      }
+      this.address = newAddress;
+      this.length = newLength;
+      return true;
     }
   }
   
-  /** CS162: Represents a single set in the cache. Each set may contain multiple CacheEntries. */
+  /** 
+   * CS162: Represents a single set in the cache. Each set may contain multiple CacheEntries.
+   * The entries live in a fixed-size array of slots, and an open-addressing table maps each key
+   * to its slot so that lookups do not scan the set. The EvictionPolicy picks the slot to reuse when the set is full.
+   */
   private class CacheSet{
     private ReentrantReadWriteLock readWriteLock = new ReentrantReadWriteLock();
     private WriteLock writeLock;
     private ReadLock readLock;
     private final int MAX_NUM_ELEMENT;
-    private LinkedList<CacheEntry> entries = new LinkedList<CacheEntry>();
     
-    public CacheSet(int maxElementPerSet) {
+    private final CacheEntry[] slots;
+    private final EvictionPolicy.SetPolicy policy;
+    private int size = 0;
+    //changed by each put and del of the cache, guarded by the lock
+    private long version = 0;
+    
+    //sum of the weights of the entries, kept at most maxBytes. Written under the write lock
+    private final long maxBytes;
+    private volatile long bytes = 0;
+    
+    //slots which hold no entry, used as a stack
+    private final int[] freeSlots;
+    private int numFree;
+    
+    //open-addressing table with linear probing. A bucket holds slot+1, or 0 if empty
+    private final int[] index;
+    private final int indexMask;
+    private final int indexShift;
+    
+    public CacheSet(int maxElementPerSet, long maxBytes, EvictionPolicy.SetPolicy policy) {
       this.MAX_NUM_ELEMENT = maxElementPerSet;
+      this.maxBytes = maxBytes;
+      this.policy = policy;
       readLock = readWriteLock.readLock();
       writeLock = readWriteLock.writeLock();
+      
+      this.slots = new CacheEntry[maxElementPerSet];
+      this.freeSlots = new int[maxElementPerSet];
+      for (int i = 0; i < maxElementPerSet; i++) {
+        this.slots[i] = new CacheEntry();
+        //pop order is slot 0, 1, 2...
+        this.freeSlots[i] = maxElementPerSet - 1 - i;
+      }
+      this.numFree = maxElementPerSet;
+      
+      //keep the load factor of the index at most 1/2
+      int bits = 1;
+      while ((1 << bits) < 2 * maxElementPerSet) {
+        bits++;
+      }
+      this.index = new int[1 << bits];
+      this.indexMask = (1 << bits) - 1;
+      this.indexShift = 32 - bits;
     }
     
     public WriteLock getWriteLock() {
@@ -324,97 +571,225 @@ public class KVCache implements KeyValueInterface, Debuggable {
       }
     
     /**
-     * sequential search for the key. leave the caller to handle locking. 
+     * number of valid entries in this set
+     */
+    public int size() {
+      return this.size;
+    }
+    
+    /**
+     * Keys of the same set share hashCode() % numSets, so the low bits are scrambled before use
+     * @param key
+     * @return
+     */
+    private int hash(String key) {
+      int h = key.hashCode();
+      return h ^ (h >>> 16);
+    }
+    
+    /**
+     * Fibonacci hashing: the top bits of the product are the best mixed ones
+     * @param hash
+     * @return
+     */
+    private int homeBucket(int hash) {
+      return (hash * 0x9E3779B9) >>> this.indexShift;
+    }
+    
+    /**
+     * probe the index for key
+     * @param key
+     * @param hash
+     * @return the bucket that refers to key, or -1 if the key is not in this set
+     */
+    private int findBucket(String key, int hash) {
+      int b = this.homeBucket(hash);
+      while (this.index[b] != 0) {
+        CacheEntry e = this.slots[this.index[b] - 1];
+        if (e.getHash() == hash && e.getKey().equals(key)) {
+          return b;
+        }
+        b = (b + 1) & this.indexMask;
+      }
+      return -1;
+    }
+    
+    private void indexInsert(int hash, int slot) {
+      int b = this.homeBucket(hash);
+      while (this.index[b] != 0) {
+        b = (b + 1) & this.indexMask;
+      }
+      this.index[b] = slot + 1;
+    }
+    
+    /**
+     * empty bucket b and shift back the rest of its probe run so that no tombstones are needed
+     * @param b
+     */
+    private void indexRemove(int b) {
+      this.index[b] = 0;
+      int hole = b;
+      int j = b;
+      while (true) {
+        j = (j + 1) & this.indexMask;
+        if (this.index[j] == 0) {
+          return;
+        }
+        int home = this.homeBucket(this.slots[this.index[j] - 1].getHash());
+        //the entry at j may move into the hole unless its home lies cyclically in (hole, j]
+        boolean homeInRange = (hole <= j) ? (hole < home && home <= j) : (hole < home || home <= j);
+        if (!homeInRange) {
+          this.index[hole] = this.index[j];
+          this.index[j] = 0;
+          hole = j;
+        }
+      }
+    }
+    
+    /**
+     * look up the key. If the key exists, update its value; otherwise insert it. leave the caller to handle locking. 
      * @param key
      * @param value
      */
-    public void put(String key, String value) {  
+    public void put(String key, Utf8Value value) {  
     	assert(writeLock.isHeldByCurrentThread());
-	    for (int i = 0; i < entries.size(); i++) {
-	      CacheEntry e = entries.get(i);
-	      String k = e.getKey();
-	      if (k.equals(key)){
-	          e.setValue(value);
-	          return;
-	      }
-	    }		
+    	int hash = this.hash(key);
+    	int b = this.findBucket(key, hash);
+    	if (b >= 0) {
+    		CacheEntry e = this.slots[this.index[b] - 1];
+    		long oldWeight = e.weight();
+    		long delta = KVCache.this.weightOf(key, value) - oldWeight;
+    		if ((delta <= 0 || this.bytes + delta <= this.maxBytes) && e.setValue(value)) {
+    			this.bytes += e.weight() - oldWeight;
+    			return;
+    		}
+    		//the larger value does not fit next to the other entries, or not in the valueStore; insert it again as a new entry
+    		this.removeBucket(b);
+    	}
 	    //the key is not in the cache. Needs replacement
-	    this.replaceHelper(key, value);
+	    this.replaceHelper(key, hash, value);
     }
     
     /**
-     * replace an old entry with <key, value>. Leave the caller to handle locking. 
+     * insert <key, value> unless the key is in the set, or the set was written since version. Leave the caller to handle locking. 
      * @param key
      * @param value
+     * @param version
      */
-    public void replace(String key, String value) {
-      this.replaceHelper(key, value);
+    public void replace(String key, Utf8Value value, long version) {
+      assert(writeLock.isHeldByCurrentThread());
+      //another thread may have filled or written the key since the caller's miss
+      int hash = this.hash(key);
+      if (this.version != version || this.findBucket(key, hash) >= 0) {
+        return;
+      }
+      this.replaceHelper(key, hash, value);
     }
     
     /**
-     * Linear search of the requested key.If they key is found, said the reference b. leave the caller to handle locking
+     * Index lookup of the requested key. If the key is found, tell the policy about the hit. leave the caller to handle locking.
+     * Only reads the slots and the index, so the read lock is enough.
      * @param key
      * @return value of the key; null if the key doesn't exist
      */
     public String get(String key) {
-        for(int i = 0; i < entries.size(); i++) {
-          CacheEntry e = entries.get(i);
-          String k = e.getKey();
-          if (k.equals(key)){
-            if (!e.isReferred()){
-              e.refer();
-            }
-            return e.getValue();
-          }
+        int hash = this.hash(key);
+        int b = this.findBucket(key, hash);
+        if (b < 0) {
+          this.policy.miss(hash);
+          return null;
         }
-        return null;
+        int slot = this.index[b] - 1;
+        this.policy.hit(slot, hash);
+        return this.slots[slot].getValue();
     }
     
     /**
-     * sequential serach for the key. If the key exists, remove the entry. leave the caller to handle locking
+     * Index lookup of the key. If the key exists, remove the entry and free its slot. leave the caller to handle locking
      * @param key
      */
     public void del(String key) {
     	assert(this.writeLock.isHeldByCurrentThread());
-	    for (int i = 0; i < entries.size(); i++) {
-	    	CacheEntry e = entries.get(i);
-			String k = e.getKey();
-			if (k.equals(key)){
-			    entries.remove(i);
-			    return;
-			}
-	    }
- 
+    	int b = this.findBucket(key, this.hash(key));
+    	if (b < 0) {
+    		return;
+    	}
+    	this.removeBucket(b);
+    }
+    
+    /**
+     * remove the entry referred to by bucket b of the index and free its slot
+     * @param b
+     */
+    private void removeBucket(int b) {
+    	int slot = this.index[b] - 1;
+    	this.indexRemove(b);
+    	this.policy.remove(slot);
+    	this.freeSlot(slot);
+    }
+    
+    private void freeSlot(int slot) {
+    	this.bytes -= this.slots[slot].weight();
+    	this.slots[slot].clear();
+    	this.freeSlots[this.numFree++] = slot;
+    	this.size--;
+    }
+    
+    /**
+     * drop the entry chosen by the policy and free its slot
+     */
+    private void evictOne() {
+    	int slot = this.policy.evict();
+    	CacheEntry e = this.slots[slot];
+    	this.indexRemove(this.findBucket(e.getKey(), e.getHash()));
+    	this.freeSlot(slot);
     }
     
     /**
      * Called when a replacement is needed. <key, value> is retreived from KVStore.
+     * Entries are first dropped until <key, value> fits in the byte budget. Then free slots are used first; 
+     * otherwise the entry chosen by the policy is overwritten in place.
      * Assume writeLock is held by currentThread. And caller should handle the unlocking of writeLock
      * @param key 
+     * @param hash
      * @param value
      */
-    private void replaceHelper(String key, String value) {    		
+    private void replaceHelper(String key, int hash, Utf8Value value) {    		
       assert(writeLock.isHeldByCurrentThread());
       
-      //set is empty or not null yet
-      if (entries.isEmpty() || (entries.size() < this.MAX_NUM_ELEMENT)) {
-        entries.add(new CacheEntry(key, value));
+      long weight = KVCache.this.weightOf(key, value);
+      //an entry larger than the whole budget of the set is not cached
+      if (this.slots.length == 0 || weight > this.maxBytes) {
         return;
       }
       
-      while(true) {   								
-        CacheEntry e = entries.removeFirst();
-
-        //isRefeRred is false
-        if (e.shouldBeReplaced()){
-          entries.add(new CacheEntry(key, value));
-          return;
-        }
-        
-        //set the first element's isReferred to false and remove it the the end of the queue
-        e.miss();
-        entries.addLast(e);
+      while (this.bytes + weight > this.maxBytes) {
+        this.evictOne();
+      }
+      
+      int slot;
+      if (this.numFree > 0) {
+        //set is not full yet
+        slot = this.freeSlots[--this.numFree];
+        this.size++;
+      } else {
+        slot = this.policy.evict();
+        CacheEntry e = this.slots[slot];
+        this.indexRemove(this.findBucket(e.getKey(), e.getHash()));
+        this.bytes -= e.weight();
+        e.clear();
+      }
+      
+      CacheEntry e = this.slots[slot];
+      if (!e.set(key, hash, value)) {
+        //the valueStore is full
+        this.freeSlots[this.numFree++] = slot;
+        this.size--;
+        return;
       }
+      this.indexInsert(hash, slot);
+      this.policy.insert(slot, hash);
+      this.bytes += e.weight();
     }
   }
 }
@@ -0,0 +1,101 @@
+package edu.berkeley.cs162;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Microbenchmark of KVCache hit throughput versus number of threads.
+ * All threads hit keys of the same set, which is the worst case for the set locks.
+ * Each thread count is measured twice: hits under the set write lock (the old KVServer.get)
+ * and hits under the set read lock.
+ *
+ * Run from the src directory:
+ *		"java edu/berkeley/cs162/KVCacheBenchmark [maxThreads] [millisPerRun]"
+ *
+ */
+public class KVCacheBenchmark implements Debuggable {
+	private static final int NUM_KEYS = 64;
+
+	public static void main(String[] args) throws InterruptedException {
+		int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : 2 * Runtime.getRuntime().availableProcessors();
+		long millis = args.length > 1 ? Long.parseLong(args[1]) : 1000;
+
+		DEBUG.setEnabled(false);
+
+		//a single set, so every key shares the same lock
+		KVCache cache = new KVCache(1, NUM_KEYS);
+		String[] keys = new String[NUM_KEYS];
+		for (int i = 0; i < NUM_KEYS; i++) {
+			keys[i] = "key" + i;
+			cache.getWriteLock(keys[i]).lock();
+			cache.put(keys[i], "value" + i);
+			cache.getWriteLock(keys[i]).unlock();
+		}
+
+		//warm up both paths
+		run(cache, keys, 1, millis, true);
+		run(cache, keys, 1, millis, false);
+
+		System.out.println(String.format("%8s %16s %16s %8s", "threads", "writeLock ops/s", "readLock ops/s", "speedup"));
+		for (int threads = 1; threads <= maxThreads; threads *= 2) {
+			double write = run(cache, keys, threads, millis, true);
+			double read = run(cache, keys, threads, millis, false);
+			System.out.println(String.format("%8d %16.0f %16.0f %8.2f", threads, write, read, read / write));
+		}
+	}
+
+	/**
+	 * Hammer the cache with gets for the given time
+	 * @return hits per second over all threads
+	 */
+	private static double run(final KVCache cache, final String[] keys, int threads, long millis, final boolean useWriteLock)
+			throws InterruptedException {
+		final AtomicBoolean stop = new AtomicBoolean(false);
+		final AtomicLong total = new AtomicLong();
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] workers = new Thread[threads];
+
+		for (int t = 0; t < threads; t++) {
+			final int offset = t;
+			workers[t] = new Thread() {
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					long ops = 0;
+					int i = offset;
+					while (!stop.get()) {
+						String key = keys[i++ % keys.length];
+						Lock lock = useWriteLock ? cache.getWriteLock(key) : cache.getReadLock(key);
+						lock.lock();
+						try {
+							if (cache.get(key) == null) {
+								throw new IllegalStateException("unexpected miss on " + key);
+							}
+						} finally {
+							lock.unlock();
+						}
+						ops++;
+					}
+					total.addAndGet(ops);
+				}
+			};
+			workers[t].start();
+		}
+
+		long begin = System.nanoTime();
+		start.countDown();
+		Thread.sleep(millis);
+		stop.set(true);
+		for (Thread w : workers) {
+			w.join();
+		}
+		long elapsed = System.nanoTime() - begin;
+
+		return total.get() * 1e9 / elapsed;
+	}
+}
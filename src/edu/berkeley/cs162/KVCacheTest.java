@@ -111,4 +111,165 @@ public class KVCacheTest {
   @Test
   public void replacementTest3() {
   }
+  
+	@Test
+	public void testDelFreesSlot(){
+		KVCache cache = new KVCache(1, 3);
+		cache.getWriteLock("key1").lock();
+		cache.put("key1", "val1");
+		cache.put("key2", "val2");
+		cache.put("key3", "val3");
+		cache.get("key1");
+		cache.get("key2");
+		cache.get("key3");
+		
+		cache.del("key2");
+		assertEquals(cache.get("key2"), null);
+		
+		//the freed slot is reused, nothing is evicted
+		cache.put("key4", "val4");
+		assertEquals(cache.get("key1"), "val1");
+		assertEquals(cache.get("key3"), "val3");
+		assertEquals(cache.get("key4"), "val4");
+		cache.getWriteLock("key1").unlock();
+	}
+	
+	@Test
+	public void testLargeSet(){
+		int n = 1000;
+		KVCache cache = new KVCache(1, n);
+		cache.getWriteLock("key").lock();
+		for (int i = 0; i < n; i++) {
+			cache.put("key"+i, "val"+i);
+		}
+		for (int i = 0; i < n; i += 2) {
+			cache.del("key"+i);
+		}
+		for (int i = 0; i < n; i++) {
+			assertEquals(cache.get("key"+i), (i % 2 == 0) ? null : "val"+i);
+		}
+		
+		//fill the freed slots and force two evictions
+		cache.put("key"+n, "val"+n);
+		cache.put("key"+(n+1), "val"+(n+1));
+		for (int i = 0; i < n / 2; i++) {
+			cache.put("new"+i, "new"+i);
+		}
+		assertEquals(cache.get("key"+n), "val"+n);
+		cache.getWriteLock("key").unlock();
+	}
+	
+	@Test
+	public void testByteBudget(){
+		//one set with room for 100 entries but only 40 bytes, i.e. 20 chars
+		KVCache cache = new KVCache(1, 100, 40, EvictionPolicy.forName(EvictionPolicy.CLOCK));
+		cache.getWriteLock("key").lock();
+		cache.put("k1", "12345678");
+		cache.put("k2", "12345678");
+		assertEquals(cache.getBytes(), 40);
+		
+		//k1 is dropped to make room
+		cache.put("k3", "1234");
+		assertEquals(cache.get("k1"), null);
+		assertEquals(cache.get("k2"), "12345678");
+		assertEquals(cache.get("k3"), "1234");
+		assertEquals(cache.getBytes(), 32);
+		
+		//growing a value drops other entries too
+		cache.put("k3", "123456789012345678");
+		assertEquals(cache.get("k2"), null);
+		assertEquals(cache.get("k3"), "123456789012345678");
+		assertEquals(cache.getBytes(), 40);
+		
+		//larger than the whole budget: not cached, and the old value is gone
+		cache.put("k3", "1234567890123456789");
+		assertEquals(cache.get("k3"), null);
+		assertEquals(cache.getBytes(), 0);
+		cache.getWriteLock("key").unlock();
+	}
+	
+	@Test
+	public void testOffHeap(){
+		SlabAllocator slabs = new SlabAllocator(SlabAllocator.SLAB_SIZE);
+		KVCache cache = new KVCache(1, 2, 0, EvictionPolicy.forName(EvictionPolicy.CLOCK), slabs);
+		cache.getWriteLock("key").lock();
+		cache.put("key1", "value1");
+		cache.put("key2", "v\u00e4lue\u2603");
+		assertEquals(cache.get("key1"), "value1");
+		assertEquals(cache.get("key2"), "v\u00e4lue\u2603");
+		assertEquals(slabs.getUsedBytes(), 2 * SlabAllocator.MIN_CHUNK);
+		assertEquals(cache.getBytes(), 2 * (8 + SlabAllocator.MIN_CHUNK));
+		
+		//the chunk of the evicted value is reused
+		cache.put("key3", "value3");
+		assertEquals(cache.get("key3"), "value3");
+		assertEquals(slabs.getUsedBytes(), 2 * SlabAllocator.MIN_CHUNK);
+		assertEquals(cache.toXML(),"<?xml version=\"1.0\" encoding=\"UTF-8\"?><KVCache><Set Id=\"0\"><CacheEntry isReferenced=\"false\" isValid=\"true\"><Key>key2</Key><Value>v\u00e4lue\u2603</Value></CacheEntry><CacheEntry isReferenced=\"true\" isValid=\"true\"><Key>key3</Key><Value>value3</Value></CacheEntry></Set></KVCache>");
+		
+		cache.del("key3");
+		assertEquals(cache.get("key3"), null);
+		assertEquals(slabs.getUsedBytes(), SlabAllocator.MIN_CHUNK);
+		
+		//the only slab is carved into small chunks, so a larger value is not cached
+		StringBuilder large = new StringBuilder();
+		for (int i = 0; i < SlabAllocator.MIN_CHUNK + 1; i++) {
+			large.append('x');
+		}
+		cache.put("key4", large.toString());
+		assertEquals(cache.get("key4"), null);
+		assertEquals(cache.get("key2"), "v\u00e4lue\u2603");
+		
+		//until its last small chunk is freed, and it can be cut into larger ones
+		cache.del("key2");
+		assertEquals(slabs.getFreeSlabBytes(), SlabAllocator.SLAB_SIZE);
+		cache.put("key4", large.toString());
+		assertEquals(cache.get("key4"), large.toString());
+		assertEquals(slabs.getUsedBytes(), 2 * SlabAllocator.MIN_CHUNK);
+		assertEquals(slabs.getFreeSlabBytes(), 0);
+		assertEquals(slabs.getSlabBytes(), SlabAllocator.SLAB_SIZE);
+		cache.getWriteLock("key").unlock();
+	}
+
+	@Test
+	public void testSetId(){
+		KVCache cache = new KVCache(100, 2);
+		//a key whose hashCode() is Integer.MIN_VALUE
+		String key = "polygenelubricants";
+		assertEquals(key.hashCode(), Integer.MIN_VALUE);
+		assertEquals(cache.getSetId(key), 48);
+		cache.getWriteLock(key).lock();
+		cache.put(key, "value");
+		assertEquals(cache.get(key), "value");
+		cache.getWriteLock(key).unlock();
+	}
+
+	@Test
+	public void testReplaceAfterWrite(){
+		KVCache cache = new KVCache(1, 4);
+		//a miss, then a fill with what was looked up
+		cache.getReadLock("key1").lock();
+		assertEquals(cache.get("key1"), null);
+		long version = cache.getVersion("key1");
+		cache.getReadLock("key1").unlock();
+		cache.getWriteLock("key1").lock();
+		cache.replace("key1", "old", version);
+		assertEquals(cache.get("key1"), "old");
+		cache.getWriteLock("key1").unlock();
+		
+		//a fill does not overwrite a key that is in the cache
+		cache.getWriteLock("key1").lock();
+		cache.put("key1", "new");
+		cache.replace("key1", "old", cache.getVersion("key1"));
+		assertEquals(cache.get("key1"), "new");
+		cache.getWriteLock("key1").unlock();
+		
+		//nor fills a key that was deleted since the miss
+		cache.getWriteLock("key2").lock();
+		version = cache.getVersion("key2");
+		cache.put("key2", "new");
+		cache.del("key2");
+		cache.replace("key2", "old", version);
+		assertEquals(cache.get("key2"), null);
+		cache.getWriteLock("key2").unlock();
+	}
 }
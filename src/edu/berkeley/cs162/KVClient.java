@@ -32,11 +32,10 @@
 package edu.berkeley.cs162;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.PrintWriter;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
 
 
 /**
@@ -45,9 +44,17 @@ import java.net.UnknownHostException;
  *
  */
 public class KVClient implements KeyValueInterface,Debuggable {
+	/**
+	 * Requests that can wait for their responses on a persistent connection, by default
+	 */
+	public static final int DEFAULT_MAX_IN_FLIGHT = 128;
 
 	private String server = null;
 	private int port = 0;
+	private boolean binary = false;
+	private boolean persistent = false;
+	private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+	private Pipeline pipeline = null;
 	
 	/**
 	 * @param server is the DNS reference to the Key-Value server
@@ -89,250 +96,362 @@ public class KVClient implements KeyValueInterface,Debuggable {
 	}
 	
 	/**
-	 * Send a put <key, value> request to server
-	 * @param key
-	 * @param value
-	 * @throws KVException
+	 * Send requests in the binary protocol of KVMessage instead of XML. The server answers in the same protocol.
+	 * @param binary
 	 */
-	public void put(String key, String value) throws KVException {
-		
-		//sanity check of key and value
-		CheckHelper.sanityCheckKeyValue(key, value);
-				
-		Socket sock = this.connectHost();
-		
-		//try to open inputstream and outputstream of the socket
-		OutputStream out = null;
-		InputStream in = null;
-		try {
-			out = sock.getOutputStream();
-		} catch (IOException e1) {
-			DEBUG.debug("cannot open outputstream");
-			e1.printStackTrace();
-			throw new KVException(new KVMessage(KVMessage.RESPTYPE, "Network Error: Could not send data"));
+	public void setBinaryProtocol(boolean binary) {
+		this.binary = binary;
+	}
+	
+	/**
+	 * Send all requests on one connection that is kept open, instead of a connection per request.
+	 * Requests are sent in the binary protocol or in framed XML, which the server keeps the connection alive for
+	 * (see KVClientHandler.setKeepAlive()). Requests from several threads, and the ones of putAsync(), getAsync()
+	 * and delAsync(), are pipelined: up to maxInFlight of them are sent before their responses arrive.
+	 * If the connection fails, the requests that wait on it fail, and the next request opens a new connection.
+	 * @param persistent
+	 */
+	public synchronized void setPersistent(boolean persistent) {
+		this.persistent = persistent;
+		if (!persistent) {
+			this.close();
 		}
-		
-		try {
-			in = sock.getInputStream();
-		} catch (IOException e1) {
-			DEBUG.debug("cannot open inputstream");
-			e1.printStackTrace();
-			throw new KVException(new KVMessage(KVMessage.RESPTYPE, "Network Error: Could not receive data"));
+	}
+	
+	/**
+	 * @param maxInFlight requests that can wait for their responses on the persistent connection; applies to the next connection
+	 */
+	public synchronized void setMaxInFlight(int maxInFlight) {
+		this.maxInFlight = maxInFlight;
+	}
+	
+	/**
+	 * Close the persistent connection, if there is one. The requests that wait on it fail.
+	 */
+	public synchronized void close() {
+		if (this.pipeline != null) {
+			this.pipeline.close();
+			this.pipeline = null;
+		}
+	}
+	
+	/**
+	 * The response to a request, which may still be on its way. See putAsync(), getAsync() and delAsync().
+	 */
+	public static class Response {
+		private final String msgType;
+		private KVMessage response = null;
+		private KVException error = null;
+		private boolean done = false;
+		
+		private Response(String msgType) {
+			this.msgType = msgType;
 		}
 		
-		KVMessage msg = new KVMessage(KVMessage.PUTTYPE);
-		msg.setKey(key);
-		msg.setValue(value);
-				
-		PrintWriter writer = new PrintWriter(out, true);
-		writer.println(msg.toXML());
-		try {
-			sock.shutdownOutput();
-		} catch (IOException e) {
-			DEBUG.debug("could not close the outputstream");
-			e.printStackTrace();
-			throw new KVException(new KVMessage(KVMessage.RESPTYPE, "Unknown Error: Could not close the output stream of the socket"));
+		synchronized void complete(KVMessage response) {
+			if (!this.done) {
+				this.response = response;
+				this.done = true;
+				this.notifyAll();
+			}
 		}
 		
-		DEBUG.debug(String.format("Put request of <%s, %s> was sent, waiting for response", key, value));
+		synchronized void fail(KVException error) {
+			if (!this.done) {
+				this.error = error;
+				this.done = true;
+				this.notifyAll();
+			}
+		}
 		
-		KVMessage response = new KVMessage(in);
+		public synchronized boolean isDone() {
+			return this.done;
+		}
 		
-		try {
-			in.close();
-		} catch (IOException e) {
-			DEBUG.debug("could not close the input stream");
-			throw new KVException(new KVMessage(KVMessage.RESPTYPE, "Unknown Error: Could not close the input stream of the socket"));
+		synchronized KVMessage await() throws KVException {
+			boolean interrupted = false;
+			while (!this.done) {
+				try {
+					this.wait();
+				} catch (InterruptedException e) {
+					//the response is on its way, or the connection fails
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			if (this.error != null) {
+				throw this.error;
+			}
+			return this.response;
 		}
 		
-		this.closeHost(sock);
-	
-		if (!response.getMessage().equals("Success")) {
-			DEBUG.debug("Put request failed. Error message from server: "+ response.getMessage());
-			throw new KVException(response);
-		} else {
-			DEBUG.debug("Put request succeeded");
+		/**
+		 * Wait for the response
+		 * @return the value for a get, null for a put or a del
+		 * @throws KVException with the error of the server, or of the connection, as the synchronous operation
+		 */
+		public String get() throws KVException {
+			return checkResponse(this.msgType, this.await());
 		}
 	}
-
-	public String get(String key) throws KVException {
-		
-		//sanity check on key
-		CheckHelper.sanityCheckKey(key);
-		
-		Socket sock = this.connectHost();
-		
-		OutputStream out = null;
-		InputStream in = null;
-
-		try {
-			out = sock.getOutputStream();
-		} catch (IOException e1) {
-			DEBUG.debug("cannot open outputstream");
-			e1.printStackTrace();
-			throw new KVException(new KVMessage(KVMessage.RESPTYPE, "Network Error: Could not send data"));
+	
+	/**
+	 * A persistent connection: requests are written in order, and a thread reads the responses, which come in the
+	 * same order, and hands each one to the oldest request that waits
+	 */
+	private class Pipeline implements Runnable {
+		private final KVConnection conn;
+		private final ConcurrentLinkedQueue<Response> waiting = new ConcurrentLinkedQueue<Response>();
+		private final Semaphore inFlight;
+		private final Object sendLock = new Object();
+		private volatile boolean closed = false;
+		
+		Pipeline(Socket sock, int maxInFlight) {
+			//framed XML if not binary
+			this.conn = new KVConnection(sock, KVClient.this.binary, true);
+			this.inFlight = new Semaphore(maxInFlight);
+			try {
+				sock.setTcpNoDelay(true);
+			} catch (IOException e) {
+				//only slower
+			}
+			Thread reader = new Thread(this, "KVClient-"+KVClient.this.server+":"+KVClient.this.port);
+			reader.setDaemon(true);
+			reader.start();
 		}
 		
-		try {
-			in = sock.getInputStream();
-		} catch (IOException e1) {
-			DEBUG.debug("cannot open inputstream");
-			e1.printStackTrace();
-			throw new KVException(new KVMessage(KVMessage.RESPTYPE, "Network Error: Could not receive data"));
+		boolean isClosed() {
+			return this.closed;
 		}
 		
-		KVMessage msg = new KVMessage(KVMessage.GETTYPE);
-		msg.setKey(key);
-		
-		PrintWriter writer = new PrintWriter(out, true);
-		writer.println(msg.toXML());
-		
-		try {
-			sock.shutdownOutput();
-		} catch (IOException e) {
-			DEBUG.debug("could not close output stream");
-			e.printStackTrace();
-			throw new KVException(new KVMessage(KVMessage.RESPTYPE, "Unknown Error: Could not close the output stream of the socket"));
+		Response send(KVMessage msg) throws KVException {
+			this.inFlight.acquireUninterruptibly();
+			Response response = new Response(msg.getMsgType());
+			synchronized (this.sendLock) {
+				if (this.closed) {
+					this.inFlight.release();
+					throw new KVException(new KVMessage(KVMessage.RESPTYPE, "Network Error: Could not send data"));
+				}
+				//queued before it is sent, so that it is there when the response arrives
+				this.waiting.add(response);
+				try {
+					this.conn.send(msg);
+				} catch (KVException e) {
+					//a network error takes the connection out of sync
+					if (this.conn.isPersistent() && this.waiting.remove(response)) {
+						//an invalid message: nothing was sent
+						this.inFlight.release();
+						throw e;
+					}
+					//the reader fails what waits once the connection is closed
+					response.fail(e);
+					this.close();
+				}
+			}
+			DEBUG.debug(String.format("%s request was sent, waiting for response", msg.getMsgType()));
+			return response;
 		}
-				
-		DEBUG.debug(String.format("Get request of <%s> was sent, waiting for response", key));
-		
-		KVMessage response = new KVMessage(in);
 		
-		try {
-			in.close();
-		} catch (IOException e) {
-			DEBUG.debug("cannot close input stream");
-			e.printStackTrace();
-			throw new KVException(new KVMessage(KVMessage.RESPTYPE, "Unknown Error: Could not close the input stream of the socket"));
+		@Override
+		public void run() {
+			KVException error;
+			try {
+				while (true) {
+					KVMessage msg = this.conn.receiveNext();
+					if (msg == null) {
+						//the server closed the connection
+						throw new KVException(new KVMessage(KVMessage.RESPTYPE, "Network Error: Could not receive data"));
+					}
+					Response response = this.waiting.poll();
+					if (response == null) {
+						DEBUG.debug("received a response to no request");
+						throw new KVException(new KVMessage(KVMessage.RESPTYPE, "Network Error: Could not receive data"));
+					}
+					this.inFlight.release();
+					response.complete(msg);
+				}
+			} catch (KVException e) {
+				error = e;
+			}
+			this.close();
+			//nothing more is queued once closed is set under the lock
+			synchronized (this.sendLock) {
+				Response response;
+				while ((response = this.waiting.poll()) != null) {
+					this.inFlight.release();
+					response.fail(error);
+				}
+			}
 		}
-		this.closeHost(sock);
 		
-		if (response.getMessage()!=null) {
-			DEBUG.debug("Get request failed. Error message from server: "+ response.getMessage());
-			throw new KVException(response);
-		} else {
-			DEBUG.debug("Get request succeeded. Value is "+response.getValue());
-			return response.getValue(); 
+		void close() {
+			this.closed = true;
+			this.conn.close();
 		}
 	}
 	
-	public void del(String key) throws KVException {
-		CheckHelper.sanityCheckKey(key);
-		
+	/**
+	 * The persistent connection, opened if there is none
+	 * @return
+	 * @throws KVException
+	 */
+	private synchronized Pipeline pipeline() throws KVException {
+		if (this.pipeline == null || this.pipeline.isClosed()) {
+			this.pipeline = new Pipeline(this.connectHost(), this.maxInFlight);
+		}
+		return this.pipeline;
+	}
+	
+	/**
+	 * Send a request on a new connection and wait for the response
+	 * @param msg
+	 * @return the response of the server
+	 * @throws KVException
+	 */
+	private KVMessage sendRequest(KVMessage msg) throws KVException {
 		Socket sock = this.connectHost();
 		
-		OutputStream out = null;
-		InputStream in = null;
+		KVConnection conn = new KVConnection(sock, this.binary);
+		KVMessage response = null;
 		try {
-			out = sock.getOutputStream();
-		} catch (IOException e1) {
-			DEBUG.debug("Could not open outputstream");
-			e1.printStackTrace();
-			throw new KVException(new KVMessage(KVMessage.RESPTYPE, "Network Error: Could not send data"));
+			conn.send(msg);
+			DEBUG.debug(String.format("%s request was sent, waiting for response", msg.getMsgType()));
+			response = conn.receive();
+		} catch (KVException e) {
+			conn.close();
+			throw e;
 		}
 		
-		try {
-			in = sock.getInputStream();
-		} catch (IOException e1) {
-			DEBUG.debug("Could not open input stream");
-			e1.printStackTrace();
-			throw new KVException(new KVMessage(KVMessage.RESPTYPE, "Network Error: Could not receive data"));
+		this.closeHost(sock);
+		return response;
+	}
+	
+	/**
+	 * Send a request, on the persistent connection if there is one
+	 * @param msg
+	 * @return the response, which is on its way on a persistent connection
+	 * @throws KVException
+	 */
+	private Response sendAsync(KVMessage msg) throws KVException {
+		boolean persistent;
+		synchronized (this) {
+			persistent = this.persistent;
 		}
-		
-		KVMessage msg = new KVMessage(KVMessage.DELTYPE);
-		msg.setKey(key);
-		
-		PrintWriter writer = new PrintWriter(out, true);
-		writer.println(msg.toXML());
-
-		try {
-			sock.shutdownOutput();
-		} catch (IOException e) {
-			DEBUG.debug("could not close output stream");
-			e.printStackTrace();
-			throw new KVException(new KVMessage(KVMessage.RESPTYPE, "Unknown Error: Could not close the output stream of the socket"));
+		if (persistent) {
+			return this.pipeline().send(msg);
 		}
-		
-		DEBUG.debug(String.format("Del request of <%s> was sent, waiting for response", key));
-		
-		KVMessage response = new KVMessage(in);
-		
-		try {
-			in.close();
-		} catch (IOException e) {
-			DEBUG.debug("cannot close input stream");
-			e.printStackTrace();
-			throw new KVException(new KVMessage(KVMessage.RESPTYPE, "Unknown Error: Could not close the input stream of the socket"));
+		Response response = new Response(msg.getMsgType());
+		response.complete(this.sendRequest(msg));
+		return response;
+	}
+	
+	/**
+	 * Check the response to a request
+	 * @param msgType of the request
+	 * @param response
+	 * @return the value of a get
+	 * @throws KVException with the response if it is an error
+	 */
+	private static String checkResponse(String msgType, KVMessage response) throws KVException {
+		if (msgType.equals(KVMessage.GETTYPE)) {
+			if (response.getMessage()!=null) {
+				DEBUG.debug("Get request failed. Error message from server: "+ response.getMessage());
+				throw new KVException(response);
+			} else {
+				DEBUG.debug("Get request succeeded. Value is "+response.getValue());
+				return response.getValue(); 
+			}
 		}
 		
-		this.closeHost(sock);
-	
-		if (!response.getMessage().equals("Success")){
-			DEBUG.debug("Del request failed. Error message from server: "+ response.getMessage());
+		String request = msgType.equals(KVMessage.PUTTYPE) ? "Put" : msgType.equals(KVMessage.DELTYPE) ? "Del" : "IgnoreNext";
+		if (!"Success".equals(response.getMessage())) {
+			DEBUG.debug(request+" request failed. Error message from server: "+ response.getMessage());
 			throw new KVException(response);
 		} else {
-			DEBUG.debug("Del request succeeded");
+			DEBUG.debug(request+" request succeeded");
 		}
+		return null;
 	}
 	
 	/**
-	 * send ignoreNext to the server
+	 * Send a put <key, value> request to server
+	 * @param key
+	 * @param value
 	 * @throws KVException
 	 */
-	public void ignoreNext() throws KVException {
-		Socket sock = this.connectHost();
-		
-		OutputStream out = null;
-		InputStream in = null;
-		try {
-			out = sock.getOutputStream();
-		} catch (IOException e1) {
-			DEBUG.debug("Could not open outputstream");
-			e1.printStackTrace();
-			throw new KVException(new KVMessage(KVMessage.RESPTYPE, "Network Error: Could not send data"));
-		}
+	public void put(String key, String value) throws KVException {
+		this.putAsync(key, value).get();
+	}
+	
+	/**
+	 * Send a put <key, value> request to server, without waiting for the response on a persistent connection
+	 * @param key
+	 * @param value
+	 * @return the response, whose get() returns null or throws the error of put()
+	 * @throws KVException if the request could not be sent
+	 */
+	public Response putAsync(String key, String value) throws KVException {
 		
-		try {
-			in = sock.getInputStream();
-		} catch (IOException e1) {
-			DEBUG.debug("Could not open input stream");
-			e1.printStackTrace();
-			throw new KVException(new KVMessage(KVMessage.RESPTYPE, "Network Error: Could not receive data"));
-		}
+		//sanity check of key and value
+		CheckHelper.sanityCheckKeyValue(key, value);
 		
-		KVMessage msg = new KVMessage(KVMessage.IGNORENEXTTYPE);
+		KVMessage msg = new KVMessage(KVMessage.PUTTYPE);
+		msg.setKey(key);
+		msg.setValue(value);
 		
-		PrintWriter writer = new PrintWriter(out, true);
-		writer.println(msg.toXML());
+		return this.sendAsync(msg);
+	}
 
-		try {
-			sock.shutdownOutput();
-		} catch (IOException e) {
-			DEBUG.debug("could not close output stream");
-			e.printStackTrace();
-			throw new KVException(new KVMessage(KVMessage.RESPTYPE, "Unknown Error: Could not close the output stream of the socket"));
-		}
+	public String get(String key) throws KVException {
+		return this.getAsync(key).get();
+	}
+	
+	/**
+	 * Send a get request to server, without waiting for the response on a persistent connection
+	 * @param key
+	 * @return the response, whose get() returns the value or throws the error of get()
+	 * @throws KVException if the request could not be sent
+	 */
+	public Response getAsync(String key) throws KVException {
 		
-		DEBUG.debug(String.format("ignoreNext request was sent, waiting for response"));
+		//sanity check on key
+		CheckHelper.sanityCheckKey(key);
 		
-		KVMessage response = new KVMessage(in);
+		KVMessage msg = new KVMessage(KVMessage.GETTYPE);
+		msg.setKey(key);
 		
-		try {
-			in.close();
-		} catch (IOException e) {
-			DEBUG.debug("cannot close input stream");
-			e.printStackTrace();
-			throw new KVException(new KVMessage(KVMessage.RESPTYPE, "Unknown Error: Could not close the input stream of the socket"));
-		}
+		return this.sendAsync(msg);
+	}
+	
+	public void del(String key) throws KVException {
+		this.delAsync(key).get();
+	}
+	
+	/**
+	 * Send a del request to server, without waiting for the response on a persistent connection
+	 * @param key
+	 * @return the response, whose get() returns null or throws the error of del()
+	 * @throws KVException if the request could not be sent
+	 */
+	public Response delAsync(String key) throws KVException {
+		CheckHelper.sanityCheckKey(key);
 		
-		this.closeHost(sock);
+		KVMessage msg = new KVMessage(KVMessage.DELTYPE);
+		msg.setKey(key);
+		
+		return this.sendAsync(msg);
+	}
 	
-		if (!response.getMessage().equals("Success")){
-			DEBUG.debug("IgnoreNext request failed. Error message from server: "+ response.getMessage());
-			throw new KVException(response);
-		} else {
-			DEBUG.debug("IgnoreNext request succeeded");
-		}
+	/**
+	 * send ignoreNext to the server
+	 * @throws KVException
+	 */
+	public void ignoreNext() throws KVException {
+		KVMessage msg = new KVMessage(KVMessage.IGNORENEXTTYPE);
+		
+		KVMessage response = this.sendRequest(msg);
+		checkResponse(msg.getMsgType(), response);
 	}
 }
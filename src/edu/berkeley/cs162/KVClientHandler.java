@@ -31,17 +31,29 @@
 package edu.berkeley.cs162;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
 
 /**
  * This NetworkHandler will asynchronously handle the socket connections. 
  * It uses a threadpool to ensure that none of it's methods are blocking.
+ * As a FrameHandler, it handles the messages that a NIOSocketServer receives on the same threadpool.
  *
  */
-public class KVClientHandler implements NetworkHandler {
+public class KVClientHandler implements NetworkHandler, FrameHandler {
+	/**
+	 * How long a persistent connection is kept without a request, by default
+	 */
+	public static final int DEFAULT_IDLE_TIMEOUT = 60 * 1000;
+	
 	private ThreadPool threadpool = null;
     private TPCMaster tpcMaster = null;
+    private volatile boolean keepAlive = true;
+    private volatile int idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    //runs the connections instead of the threadpool, if set
+    private volatile Executor executor = null;
 	
 	public KVClientHandler(TPCMaster tpcMaster) {
 		initialize(1, tpcMaster);
@@ -56,16 +68,74 @@ public class KVClientHandler implements NetworkHandler {
         this.tpcMaster = tpcMaster; 
 	}
 	
+	/**
+	 * Keep alive the connections of clients that send framed XML or binary requests: after a response, the next
+	 * request is read from the same connection, until the client closes it or is idle for the idle timeout.
+	 * The requests of a connection are handled in order, so a client can pipeline them. While a persistent
+	 * connection waits for its next request, it holds a thread of its own rather than one of the thread pool,
+	 * which still handles the requests. On by default; plain XML requests always have a connection of their own.
+	 * @param keepAlive
+	 */
+	public void setKeepAlive(boolean keepAlive) {
+		this.keepAlive = keepAlive;
+	}
+	
+	/**
+	 * @param idleTimeout milliseconds that a persistent connection is kept without a request
+	 */
+	public void setIdleTimeout(int idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+	
+	/**
+	 * @return the threadpool that handles the connections, for its rejection policy and metrics
+	 */
+	public ThreadPool getThreadPool() {
+		return threadpool;
+	}
+	
+	/**
+	 * Handle each connection (or each message of a NIOSocketServer) on a virtual thread of its own instead of the
+	 * threadpool, so that connections that block on the TPCMaster, or that wait for their next request, do not
+	 * limit how many are served. See VirtualThreads for Java without virtual threads.
+	 * @param virtualThreads
+	 */
+	public void setVirtualThreads(boolean virtualThreads) {
+		this.executor = virtualThreads ? VirtualThreads.newThreadPerTaskExecutor("KVClientHandler") : null;
+	}
+	
+	private void execute(Runnable r) throws InterruptedException, KVException {
+		Executor executor = this.executor;
+		if (executor != null) {
+			executor.execute(r);
+		} else {
+			threadpool.addToQueue(r);
+		}
+	}
+	
 
 	private class ClientHandler implements Runnable, Debuggable {
-		private Socket client = null;
+		private KVConnection client = null;
 		private TPCMaster tpcMaster = null;
+		// The next request of a persistent connection, received by the waiter
+		private KVMessage next = null;
+		// Released when the thread pool has handled the next request
+		private Semaphore handled = null;
 		
 		/**
 		 * A Runnable to handle a single socket from a KVClient
 		 * @param client socket from a KVClient
 		 */
 		public ClientHandler(Socket client) {
+			//answers in the protocol of the request
+			this(new KVConnection(client));
+		}
+		
+		/**
+		 * A Runnable to handle a connection
+		 * @param client connection from a KVClient, or a message that a NIOSocketServer received
+		 */
+		public ClientHandler(KVConnection client) {
 			this.client = client;
 			this.tpcMaster = KVClientHandler.this.tpcMaster;
 		}
@@ -75,7 +145,7 @@ public class KVClientHandler implements NetworkHandler {
 				this.tpcMaster.performTPCOperation(msg, true);
 			} catch (KVException e) {
 				try {
-					e.getMsg().sendMessage(this.client);
+					this.client.send(e.getMsg());
 				} catch (KVException e1) {
 					DEBUG.debug("error happens when trying to send back error message");
 					e1.printStackTrace();
@@ -85,7 +155,7 @@ public class KVClientHandler implements NetworkHandler {
 			
 			try {
 				KVMessage successMsg = new KVMessage(KVMessage.RESPTYPE, "Success");
-				successMsg.sendMessage(this.client);
+				this.client.send(successMsg);
 
 			} catch(KVException e) {
 				DEBUG.debug("error happens when trying to send back success message");
@@ -98,7 +168,7 @@ public class KVClientHandler implements NetworkHandler {
 				this.tpcMaster.performTPCOperation(msg, false);
 			} catch (KVException e) {
 				try {
-					e.getMsg().sendMessage(this.client);
+					this.client.send(e.getMsg());
 				} catch (KVException e1) {
 					DEBUG.debug("error happens when trying to send back error message");
 					e1.printStackTrace();
@@ -108,7 +178,7 @@ public class KVClientHandler implements NetworkHandler {
 			
 			try {
 				KVMessage successMsg = new KVMessage(KVMessage.RESPTYPE, "Success");
-				successMsg.sendMessage(this.client);
+				this.client.send(successMsg);
 
 			} catch(KVException e) {
 				DEBUG.debug("error happens when trying to send back success message");
@@ -122,7 +192,7 @@ public class KVClientHandler implements NetworkHandler {
 				val = this.tpcMaster.handleGet(msg);
 			} catch (KVException e) {
 				try {
-					e.getMsg().sendMessage(this.client);
+					this.client.send(e.getMsg());
 				} catch (KVException e1) {
 					DEBUG.debug("error happens when trying to send back error message");
 					e1.printStackTrace();
@@ -145,7 +215,7 @@ public class KVClientHandler implements NetworkHandler {
 				}
 				successMsg.setKey(msg.getKey());
 				successMsg.setValue(val);
-				successMsg.sendMessage(this.client);
+				this.client.send(successMsg);
 
 			}catch (KVException e){
 				DEBUG.debug("error happens when trying to send back success message");
@@ -155,49 +225,132 @@ public class KVClientHandler implements NetworkHandler {
 		
 		@Override
 		public void run() {
+			if (this.client.getSocket() == null) {
+				//a message that a NIOSocketServer received, which reads the next one itself
+				this.handleRequest();
+				if (!this.client.isPersistent()) {
+					this.client.close();
+				}
+				return;
+			}
+			KVMessage msg = this.next;
+			this.next = null;
+			if (msg != null) {
+				//a request that the waiter received
+				this.dispatch(msg);
+				this.handled.release();
+				return;
+			}
+			if (this.handleRequest() && KVClientHandler.this.keepAlive && this.client.isPersistent()) {
+				this.handled = new Semaphore(0);
+				Runnable waitForRequests = new Runnable() {
+					public void run() {
+						ClientHandler.this.waitForRequests();
+					}
+				};
+				String name = "KVClientHandler-"+this.client.getSocket().getRemoteSocketAddress();
+				Thread waiter = KVClientHandler.this.executor != null ? VirtualThreads.newThread(waitForRequests, name) : new Thread(waitForRequests, name);
+				waiter.setDaemon(true);
+				waiter.start();
+			} else {
+				this.client.close();
+			}
+		}
+		
+		/**
+		 * Receive the requests of a persistent connection one after the other, and have the thread pool handle
+		 * each of them before receiving the next, until the client closes the connection or is idle
+		 */
+		private void waitForRequests() {
+			try {
+				this.client.getSocket().setSoTimeout(KVClientHandler.this.idleTimeout);
+				while (true) {
+					KVMessage msg;
+					try {
+						msg = this.client.receiveNext();
+					} catch (KVException e) {
+						this.sendError(e);
+						//a malformed frame is skipped, a malformed binary message cannot be
+						if (this.client.isPersistent()) {
+							continue;
+						}
+						break;
+					}
+					if (msg == null) {
+						break;
+					}
+					this.next = msg;
+					KVClientHandler.this.execute(this);
+					this.handled.acquireUninterruptibly();
+				}
+			} catch (SocketException e) {
+				//ignore this exception
+			} catch (KVException e) {
+				//the threadpool is full
+				this.sendError(e);
+			} catch (InterruptedException e) {
+				//ignore this exception
+			} finally {
+				this.client.close();
+			}
+		}
+		
+		/**
+		 * Handle the first request of the connection
+		 * @return whether the request was read to its end
+		 */
+		private boolean handleRequest() {
 			if (!this.tpcMaster.hasFinishedRegistration()){
 				try {
-					new KVMessage(KVMessage.RESPTYPE, "Unknown Error: the master server has not finished registration yet").sendMessage(this.client);
+					this.client.send(new KVMessage(KVMessage.RESPTYPE, "Unknown Error: the master server has not finished registration yet"));
 				} catch (KVException e1) {
 					DEBUG.debug("error happens when trying to send back error message");
 					e1.printStackTrace();
 				}
-				return;
+				return false;
 			}
 			
-			
+			KVMessage msg;
 			try {
-				KVMessage msg = new KVMessage(this.client);
-
-				DEBUG.debug(this.hashCode()+msg.toXML());
-				//get request
-				if (msg.getMsgType().equals(KVMessage.GETTYPE)) {
-					DEBUG.debug("Get a get request of key "+msg.getKey());
-					handleGet(msg);
-				
-				//put request	
-				} else if (msg.getMsgType().equals(KVMessage.PUTTYPE)) {
-					DEBUG.debug(String.format("Get a put request of key %s and value %s", msg.getKey(), msg.getValue()));
-					handlePut(msg);
-					
-				//del request	
-				} else if (msg.getMsgType().equals(KVMessage.DELTYPE)) {
-					DEBUG.debug("Get a del request of key "+msg.getKey());
-					handleDel(msg);
-			
-				//resp request
-				} else {
-					try {
-						new KVMessage(KVMessage.RESPTYPE, "Unknown Error: server received a response message").sendMessage(this.client);
-					} catch (KVException e1) {
-						DEBUG.debug("error happens when trying to send back error message");
-						e1.printStackTrace();
-					}
-				}
+				msg = this.client.receive();
 			} catch (KVException e) {
 				//exception when getting KVMessage from the socket's input stream
+				this.sendError(e);
+				return false;
+			}
+			this.dispatch(msg);
+			return true;
+		}
+		
+		private void sendError(KVException e) {
+			try {
+				this.client.send(e.getMsg());
+			} catch (KVException e1) {
+				DEBUG.debug("error happens when trying to send back error message");
+				e1.printStackTrace();
+			}
+		}
+		
+		private void dispatch(KVMessage msg) {
+			//get request
+			if (msg.getMsgType().equals(KVMessage.GETTYPE)) {
+				DEBUG.debug("Get a get request of key "+msg.getKey());
+				handleGet(msg);
+			
+			//put request	
+			} else if (msg.getMsgType().equals(KVMessage.PUTTYPE)) {
+				DEBUG.debug(String.format("Get a put request of key %s and value %s", msg.getKey(), msg.getValue()));
+				handlePut(msg);
+				
+			//del request	
+			} else if (msg.getMsgType().equals(KVMessage.DELTYPE)) {
+				DEBUG.debug("Get a del request of key "+msg.getKey());
+				handleDel(msg);
+		
+			//resp request
+			} else {
 				try {
-					e.getMsg().sendMessage(this.client);
+					this.client.send(new KVMessage(KVMessage.RESPTYPE, "Unknown Error: server received a response message"));
 				} catch (KVException e1) {
 					DEBUG.debug("error happens when trying to send back error message");
 					e1.printStackTrace();
@@ -213,10 +366,31 @@ public class KVClientHandler implements NetworkHandler {
 	public void handle(Socket client) throws IOException {
 		Runnable r = new ClientHandler(client);
 		try {
-			threadpool.addToQueue(r);
+			this.execute(r);
 		} catch (InterruptedException e) {
 			// Ignore this error
 			return;
+		} catch (KVException e) {
+			//the threadpool is full: the client learns it before its request is read
+			KVConnection conn = new KVConnection(client);
+			conn.sendIgnoringException(e.getMsg());
+			conn.close();
+		}
+	}
+	
+	/* (non-Javadoc)
+	 * @see edu.berkeley.cs162.FrameHandler#handle(edu.berkeley.cs162.KVConnection)
+	 */
+	@Override
+	public void handle(KVConnection client) {
+		Runnable r = new ClientHandler(client);
+		try {
+			this.execute(r);
+		} catch (InterruptedException e) {
+			client.close();
+		} catch (KVException e) {
+			client.sendIgnoringException(e.getMsg());
+			client.close();
 		}
 	}
 }
@@ -0,0 +1,415 @@
+package edu.berkeley.cs162;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+/**
+ * A socket that KVMessages are exchanged on, in XML, in framed XML or in the binary protocol of KVMessage.toBinary().
+ * The side that connects picks the protocol. The other side tells the protocol from the first byte of each
+ * message it receives and answers in the same one, so the protocol is negotiated per connection.
+ * A plain XML message ends with the output of the socket, so it is the only one on the connection. Framed XML
+ * (see KVMessage.FRAMED_XML_MARKER) and binary messages carry their own length, so a persistent connection can
+ * carry any number of them in each direction.
+ * A connection can also be made of streams, such as the message that a NIOSocketServer received and the stream
+ * that the response goes to, see KVConnection(InputStream, OutputStream).
+ */
+public class KVConnection implements Debuggable {
+	private final Socket socket;
+	private final OutputStream out;
+	private boolean binary;
+	private boolean framed;
+	private InputStream in = null;
+	//false once a message could not be read or sent to its end: what follows is not the start of a message.
+	//Written by the thread that sends as well as by the one that receives
+	private volatile boolean inSync = true;
+	//whether the connection ended or was reset before the last message that was waited for started
+	private boolean endedBeforeMessage = false;
+
+	/**
+	 * A connection that speaks XML until it receives a binary or framed message
+	 * @param socket
+	 */
+	public KVConnection(Socket socket) {
+		this(socket, false);
+	}
+
+	/**
+	 * @param socket
+	 * @param binary whether to send in the binary protocol
+	 */
+	public KVConnection(Socket socket, boolean binary) {
+		this(socket, binary, false);
+	}
+
+	/**
+	 * @param socket
+	 * @param binary whether to send in the binary protocol
+	 * @param framed whether to send XML in frames, if not binary
+	 */
+	public KVConnection(Socket socket, boolean binary, boolean framed) {
+		this.socket = socket;
+		this.out = null;
+		this.binary = binary;
+		this.framed = framed;
+	}
+
+	/**
+	 * A connection without a socket of its own. Plain XML ends the output by closing out, and so does close().
+	 * @param in to receive from, which is not closed
+	 * @param out to send to
+	 */
+	public KVConnection(InputStream in, OutputStream out) {
+		this.socket = null;
+		this.out = out;
+		this.binary = false;
+		this.framed = false;
+		//the XML parser closes its input, which must stay open
+		if (in.markSupported()) {
+			this.in = new FilterInputStream(in) {
+				@Override
+				public void close() {
+				}
+			};
+		} else {
+			this.in = new BufferedInputStream(in) {
+				@Override
+				public void close() {
+				}
+			};
+		}
+	}
+
+	/**
+	 * @return the socket, or null for a connection of streams
+	 */
+	public Socket getSocket() {
+		return this.socket;
+	}
+
+	public boolean isBinary() {
+		return this.binary;
+	}
+
+	public boolean isFramed() {
+		return this.framed;
+	}
+
+	/**
+	 * @return whether more messages can follow on this connection: its protocol delimits messages, and the
+	 * last one was read to its end
+	 */
+	public boolean isPersistent() {
+		return (this.binary || this.framed) && this.inSync;
+	}
+
+	/**
+	 * Whether a persistent connection that waits for its next exchange can be used: the socket is open, and
+	 * nothing arrived since the last message, which would be the answer to no request
+	 * @return
+	 */
+	public boolean isHealthy() {
+		if (!this.isPersistent() || this.socket == null || this.socket.isClosed() || this.socket.isInputShutdown() || this.socket.isOutputShutdown()) {
+			return false;
+		}
+		try {
+			return (this.in == null ? this.socket.getInputStream() : this.in).available() == 0;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Whether the last receive failed because the connection was closed or reset before a byte of the message
+	 * arrived, as when the other side closed a persistent connection while it was idle, rather than timing out or
+	 * breaking off in the middle of the message
+	 * @return
+	 */
+	public boolean isEndedBeforeMessage() {
+		return this.endedBeforeMessage;
+	}
+
+	/**
+	 * Receive a message in any protocol. Later messages are sent in the protocol of this one.
+	 * @return the message
+	 * @throws KVException if there is an error in parsing the message, see KVMessage(InputStream) and KVMessage.fromBinary()
+	 */
+	public KVMessage receive() throws KVException {
+		return this.receive(false);
+	}
+
+	/**
+	 * Wait for the next message on a persistent connection
+	 * @return the message, or null if the connection was closed, or timed out, before another message started
+	 * @throws KVException as receive()
+	 */
+	public KVMessage receiveNext() throws KVException {
+		return this.receive(true);
+	}
+
+	private KVMessage receive(boolean endAllowed) throws KVException {
+		int first;
+		this.endedBeforeMessage = false;
+		try {
+			if (this.in == null) {
+				//the XML parser closes its input, which must not close the socket
+				this.in = new BufferedInputStream(this.socket.getInputStream()) {
+					@Override
+					public void close() {
+					}
+				};
+			}
+			this.in.mark(1);
+			first = this.in.read();
+			if (first == -1) {
+				this.endedBeforeMessage = true;
+				if (endAllowed) {
+					return null;
+				}
+				//not an empty document for the parser
+				DEBUG.debug("Could not receive data");
+				throw new KVException(new KVMessage(KVMessage.RESPTYPE, "Network Error: Could not receive data"));
+			}
+			if (first != KVMessage.BINARY_MARKER && first != KVMessage.FRAMED_XML_MARKER) {
+				//part of the XML
+				this.in.reset();
+			}
+		} catch (SocketTimeoutException e) {
+			if (endAllowed) {
+				return null;
+			}
+			DEBUG.debug("Could not receive data");
+			throw new KVException(new KVMessage(KVMessage.RESPTYPE, "Network Error: Could not receive data"));
+		} catch (IOException e) {
+			this.endedBeforeMessage = true;
+			DEBUG.debug("Could not receive data");
+			throw new KVException(new KVMessage(KVMessage.RESPTYPE, "Network Error: Could not receive data"));
+		}
+
+		if (first == KVMessage.BINARY_MARKER) {
+			this.binary = true;
+			boolean read = false;
+			try {
+				KVMessage msg = KVMessage.fromBinary(this.in);
+				read = true;
+				return msg;
+			} finally {
+				//an error can leave the message half read
+				this.inSync = read;
+			}
+		}
+		this.binary = false;
+		if (first == KVMessage.FRAMED_XML_MARKER) {
+			this.framed = true;
+			return this.receiveFrame();
+		}
+		this.framed = false;
+		this.inSync = false;
+		return new KVMessage(this.in);
+	}
+
+	private KVMessage receiveFrame() throws KVException {
+		int length;
+		try {
+			length = new DataInputStream(this.in).readInt();
+		} catch (IOException e) {
+			this.inSync = false;
+			DEBUG.debug("Could not receive data");
+			throw new KVException(new KVMessage(KVMessage.RESPTYPE, "Network Error: Could not receive data"));
+		}
+		if (length < 0 || length > KVMessage.MAX_XML_FRAME) {
+			this.inSync = false;
+			throw new KVException(new KVMessage(KVMessage.RESPTYPE, "Message format incorrect"));
+		}
+
+		FrameInputStream frame = new FrameInputStream(this.in, length);
+		KVException error = null;
+		KVMessage msg = null;
+		try {
+			msg = new KVMessage(frame);
+		} catch (KVException e) {
+			error = e;
+		}
+		//whatever the parser left of the frame, so that the next message can be read
+		try {
+			frame.skipRest();
+		} catch (IOException e) {
+			this.inSync = false;
+			if (error == null) {
+				DEBUG.debug("Could not receive data");
+				error = new KVException(new KVMessage(KVMessage.RESPTYPE, "Network Error: Could not receive data"));
+			}
+		}
+		if (error != null) {
+			throw error;
+		}
+		return msg;
+	}
+
+	/**
+	 * The document of a framed XML message: ends after its length, and is not closed by the parser
+	 */
+	private static class FrameInputStream extends FilterInputStream {
+		private int remaining;
+
+		FrameInputStream(InputStream in, int length) {
+			super(in);
+			this.remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (this.remaining == 0) {
+				return -1;
+			}
+			int b = super.read();
+			if (b == -1) {
+				throw new IOException("truncated frame");
+			}
+			this.remaining--;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (this.remaining == 0) {
+				return -1;
+			}
+			int n = super.read(b, off, Math.min(len, this.remaining));
+			if (n == -1) {
+				throw new IOException("truncated frame");
+			}
+			this.remaining -= n;
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(Math.min(n, this.remaining));
+			this.remaining -= skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return Math.min(super.available(), this.remaining);
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+		@Override
+		public void close() {
+		}
+
+		void skipRest() throws IOException {
+			while (this.remaining > 0) {
+				//skip() may skip nothing before the end of the stream, read() tells
+				if (this.skip(this.remaining) == 0) {
+					this.read();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Send a message in the protocol of the connection. After a plain XML message, the output of the socket is shut down.
+	 * @param msg
+	 * @throws KVException if the message is not valid, and then nothing was sent, or could not be sent, and then
+	 * the connection is no longer persistent
+	 */
+	public void send(KVMessage msg) throws KVException {
+		//an invalid message fails before anything is written
+		byte[] bytes = this.binary ? msg.toBinary() : null;
+		if (!this.binary) {
+			msg.fieldsToSend();
+		}
+
+		OutputStream out = this.out;
+		try {
+			if (out == null) {
+				out = this.socket.getOutputStream();
+			}
+		} catch (IOException e) {
+			DEBUG.debug("cannot open outputstream");
+			this.inSync = false;
+			throw new KVException(new KVMessage(KVMessage.RESPTYPE, "Network Error: Could not send data"));
+		}
+
+		if (this.binary) {
+			try {
+				out.write(bytes);
+				out.flush();
+			} catch (IOException e) {
+				DEBUG.debug("could not send the message");
+				this.inSync = false;
+				throw new KVException(new KVMessage(KVMessage.RESPTYPE, "Network Error: Could not send data"));
+			}
+			return;
+		}
+
+		try {
+			msg.writeXML(out, this.framed);
+		} catch (KVException e) {
+			//part of the message may have been written
+			this.inSync = false;
+			throw e;
+		}
+		if (this.framed) {
+			return;
+		}
+		try {
+			if (this.socket == null) {
+				this.out.close();
+			} else {
+				this.socket.shutdownOutput();
+			}
+		} catch (IOException e) {
+			DEBUG.debug("could not close the outputstream");
+			throw new KVException(new KVMessage(KVMessage.RESPTYPE, "Unknown Error: Could not close the output stream of the socket"));
+		}
+	}
+
+	/**
+	 * Calls send(msg), but ignores the errors
+	 * @param msg
+	 */
+	public void sendIgnoringException(KVMessage msg) {
+		try {
+			this.send(msg);
+		} catch (KVException e) {
+			//ignore this exception
+		}
+	}
+
+	/**
+	 * Send a resp message with the given message, ignoring the errors
+	 * @param message
+	 */
+	public void sendRespIgnoringException(String message) {
+		try {
+			this.send(new KVMessage(KVMessage.RESPTYPE, message));
+		} catch (KVException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public void close() {
+		try {
+			if (this.socket == null) {
+				this.out.close();
+				return;
+			}
+			this.socket.close();
+		} catch (IOException e) {
+			//ignore this exception
+		}
+	}
+}
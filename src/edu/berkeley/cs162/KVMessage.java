@@ -30,31 +30,35 @@
  */
 package edu.berkeley.cs162;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.CharConversionException;
+import java.io.DataInputStream;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PrintWriter;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.SequenceInputStream;
 import java.io.Serializable;
 import java.io.StringWriter;
+import java.io.Writer;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerConfigurationException;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NamedNodeMap;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
+import org.xml.sax.ErrorHandler;
 import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
 
 
 /**
@@ -76,6 +80,38 @@ public class KVMessage implements Serializable, Debuggable {
 	public static final int MAX_KEY_LENGTH = 256;
 	public static final int MAX_VALUE_LENGTH = 256*1024;
 	
+	/**
+	 * First byte of a message in the binary protocol, see toBinary(). An XML message cannot start with it.
+	 */
+	public static final int BINARY_MARKER = 0xB1;
+	
+	/**
+	 * First byte of a framed XML message: FRAMED_XML_MARKER, the length of the document (int), then the document.
+	 * Unlike a plain XML message, it does not need the end of the stream to delimit it. See writeXML(OutputStream, boolean).
+	 */
+	public static final int FRAMED_XML_MARKER = 0xB2;
+	
+	/**
+	 * Longest document that is accepted in a frame. A value takes at most 6 bytes per char in XML.
+	 */
+	public static final int MAX_XML_FRAME = MAX_VALUE_LENGTH * 8;
+	
+	//binary type codes are the indexes in this array
+	private static final String[] BINARY_TYPES = { GETTYPE, PUTTYPE, DELTYPE, RESPTYPE, READYTYPE, ABORTTYPE,
+		COMMITTYPE, ACKTYPE, REGISTERTYPE, IGNORENEXTTYPE };
+	//binary field flags
+	private static final int KEY_FIELD = 1;
+	private static final int VALUE_FIELD = 2;
+	private static final int MESSAGE_FIELD = 4;
+	//a tpcOpId that is the decimal of a non-negative long is sent as a varint, any other as a string
+	private static final int NUMERIC_OPID_FIELD = 8;
+	private static final int OPID_FIELD = 16;
+	//UTF-8 takes at most 3 bytes per char
+	private static final int MAX_BINARY_STRING = MAX_VALUE_LENGTH * 3;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	//ends an XML message, as println() did
+	private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+	
 	private static final long serialVersionUID = 6473128480951955693L;
 	
 	private String msgType = null;
@@ -152,6 +188,12 @@ public class KVMessage implements Serializable, Debuggable {
 				;
 	}
 	
+	/**
+	 * for fromBinary()
+	 */
+	private KVMessage() {
+	}
+	
 	/***
 	 * 
 	 * @param msgType
@@ -186,93 +228,362 @@ public class KVMessage implements Serializable, Debuggable {
 		this.msgHelper(input);
 	}
 	
+	/**
+	 * What msgHelper() checks of a received document: whether the document is a single KVMessage element in
+	 * UTF-8 and XML 1.0, the attributes of that element and the names of its child nodes (null for a node that
+	 * is not an element). texts[i] is the text of child i, or null unless it is an element with no attributes and
+	 * exactly one text node. Only the first 3 children are kept, no message has more.
+	 */
+	private static class ParsedXML {
+		boolean document;
+		int attributes;
+		String attrName;
+		String attrValue;
+		int children;
+		final String[] names = new String[3];
+		final String[] texts = new String[3];
+		
+		void addChild(String name, String text) {
+			if (this.children < this.names.length) {
+				this.names[this.children] = name;
+				this.texts[this.children] = text;
+			}
+			this.children++;
+		}
+	}
+	
+	//JDK property: the factory hands out its last reader again once that is closed, instead of a new one
+	private static final String REUSE_INSTANCE = "reuse-instance";
+	
+	//a factory is not documented to be thread-safe, and reuses its reader, so each thread has its own
+	private static final ThreadLocal<XMLInputFactory> INPUT_FACTORY = new ThreadLocal<XMLInputFactory>() {
+		@Override
+		protected XMLInputFactory initialValue() {
+			XMLInputFactory factory = XMLInputFactory.newInstance();
+			//names are compared as written, with their prefix, as the DOM parser did
+			factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.FALSE);
+			factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+			//CDATA is a node of its own, not text
+			if (factory.isPropertySupported(KVStore.REPORT_CDATA)) {
+				factory.setProperty(KVStore.REPORT_CDATA, Boolean.TRUE);
+			}
+			if (factory.isPropertySupported(REUSE_INSTANCE)) {
+				factory.setProperty(REUSE_INSTANCE, Boolean.TRUE);
+			}
+			return factory;
+		}
+	};
+	
+	//how much is read at a time while the declaration is parsed, so that little more than it is kept
+	private static final int DECLARATION_READ = 128;
+	
+	/**
+	 * Keeps the bytes that are read through it until stop() is called, so that they can be read again
+	 */
+	private static class DeclarationInputStream extends FilterInputStream {
+		private byte[] kept = new byte[DECLARATION_READ];
+		private int length = 0;
+		private boolean keeping = true;
+		
+		DeclarationInputStream(InputStream in) {
+			super(in);
+		}
+		
+		void stop() {
+			this.keeping = false;
+			this.kept = null;
+		}
+		
+		/**
+		 * @return the kept bytes, then the rest of the input
+		 */
+		InputStream replay() {
+			return new SequenceInputStream(new ByteArrayInputStream(this.kept, 0, this.length), this.in);
+		}
+		
+		private void keep(byte[] b, int off, int len) {
+			if (this.length + len > this.kept.length) {
+				this.kept = Arrays.copyOf(this.kept, Math.max(this.length + len, 2 * this.kept.length));
+			}
+			System.arraycopy(b, off, this.kept, this.length, len);
+			this.length += len;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0 && this.keeping) {
+				this.keep(new byte[] { (byte) b }, 0, 1);
+			}
+			return b;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (!this.keeping) {
+				return this.in.read(b, off, len);
+			}
+			int n = super.read(b, off, Math.min(len, DECLARATION_READ));
+			if (n > 0) {
+				this.keep(b, off, n);
+			}
+			return n;
+		}
+	}
+	
+	/**
+	 * The StAX parser only knows the IANA names of encodings, where the DOM parser that KVMessage used
+	 * to parse with also takes Java names such as "UTF8", and fails with an IOException on a name it does
+	 * not know. A document whose declaration the StAX parser rejects is given to the DOM parser, so that
+	 * it is reported as it was.
+	 * @param input whose declaration the StAX parser rejected
+	 * @return the message of the error of the document
+	 */
+	private static String declarationError(DeclarationInputStream input) {
+		try {
+			DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+			builder.setErrorHandler(new ErrorHandler() {
+				public void warning(SAXParseException e) {
+				}
+				
+				public void error(SAXParseException e) {
+				}
+				
+				public void fatalError(SAXParseException e) throws SAXException {
+					throw e;
+				}
+			});
+			builder.parse(input.replay());
+			//the document is read, but it is not in UTF-8
+			return "Message format incorrect";
+		} catch (ParserConfigurationException e) {
+			return "XML Error: Received unparseable message";
+		} catch (SAXException e) {
+			return "XML Error: Received unparseable message";
+		} catch (IOException e) {
+			//an unknown encoding, or the input failed
+			return "Network Error: Could not receive data";
+		}
+	}
+	
 	//initiate the KVMessage from a InputStream object
 	private void msgHelper(InputStream input) throws KVException{
-	  try {
-	        DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
-	        DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
-	        Document doc = dBuilder.parse(input);
-	        
-	        doc.getDocumentElement().normalize();
-	        
-	        //check doc structure
-	        checkDocStructure(doc);
-	        
-	        Node message = doc.getFirstChild();
-	        
-	        String type = checkKVMessageStructure(message);
-	        this.msgType = type;
-	        
-	        NodeList nodes = message.getChildNodes();
-	        //put or 2pc put
-	        if (type.equals(KVMessage.PUTTYPE)) {
-	          checkKeyNode(nodes.item(0));
-	          checkValNode(nodes.item(1));
-	          if (nodes.item(2)!=null){
-	        	  checkTPCOpIdNode(nodes.item(2));
-	          }
-	        } else if(type.equals(KVMessage.GETTYPE)) {
-	          checkKeyNode(nodes.item(0));
-	        
-	          //del or 2pc del
-	        } else if(type.equals(KVMessage.DELTYPE)) {
-	          checkKeyNode(nodes.item(0));
-	          if (nodes.item(1)!=null){
-	        	  this.checkTPCOpIdNode(nodes.item(1));
-	          }
-	         
-	        } else if (type.equals(KVMessage.RESPTYPE)){
-	          if (nodes.getLength() == 1) {
-	            checkMessageNode(nodes.item(0));
-	          } else if(nodes.getLength() == 2) {
-	            checkKeyNode(nodes.item(0));
-	            checkValNode(nodes.item(1));
-	          } else {
-	            throw new KVException(new KVMessage(KVMessage.RESPTYPE, "Message format incorrect"));
-	          }
-	        } else if(type.equals(KVMessage.REGISTERTYPE)){
-	        	checkMessageNode(nodes.item(0));
-	        } else if(type.equals(KVMessage.IGNORENEXTTYPE)){
-	        	if  (nodes.getLength()!=0){
-		            throw new KVException(new KVMessage(KVMessage.RESPTYPE, "Message format incorrect"));
-	        	}
-	        } else if(type.equals(KVMessage.ABORTTYPE)){
-	        	//decision
-	        	if (nodes.getLength()==1) {
-	        		checkTPCOpIdNode(nodes.item(0));
-	        	
-	        	//vote
-	        	}else if(nodes.getLength()==2) {
-	        		checkMessageNode(nodes.item(0));
-	        		checkTPCOpIdNode(nodes.item(1));
-	        	}else{
-		            throw new KVException(new KVMessage(KVMessage.RESPTYPE, "Message format incorrect"));
-	        	}
-	        } else if (type.equals(KVMessage.ACKTYPE)){
-        		checkTPCOpIdNode(nodes.item(0));
-	        } else if(type.equals(KVMessage.READYTYPE)){	        	
-        		checkTPCOpIdNode(nodes.item(0));
-	        }else if(type.equals(KVMessage.COMMITTYPE)){
-        		checkTPCOpIdNode(nodes.item(0));
-	        }
-  		} catch (ParserConfigurationException e) {
-  			//this should not happen
-  			DEBUG.debug("This should not happen");
-  			e.printStackTrace();
-  			throw new KVException( new KVMessage(KVMessage.RESPTYPE, "Unknown Error: this should not happen") );
-  		} catch (SAXException e) {
-  			//not a valid XML
-  			DEBUG.debug("Invalid XML");
-  			e.printStackTrace();
-  			throw new KVException( new KVMessage(KVMessage.RESPTYPE, "XML Error: Received unparseable message") );
-  		
-  		//IOException handles SocketTimeoutException
-  		} catch (IOException e) {
-  			//io error
-  			DEBUG.debug("Could not receive data");
-  			e.printStackTrace();
-  			throw new KVException( new KVMessage(KVMessage.RESPTYPE, "Network Error: Could not receive data") );
-  		} 
+		ParsedXML xml;
+		XMLStreamReader reader = null;
+		boolean reusable = false;
+		DeclarationInputStream declared = new DeclarationInputStream(input);
+		try {
+			reader = INPUT_FACTORY.get().createXMLStreamReader(declared);
+			declared.stop();
+			//a reader that has read an XML 1.1 document goes on parsing as XML 1.1 when it is reused
+			String version = reader.getVersion();
+			reusable = version == null || version.equals("1.0");
+			//the whole document is read before it is checked, so that invalid XML is reported as such
+			xml = parseXML(reader);
+		} catch (XMLStreamException e) {
+			//IOException handles SocketTimeoutException, but bytes that are not UTF-8 are invalid XML
+			Throwable cause = e.getNestedException();
+			if (cause instanceof IOException && !(cause instanceof CharConversionException)) {
+				//io error
+				DEBUG.debug("Could not receive data");
+				e.printStackTrace();
+				throw new KVException( new KVMessage(KVMessage.RESPTYPE, "Network Error: Could not receive data") );
+			}
+			//the reader fails on the declaration as it is created
+			if (reader == null) {
+				DEBUG.debug("Unsupported XML declaration");
+				throw new KVException( new KVMessage(KVMessage.RESPTYPE, declarationError(declared)) );
+			}
+			//not a valid XML
+			DEBUG.debug("Invalid XML");
+			e.printStackTrace();
+			throw new KVException( new KVMessage(KVMessage.RESPTYPE, "XML Error: Received unparseable message") );
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (XMLStreamException e) {
+					//the input is not closed by the reader anyway
+				}
+			}
+			if (!reusable) {
+				INPUT_FACTORY.remove();
+			}
+		}
+		
+		if (!xml.document)
+			throw new KVException( new KVMessage(KVMessage.RESPTYPE,"Message format incorrect"));
+		
+		String type = checkKVMessageStructure(xml);
+		this.msgType = type;
+		
+		//put or 2pc put
+		if (type.equals(KVMessage.PUTTYPE)) {
+			this.key = nodeText(xml, 0);
+			CheckHelper.sanityCheckKey(this.key);
+			this.value = nodeText(xml, 1);
+			CheckHelper.sanityCheckValue(this.value);
+			if (xml.children == 3) {
+				this.tpcOpId = nodeText(xml, 2);
+			}
+		} else if (type.equals(KVMessage.GETTYPE)) {
+			this.key = nodeText(xml, 0);
+			CheckHelper.sanityCheckKey(this.key);
+		
+		//del or 2pc del
+		} else if (type.equals(KVMessage.DELTYPE)) {
+			this.key = nodeText(xml, 0);
+			CheckHelper.sanityCheckKey(this.key);
+			if (xml.children == 2) {
+				this.tpcOpId = nodeText(xml, 1);
+			}
+		} else if (type.equals(KVMessage.RESPTYPE)) {
+			if (xml.children == 1) {
+				this.message = nodeText(xml, 0);
+			} else {
+				this.key = nodeText(xml, 0);
+				CheckHelper.sanityCheckKey(this.key);
+				this.value = nodeText(xml, 1);
+				CheckHelper.sanityCheckValue(this.value);
+			}
+		} else if (type.equals(KVMessage.REGISTERTYPE)) {
+			this.message = nodeText(xml, 0);
+		} else if (type.equals(KVMessage.ABORTTYPE)) {
+			//decision
+			if (xml.children == 1) {
+				this.tpcOpId = nodeText(xml, 0);
+			
+			//vote
+			} else {
+				this.message = nodeText(xml, 0);
+				this.tpcOpId = nodeText(xml, 1);
+			}
+		} else if (!type.equals(KVMessage.IGNORENEXTTYPE)) {
+			//ready, commit and ack
+			this.tpcOpId = nodeText(xml, 0);
+		}
+	}
+	
+	/**
+	 * Read a document into a ParsedXML. Whitespace around the element is not a node, as for the DOM parser.
+	 * @param reader at the start of the document
+	 * @return
+	 * @throws XMLStreamException if the document is not well-formed, or could not be read
+	 */
+	private static ParsedXML parseXML(XMLStreamReader reader) throws XMLStreamException {
+		ParsedXML xml = new ParsedXML();
+		xml.document = "UTF-8".equals(reader.getCharacterEncodingScheme()) && "1.0".equals(reader.getVersion());
+		while (reader.hasNext()) {
+			switch (reader.next()) {
+			case XMLStreamConstants.START_ELEMENT:
+				//the document element; a well-formed document has no other one
+				xml.document &= reader.getLocalName().equals("KVMessage");
+				xml.attributes = reader.getAttributeCount();
+				if (xml.attributes == 1) {
+					//the prefix is only split from attribute names
+					String prefix = reader.getAttributePrefix(0);
+					xml.attrName = prefix == null || prefix.length() == 0 ? reader.getAttributeLocalName(0)
+							: prefix + ":" + reader.getAttributeLocalName(0);
+					xml.attrValue = reader.getAttributeValue(0);
+				}
+				parseChildren(reader, xml);
+				break;
+			case XMLStreamConstants.CHARACTERS:
+			case XMLStreamConstants.SPACE:
+			case XMLStreamConstants.END_DOCUMENT:
+				break;
+			default:
+				//a comment, processing instruction or DTD is another child of the document
+				xml.document = false;
+			}
+		}
+		return xml;
+	}
+	
+	/**
+	 * Read the children of the KVMessage element
+	 * @param reader at the start of the element, left at its end
+	 * @param xml
+	 * @throws XMLStreamException
+	 */
+	private static void parseChildren(XMLStreamReader reader, ParsedXML xml) throws XMLStreamException {
+		boolean inText = false;
+		while (true) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.END_ELEMENT) {
+				return;
+			}
+			if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.SPACE) {
+				//consecutive character events are one text node
+				if (!inText) {
+					xml.addChild(null, null);
+				}
+				inText = true;
+				continue;
+			}
+			inText = false;
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				String name = reader.getLocalName();
+				xml.addChild(name, parseText(reader));
+			} else {
+				xml.addChild(null, null);
+			}
+		}
+	}
+	
+	/**
+	 * Read a child of the KVMessage element
+	 * @param reader at the start of the child, left at its end
+	 * @return the text of the child, or null unless it has no attributes and exactly one text node
+	 * @throws XMLStreamException
+	 */
+	private static String parseText(XMLStreamReader reader) throws XMLStreamException {
+		boolean valid = reader.getAttributeCount() == 0;
+		String text = null;
+		//only when the text comes in several events
+		StringBuilder builder = null;
+		int nodes = 0;
+		boolean inText = false;
+		while (true) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.END_ELEMENT) {
+				break;
+			}
+			if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.SPACE) {
+				if (!inText) {
+					nodes++;
+					text = reader.getText();
+				} else {
+					if (builder == null) {
+						builder = new StringBuilder(text);
+					}
+					builder.append(reader.getText());
+				}
+				inText = true;
+				continue;
+			}
+			inText = false;
+			nodes++;
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				skipElement(reader);
+			}
+		}
+		if (!valid || nodes != 1 || text == null) {
+			return null;
+		}
+		return builder == null ? text : builder.toString();
+	}
+	
+	private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+		int depth = 1;
+		while (depth > 0) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				depth++;
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
+			}
+		}
 	}
 	
 	/**
@@ -314,539 +625,482 @@ public class KVMessage implements Serializable, Debuggable {
 	}
 	
 	/**
-	 * Check messageNode structure( no attribute and a child of Document.TEXT_NODE). Will set this.message if the node is valid.
-	 * @param keyNode
+	 * Check a child of KVMessage ( no attribute and a child of Document.TEXT_NODE).
+	 * @param xml
+	 * @param i
+	 * @return the text of the child
 	 * @throws KVException
 	 */
-	private void checkMessageNode(Node messageNode) throws KVException {
-		if (messageNode.getAttributes().getLength()!=0)
+	private static String nodeText(ParsedXML xml, int i) throws KVException {
+		String text = xml.texts[i];
+		if (text == null)
 			throw new KVException( new KVMessage(KVMessage.RESPTYPE, "Message format incorrect") );
-
-		NodeList nodes = messageNode.getChildNodes();
-		if (nodes.getLength()!=1 || nodes.item(0).getNodeType()!=Document.TEXT_NODE)
-			throw new KVException( new KVMessage(KVMessage.RESPTYPE, "Message format incorrect") );
-
-		String message = messageNode.getFirstChild().getTextContent();
-		this.message = message;
+		return text;
 	}
 	
 	/**
-	 * Check keynode structure( no attribute and a child of Document.TEXT_NODE). Will set this.key if the node is valid.
-	 * @param keyNode
-	 * @throws KVException
-	 */
-	private void checkKeyNode(Node keyNode) throws KVException {
-		if (keyNode.getAttributes().getLength()!=0)
-			throw new KVException( new KVMessage(KVMessage.RESPTYPE, "Message format incorrect") );
-
-		NodeList nodes = keyNode.getChildNodes();
-		if ( nodes.getLength()!=1 || nodes.item(0).getNodeType()!=Document.TEXT_NODE)
-			throw new KVException( new KVMessage(KVMessage.RESPTYPE, "Message format incorrect") );
-
-		String key = keyNode.getFirstChild().getTextContent();
-		
-		CheckHelper.sanityCheckKey(key);
-		
-		this.key = key;
-	}
-	
-	/**
-	 * Check TPCOpId Node structure( no attribute and a child of Document.TEXT_NODE). Will set this.value if the node is valid.
-	 * @param keyNode
-	 * @throws KVException
-	 */
-	private void checkTPCOpIdNode(Node tNode) throws KVException {
-		if (tNode.getAttributes().getLength()!=0)
-			throw new KVException( new KVMessage(KVMessage.RESPTYPE, "Message format incorrect") );
-
-		NodeList nodes = tNode.getChildNodes();
-		if (nodes.getLength()!=1 || nodes.item(0).getNodeType()!=Document.TEXT_NODE)
-			throw new KVException( new KVMessage(KVMessage.RESPTYPE, "Message format incorrect") );
-
-		String tpcOpId = tNode.getFirstChild().getTextContent();
-		
-		this.tpcOpId = tpcOpId;
-	}
-	
-	/**
-	 * Check valNode structure( no attribute and a child of Document.TEXT_NODE). Will set this.value if the node is valid.
-	 * @param keyNode
-	 * @throws KVException
-	 */
-	private void checkValNode(Node valNode) throws KVException {
-		if (valNode.getAttributes().getLength()!=0)
-			throw new KVException( new KVMessage(KVMessage.RESPTYPE, "Message format incorrect") );
-
-		NodeList nodes = valNode.getChildNodes();
-		if (nodes.getLength()!=1 || nodes.item(0).getNodeType()!=Document.TEXT_NODE)
-			throw new KVException( new KVMessage(KVMessage.RESPTYPE, "Message format incorrect") );
-
-		String val = valNode.getFirstChild().getTextContent();
-		
-		CheckHelper.sanityCheckValue(val);
-
-		this.value = val;
-	}
-	
-	/**
-	 * Check attributes of KVMessage( should only have one attribute type, which is one of the 4 types),
+	 * Check attributes of KVMessage( should only have one attribute type, which is one of the known types),
 	 * and check structure of KVMessage according to type (number and names of children).
-	 * @param messageNode
+	 * @param xml
 	 * @return type of the KVmessage
 	 * @throws KVException
 	 */
-	private String checkKVMessageStructure(Node messageNode) throws KVException {
-		NamedNodeMap attrs = messageNode.getAttributes();
-		
-		if (attrs.getLength()!=1)
-			throw new KVException(new KVMessage(KVMessage.RESPTYPE, "Message format incorrect") );
-
-		Node attr = attrs.item(0);
-		String attrName = attr.getNodeName();
-		String attrValue = attr.getNodeValue();
-		if (!attrName.equals("type"))
+	private static String checkKVMessageStructure(ParsedXML xml) throws KVException {
+		if (xml.attributes!=1 || !xml.attrName.equals("type"))
 			throw new KVException(new KVMessage(KVMessage.RESPTYPE, "Message format incorrect") );
-				
-		if (attrValue.equals(KVMessage.PUTTYPE)) {
-			checkPutTypeMessage(messageNode);
-		} else if (attrValue.equals(KVMessage.GETTYPE)) {
-			checkGetTypeMessage(messageNode);
-		} else if(attrValue.equals(KVMessage.DELTYPE)) {
-			checkDelTypeMessage(messageNode);
-		} else if(attrValue.equals(KVMessage.RESPTYPE)) {
-			checkRespTypeMessage(messageNode);
-		} else if(attrValue.equals(KVMessage.READYTYPE)) {
-			checkReadyTypeMessage(messageNode);
-		} else if(attrValue.equals(KVMessage.ABORTTYPE)) {
-			checkAbortTypeMessage(messageNode);		
-		} else if(attrValue.equals(KVMessage.COMMITTYPE)) {
-			checkCommitTypeMessage(messageNode);
-		} else if(attrValue.equals(KVMessage.ACKTYPE)) {
-			checkAckTypeMessage(messageNode);
-		} else if(attrValue.equals(KVMessage.REGISTERTYPE)) {
-			checkRegisterTypeMessage(messageNode);
-		} else if(attrValue.equals(KVMessage.IGNORENEXTTYPE)) {
-			checkIgnoreNextTypeMessage(messageNode);
+		
+		String type = xml.attrValue;
+		int l = xml.children;
+		String[] names = xml.names;
+		boolean valid;
+		if (type.equals(KVMessage.PUTTYPE)) {
+			//put or 2pc put
+			valid = (l==2 || l==3) && "Key".equals(names[0]) && "Value".equals(names[1])
+					&& (l==2 || "TPCOpId".equals(names[2]));
+		} else if (type.equals(KVMessage.GETTYPE)) {
+			valid = l==1 && "Key".equals(names[0]);
+		} else if (type.equals(KVMessage.DELTYPE)) {
+			//del or 2pc del
+			valid = (l==1 || l==2) && "Key".equals(names[0]) && (l==1 || "TPCOpId".equals(names[1]));
+		} else if (type.equals(KVMessage.RESPTYPE)) {
+			//a message, or a key and a value
+			valid = (l==1 && "Message".equals(names[0]))
+					|| (l==2 && "Key".equals(names[0]) && "Value".equals(names[1]));
+		} else if (type.equals(KVMessage.ABORTTYPE)) {
+			//decision or vote
+			valid = (l==1 && "TPCOpId".equals(names[0]))
+					|| (l==2 && "Message".equals(names[0]) && "TPCOpId".equals(names[1]));
+		} else if (type.equals(KVMessage.ACKTYPE)) {
+			valid = l==1 && ("TPCOpId".equals(names[0]) || "message".equals(names[0]));
+		} else if (type.equals(KVMessage.READYTYPE) || type.equals(KVMessage.COMMITTYPE)) {
+			valid = l==1 && "TPCOpId".equals(names[0]);
+		} else if (type.equals(KVMessage.REGISTERTYPE)) {
+			valid = l==1 && "Message".equals(names[0]);
+		} else if (type.equals(KVMessage.IGNORENEXTTYPE)) {
+			valid = l==0;
 		} else {
-			throw new KVException( new KVMessage(KVMessage.RESPTYPE, "Message format incorrect") );
+			valid = false;
 		}
-		return attrValue;
-	}
-	
-	/**
-	 * check if messageNode is a valid ignoreNext message.
-	 * @param messageNode
-	 * @throws KVException
-	 */
-	private void checkIgnoreNextTypeMessage(Node messageNode) throws KVException {
-		NodeList nodes = messageNode.getChildNodes();
-		int l = nodes.getLength();	
-		
-		if (l!=0)
-			throw new KVException( new KVMessage(KVMessage.RESPTYPE, "Message format incorrect") );	
-	}
-	
-	/**
-	 * check if messageNode is a valid register message.
-	 * @param messageNode
-	 * @throws KVException
-	 */
-	private void checkRegisterTypeMessage(Node messageNode) throws KVException {
-		NodeList nodes = messageNode.getChildNodes();
-		int l = nodes.getLength();	
-		
-		if (l!=1)
-			throw new KVException( new KVMessage(KVMessage.RESPTYPE, "Message format incorrect") );
-
-		Node message = nodes.item(0);
-
-		if (!message.getNodeName().equals("Message"))
+		if (!valid)
 			throw new KVException( new KVMessage(KVMessage.RESPTYPE, "Message format incorrect") );
+		return type;
 	}
 	
 	/**
-	 * check if messageNode is a valid ack(registration, 2pc or ignorenext) message.
-	 * @param messageNode
-	 * @throws KVException
+	 * Copy constructor
+	 * 
+	 * @param kvm
 	 */
-	private void checkAckTypeMessage(Node messageNode) throws KVException {
-		NodeList nodes = messageNode.getChildNodes();
-		int l = nodes.getLength();	
-		
-		if (l!=1)
-			throw new KVException( new KVMessage(KVMessage.RESPTYPE, "Message format incorrect") );
-
-		Node n = nodes.item(0);
-
-		if (!n.getNodeName().equals("TPCOpId") && !n.getNodeName().equals("message"))
-			throw new KVException( new KVMessage(KVMessage.RESPTYPE, "Message format incorrect") );
+	public KVMessage(KVMessage kvm) {
+		this.msgType = kvm.msgType;
+		this.key = kvm.key;
+		this.value = kvm.value;
+		this.message = kvm.message;
+		this.tpcOpId = kvm.tpcOpId;
 	}
-	
-	/**
-	 * check if messageNode is a valid ready message.
-	 * @param messageNode
-	 * @throws KVException
-	 */
-	private void checkReadyTypeMessage(Node messageNode) throws KVException {
-		NodeList nodes = messageNode.getChildNodes();
-		int l = nodes.getLength();	
-		
-		if (l!=1)
-			throw new KVException( new KVMessage(KVMessage.RESPTYPE, "Message format incorrect") );
 
-		Node tpcOpId = nodes.item(0);
-
-		if (!tpcOpId.getNodeName().equals("TPCOpId"))
-			throw new KVException( new KVMessage(KVMessage.RESPTYPE, "Message format incorrect") );
-	}
+	//a buffer that outgrows this is not kept
+	private static final int SEND_BUFFER_KEPT = 64 * 1024;
 	
-	/**
-	 * check if messageNode is a valid commit message.
-	 * @param messageNode
-	 * @throws KVException
-	 */
-	private void checkCommitTypeMessage(Node messageNode) throws KVException {
-		NodeList nodes = messageNode.getChildNodes();
-		int l = nodes.getLength();	
+	//placeholder for the length of a frame
+	private static final byte[] FRAME_LENGTH = new byte[4];
+	
+	private static class FrameBuffer extends ByteArrayOutputStream {
+		FrameBuffer() {
+			super(1024);
+		}
 		
-		if (l!=1)
-			throw new KVException( new KVMessage(KVMessage.RESPTYPE, "Message format incorrect") );
-
-		Node tpcOpId = nodes.item(0);
-
-		if (!tpcOpId.getNodeName().equals("TPCOpId"))
-			throw new KVException( new KVMessage(KVMessage.RESPTYPE, "Message format incorrect") );
+		/**
+		 * Fill in the length of the frame that the buffer holds
+		 */
+		void setFrameLength() {
+			int length = this.count - 1 - FRAME_LENGTH.length;
+			this.buf[1] = (byte) (length >>> 24);
+			this.buf[2] = (byte) (length >>> 16);
+			this.buf[3] = (byte) (length >>> 8);
+			this.buf[4] = (byte) length;
+		}
 	}
 	
 	/**
-	 * check if messageNode is a valid abort (voting/decision) message.
-	 * @param messageNode
-	 * @throws KVException
+	 * The UTF-8 bytes of an XML message being sent, and the writer that encodes into them
 	 */
-	private void checkAbortTypeMessage(Node messageNode) throws KVException {
-		NodeList nodes = messageNode.getChildNodes();
-		int l = nodes.getLength();	
-
-		//desicion abort
-		if (l==1){
-			Node tpcOpId = nodes.item(0);
-			
-			if (!tpcOpId.getNodeName().equals("TPCOpId"))
-				throw new KVException( new KVMessage(KVMessage.RESPTYPE, "Message format incorrect") );		
-
-		//voting abort
-		}else if(l==2){
-			Node tpcOpId = nodes.item(1);
-			Node msg = nodes.item(0);
-			
-			if (!msg.getNodeName().equals("Message") || !tpcOpId.getNodeName().equals("TPCOpId")) 
-				throw new KVException( new KVMessage(KVMessage.RESPTYPE, "Message format incorrect") );
-			
-		}else{
-			throw new KVException( new KVMessage(KVMessage.RESPTYPE, "Message format incorrect") );
-		}
+	private static class SendBuffer {
+		final FrameBuffer bytes = new FrameBuffer();
+		final Writer writer = new OutputStreamWriter(this.bytes, UTF8);
 	}
 	
-	/**
-	 * check if messageNode is a resp type message( either a messageNode or a keyNode & valueNode)
-	 * @param messageNode
-	 * @throws KVException
-	 */
-	private void checkRespTypeMessage(Node messageNode) throws KVException {
-		NodeList nodes = messageNode.getChildNodes();
-			
-		if (nodes.getLength() == 1) {
-			Node message = nodes.item(0);
-			
-			if (!message.getNodeName().equals("Message"))
-				throw new KVException( new KVMessage(KVMessage.RESPTYPE, "Message format incorrect") );
-		} else if (nodes.getLength() == 2) {
-			Node keyNode = nodes.item(0);
-			Node valNode = nodes.item(1);
-
-			if (!keyNode.getNodeName().equals("Key") || !valNode.getNodeName().equals("Value"))
-				throw new KVException( new KVMessage(KVMessage.RESPTYPE, "Message format incorrect") );
-		} else {
-			throw new KVException( new KVMessage(KVMessage.RESPTYPE, "Message format incorrect") );
+	private static final ThreadLocal<SendBuffer> SEND_BUFFER = new ThreadLocal<SendBuffer>() {
+		@Override
+		protected SendBuffer initialValue() {
+			return new SendBuffer();
 		}
-	}
+	};
 	
 	/**
-	 * check if messageNode is a valid Del/2PCDel message.
-	 * @param messageNode
-	 * @throws KVException
+	 * Generate the XML representation for this message.
+	 * @return the XML String
+	 * @throws KVException if not enough data is available to generate a valid KV XML message
 	 */
-	private void checkDelTypeMessage(Node messageNode) throws KVException {
-		NodeList nodes = messageNode.getChildNodes();
-		int l = nodes.getLength();	
-		
-		if (l!=1 && l!=2)
-			throw new KVException( new KVMessage(KVMessage.RESPTYPE, "Message format incorrect") );
-
-		Node key = nodes.item(0);
-		
-		if (!key.getNodeName().equals("Key"))
-			throw new KVException( new KVMessage(KVMessage.RESPTYPE, "Message format incorrect") );
-
-		if (l==2){
-			Node tpcOpId = nodes.item(1);
-			if (!tpcOpId.getNodeName().equals("TPCOpId"))
-				throw new KVException( new KVMessage(KVMessage.RESPTYPE, "Message format incorrect") );
+	public String toXML() throws KVException {
+		StringWriter writer = new StringWriter();
+		try {
+			this.writeXML(writer);
+		} catch (IOException e) {
+			//a key, value or message that is not valid UTF-16
+			DEBUG.debug("this should not happen either");
+			e.printStackTrace();
+			throw new KVException( new KVMessage(KVMessage.RESPTYPE, "this should not happen"));
 		}
+		return writer.toString();
 	}
 	
 	/**
-	 * check if messageNode is a valid Get message ( 1 keyNode )
-	 * @param messageNode
-	 * @throws KVException
+	 * Write what toXML() returns and a line separator, with no intermediate String or DOM. The message is
+	 * encoded into a buffer of the thread and handed to out in one write.
+	 * @param out is flushed, not closed
+	 * @throws KVException if not enough data is available to generate a valid KV XML message, or if out fails
+	 * with the message "Network Error: Could not send data"
 	 */
-	private void checkGetTypeMessage(Node messageNode) throws KVException {
-    NodeList nodes = messageNode.getChildNodes();
-		
-		if (nodes.getLength()!=1)
-			throw new KVException( new KVMessage(KVMessage.RESPTYPE, "Message format incorrect") );
-
-		Node key = nodes.item(0);
-		
-		if (!key.getNodeName().equals("Key"))
-			throw new KVException( new KVMessage(KVMessage.RESPTYPE, "Message format incorrect") );
+	public void writeXML(OutputStream out) throws KVException {
+		this.writeXML(out, false);
 	}
 	
 	/**
-	 * Check if messageNode is a valid Put/2PC-put message.
-	 * @param messageNode
-	 * @throws KVException
+	 * Write the XML of this message, in a frame if framed (see FRAMED_XML_MARKER), with no intermediate String or DOM.
+	 * The message is encoded into a buffer of the thread and handed to out in one write.
+	 * @param out is flushed, not closed
+	 * @param framed
+	 * @throws KVException if not enough data is available to generate a valid KV XML message, or if out fails
+	 * with the message "Network Error: Could not send data"
 	 */
-	private void checkPutTypeMessage(Node messageNode) throws KVException {
-		NodeList nodes = messageNode.getChildNodes();
-		
-		int l = nodes.getLength();
-		
-		if (l!=2 && l!=3)
-			throw new KVException( new KVMessage(KVMessage.RESPTYPE, "Message format incorrect") );
-
-		Node key = nodes.item(0);
-		Node value = nodes.item(1);
-		
-		if (!key.getNodeName().equals("Key") || !value.getNodeName().equals("Value")){
-			throw new KVException( new KVMessage(KVMessage.RESPTYPE, "Message format incorrect") );
+	public void writeXML(OutputStream out, boolean framed) throws KVException {
+		SendBuffer buffer = SEND_BUFFER.get();
+		boolean written = false;
+		try {
+			if (framed) {
+				//the length is filled in once the document is written
+				buffer.bytes.write(FRAMED_XML_MARKER);
+				buffer.bytes.write(FRAME_LENGTH, 0, FRAME_LENGTH.length);
+			}
+			this.writeXML(buffer.writer);
+			buffer.writer.write(LINE_SEPARATOR);
+			buffer.writer.flush();
+			if (framed) {
+				buffer.bytes.setFrameLength();
+			}
+			written = true;
+		} catch (CharConversionException e) {
+			DEBUG.debug("this should not happen either");
+			e.printStackTrace();
+			throw new KVException( new KVMessage(KVMessage.RESPTYPE, "this should not happen"));
+		} catch (IOException e) {
+			//not from a ByteArrayOutputStream
+			throw new KVException( new KVMessage(KVMessage.RESPTYPE, "this should not happen"));
+		} finally {
+			if (!written) {
+				//the writer may still hold part of the message
+				SEND_BUFFER.remove();
+			}
 		}
 		
-		if (l==3){
-			Node tpcOpId = nodes.item(2);
-			if (!tpcOpId.getNodeName().equals("TPCOpId"))
-				throw new KVException( new KVMessage(KVMessage.RESPTYPE, "Message format incorrect") );
+		try {
+			buffer.bytes.writeTo(out);
+			out.flush();
+		} catch (IOException e) {
+			DEBUG.debug("could not send the message");
+			throw new KVException(new KVMessage(KVMessage.RESPTYPE, "Network Error: Could not send data"));
+		} finally {
+			if (buffer.bytes.size() > SEND_BUFFER_KEPT) {
+				//do not hold on to the buffer of a large value
+				SEND_BUFFER.remove();
+			} else {
+				buffer.bytes.reset();
+			}
 		}
 	}
 	
 	/**
-	 * Check encoding, XML version, and structure(number and names of children). 
-	 * @param doc
-	 * @throws KVException
+	 * The document the identity Transformer made of this message: the declaration, then the KVMessage element
+	 * with the fields of fieldsToSend() in the order of the schema (Message, Key, Value, TPCOpId).
+	 * @param out
+	 * @throws KVException if not enough data is available to generate a valid KV XML message
+	 * @throws IOException
 	 */
-	private void checkDocStructure(Document doc) throws KVException {
-		//doc shoudl have only one child with name KVMessage	
-		if (!doc.getXmlEncoding().equals("UTF-8") 
-				|| !doc.getXmlVersion().equals("1.0")
-				|| doc.getChildNodes().getLength()!=1 
-				|| !doc.getFirstChild().getNodeName().equals("KVMessage"))
-			throw new KVException( new KVMessage(KVMessage.RESPTYPE,"Message format incorrect"));
+	private void writeXML(Writer out) throws KVException, IOException {
+		int fields = this.fieldsToSend();
+		XMLWriter xml = new XMLWriter(out);
+		xml.declaration();
+		if (fields == 0) {
+			xml.empty("KVMessage", "type", this.msgType);
+			return;
+		}
+		xml.start("KVMessage", "type", this.msgType);
+		if ((fields & MESSAGE_FIELD) != 0) {
+			xml.element("Message", this.message);
+		}
+		if ((fields & KEY_FIELD) != 0) {
+			xml.element("Key", this.key);
+		}
+		if ((fields & VALUE_FIELD) != 0) {
+			xml.element("Value", this.value);
+		}
+		if ((fields & (NUMERIC_OPID_FIELD | OPID_FIELD)) != 0) {
+			xml.element("TPCOpId", this.tpcOpId);
+		}
+		xml.end("KVMessage");
 	}
 	
 	/**
-	 * Copy constructor
-	 * 
-	 * @param kvm
+	 * Check that the message can be sent, as toXML() does
+	 * @return the fields that are sent for the type of this message
+	 * @throws KVException if not enough data is available to generate a valid message
 	 */
-	public KVMessage(KVMessage kvm) {
-		this.msgType = kvm.msgType;
-		this.key = kvm.key;
-		this.value = kvm.value;
-		this.message = kvm.message;
-		this.tpcOpId = kvm.tpcOpId;
-	}
-
-	private void xmlBuildHelperPut(Element root, Document doc) throws KVException{
-		CheckHelper.sanityCheckKeyValue(this.key, this.value);
-		
-		this.addKeyXml(root, doc);
-		this.addValueXml(root, doc);
-		//2PC put
-		if (this.tpcOpId!=null){
-			this.addTPCOpIdXml(root, doc);
+	int fieldsToSend() throws KVException {
+		if (this.msgType.equals(KVMessage.PUTTYPE)) {
+			CheckHelper.sanityCheckKeyValue(this.key, this.value);
+			return KEY_FIELD | VALUE_FIELD | this.opIdField();
+		} else if (this.msgType.equals(KVMessage.GETTYPE)) {
+			CheckHelper.sanityCheckKey(this.key);
+			return KEY_FIELD;
+		} else if (this.msgType.equals(KVMessage.DELTYPE)) {
+			CheckHelper.sanityCheckKey(this.key);
+			return KEY_FIELD | this.opIdField();
+		} else if (this.msgType.equals(KVMessage.RESPTYPE)) {
+			if (this.message != null) {
+				return MESSAGE_FIELD;
+			}
+			CheckHelper.sanityCheckKeyValue(this.key, this.value);
+			return KEY_FIELD | VALUE_FIELD;
+		} else if (this.msgType.equals(KVMessage.ABORTTYPE)) {
+			if (this.tpcOpId == null)
+				throw new KVException(new KVMessage("Unknown Error: not enough data to build XML"));
+			return (this.message != null ? MESSAGE_FIELD : 0) | this.opIdField();
+		} else if (this.msgType.equals(KVMessage.REGISTERTYPE)) {
+			if (this.message == null)
+				throw new KVException(new KVMessage("Unknown Error: not enough data to build XML"));
+			return MESSAGE_FIELD;
+		} else if (this.msgType.equals(KVMessage.IGNORENEXTTYPE)) {
+			return 0;
+		} else {
+			//ready, commit and ack
+			if (this.tpcOpId == null)
+				throw new KVException(new KVMessage("Unknown Error: not enough data to build XML"));
+			return this.opIdField();
 		}
 	}
-
-	private void addMessageXml(Element root, Document doc){
-		Element msgElement = doc.createElement("Message");
-		msgElement.appendChild(doc.createTextNode(this.message));
-		root.appendChild(msgElement);
-	}
-
-	private void addTPCOpIdXml(Element root, Document doc){
-		Element tElement = doc.createElement("TPCOpId");
-		tElement.appendChild(doc.createTextNode(this.tpcOpId));
-		root.appendChild(tElement);
-	}
-
-	private void addValueXml(Element root, Document doc){
-		Element valElement = doc.createElement("Value");
-		valElement.appendChild(doc.createTextNode(this.value));
-		root.appendChild(valElement);
-	}
-	
-	private void addKeyXml(Element root, Document doc){
-		Element keyElement = doc.createElement("Key");
-		keyElement.appendChild(doc.createTextNode(this.key));
-		root.appendChild(keyElement);
-	}
 	
-	private void xmlBuildHelperGet(Element root, Document doc) throws KVException{
-		CheckHelper.sanityCheckKey(this.key);
-		
-		this.addKeyXml(root, doc);
-	}
-	
-	private void xmlBuildHelperAbort(Element root, Document doc) throws KVException{
-		if (this.tpcOpId==null)
-			throw new KVException(new KVMessage("Unknown Error: not enough data to build XML"));
-		
-		if (this.message!=null){
-			this.addMessageXml(root, doc);
+	private int opIdField() {
+		if (this.tpcOpId == null) {
+			return 0;
 		}
-		
-		this.addTPCOpIdXml(root, doc);
-	}
-	
-	private void xmlBuildHelperCommit(Element root, Document doc) throws KVException{		
-		if (this.tpcOpId==null)
-			throw new KVException(new KVMessage("Unknown Error: not enough data to build XML"));
-
-		this.addTPCOpIdXml(root, doc);
+		try {
+			long id = Long.parseLong(this.tpcOpId);
+			if (id >= 0 && Long.toString(id).equals(this.tpcOpId)) {
+				return NUMERIC_OPID_FIELD;
+			}
+		} catch (NumberFormatException e) {
+			//not a number
+		}
+		return OPID_FIELD;
 	}
 	
-	private void xmlBuildHelperRegister(Element root, Document doc) throws KVException{	
-		if (this.message==null)
-			throw new KVException(new KVMessage("Unknown Error: not enough data to build XML"));
-		this.addMessageXml(root, doc);
+	/**
+	 * Generate the binary representation for this message: BINARY_MARKER, the type (byte), the fields that follow (byte),
+	 * then the tpcOpId (varint) and the key, value and message (each a varint length and UTF-8 bytes) that are present.
+	 * Carries the same fields as toXML().
+	 * @return the bytes to send
+	 * @throws KVException if not enough data is available to generate a valid message
+	 */
+	public byte[] toBinary() throws KVException {
+		int fields = this.fieldsToSend();
+		ByteArrayOutputStream out = new ByteArrayOutputStream(64 + ((fields & VALUE_FIELD) != 0 ? this.value.length() : 0));
+		out.write(BINARY_MARKER);
+		for (int i = 0; i < BINARY_TYPES.length; i++) {
+			if (BINARY_TYPES[i].equals(this.msgType)) {
+				out.write(i);
+			}
+		}
+		out.write(fields);
+		if ((fields & NUMERIC_OPID_FIELD) != 0) {
+			writeVarint(out, Long.parseLong(this.tpcOpId));
+		} else if ((fields & OPID_FIELD) != 0) {
+			writeString(out, this.tpcOpId);
+		}
+		if ((fields & KEY_FIELD) != 0) {
+			writeString(out, this.key);
+		}
+		if ((fields & VALUE_FIELD) != 0) {
+			writeString(out, this.value);
+		}
+		if ((fields & MESSAGE_FIELD) != 0) {
+			writeString(out, this.message);
+		}
+		return out.toByteArray();
 	}
 	
-	private void xmlBuildHelperReady(Element root, Document doc) throws KVException{
-		if (this.tpcOpId==null)
-			throw new KVException(new KVMessage("Unknown Error: not enough data to build XML"));
-		
-		this.addTPCOpIdXml(root, doc);
+	private static void writeVarint(ByteArrayOutputStream out, long v) {
+		while ((v & ~0x7FL) != 0) {
+			out.write((int) (v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		out.write((int) v);
 	}
 	
-	private void xmlBuildHelperAck(Element root, Document doc) throws KVException{
-		if (this.tpcOpId==null)
-			throw new KVException(new KVMessage("Unknown Error: not enough data to build XML"));
-		
-		this.addTPCOpIdXml(root, doc);
+	private static void writeString(ByteArrayOutputStream out, String s) {
+		byte[] bytes = s.getBytes(UTF8);
+		writeVarint(out, bytes.length);
+		out.write(bytes, 0, bytes.length);
 	}
 	
-	private void xmlBuildHelperDel(Element root, Document doc) throws KVException{
-		CheckHelper.sanityCheckKey(this.key);
-		
-		this.addKeyXml(root, doc);
-		
-		//2pc del
-		if (this.tpcOpId!=null){
-			this.addTPCOpIdXml(root, doc);
+	/**
+	 * Parse a message in the binary protocol, see toBinary()
+	 * @param input positioned after the BINARY_MARKER. Exactly the bytes of the message are read.
+	 * @return the message
+	 * @throws KVException if there is an error in parsing the message, with the same messages as for XML:
+	 * "Network Error: Could not receive data" if the message is incomplete,
+	 * "Message format incorrect" if it does not conform to the required specifications, or the error of the sanity check of the key or value.
+	 */
+	public static KVMessage fromBinary(InputStream input) throws KVException {
+		DataInputStream in = new DataInputStream(input);
+		KVMessage msg = new KVMessage();
+		try {
+			int type = in.readUnsignedByte();
+			if (type >= BINARY_TYPES.length)
+				throw new KVException(new KVMessage(KVMessage.RESPTYPE, "Message format incorrect"));
+			msg.msgType = BINARY_TYPES[type];
+			
+			int fields = in.readUnsignedByte();
+			if ((fields & NUMERIC_OPID_FIELD) != 0 && (fields & OPID_FIELD) != 0)
+				throw new KVException(new KVMessage(KVMessage.RESPTYPE, "Message format incorrect"));
+			msg.checkBinaryFields(fields);
+			
+			if ((fields & NUMERIC_OPID_FIELD) != 0) {
+				long id = readVarint(in);
+				if (id < 0)
+					throw new KVException(new KVMessage(KVMessage.RESPTYPE, "Message format incorrect"));
+				msg.tpcOpId = Long.toString(id);
+			} else if ((fields & OPID_FIELD) != 0) {
+				msg.tpcOpId = readString(in);
+			}
+			if ((fields & KEY_FIELD) != 0) {
+				msg.key = readString(in);
+				CheckHelper.sanityCheckKey(msg.key);
+			}
+			if ((fields & VALUE_FIELD) != 0) {
+				msg.value = readString(in);
+				CheckHelper.sanityCheckValue(msg.value);
+			}
+			if ((fields & MESSAGE_FIELD) != 0) {
+				msg.message = readString(in);
+			}
+		} catch (IOException e) {
+			//EOFException too
+			DEBUG.debug("Could not receive data");
+			throw new KVException(new KVMessage(KVMessage.RESPTYPE, "Network Error: Could not receive data"));
 		}
+		return msg;
 	}
 	
-	private void xmlBuildHelperResp(Element root, Document doc) throws KVException{
-		if (this.message!=null) {
-			this.addMessageXml(root, doc);
+	/**
+	 * Check the fields of a binary message against its type, as msgHelper() checks the XML elements
+	 * @param fields
+	 * @throws KVException
+	 */
+	private void checkBinaryFields(int fields) throws KVException {
+		int opId = fields & (NUMERIC_OPID_FIELD | OPID_FIELD);
+		int others = fields & ~(NUMERIC_OPID_FIELD | OPID_FIELD);
+		boolean valid;
+		if (this.msgType.equals(KVMessage.PUTTYPE)) {
+			valid = others == (KEY_FIELD | VALUE_FIELD);
+		} else if (this.msgType.equals(KVMessage.GETTYPE)) {
+			valid = fields == KEY_FIELD;
+		} else if (this.msgType.equals(KVMessage.DELTYPE)) {
+			valid = others == KEY_FIELD;
+		} else if (this.msgType.equals(KVMessage.RESPTYPE)) {
+			valid = fields == MESSAGE_FIELD || fields == (KEY_FIELD | VALUE_FIELD);
+		} else if (this.msgType.equals(KVMessage.ABORTTYPE)) {
+			valid = opId != 0 && (others == 0 || others == MESSAGE_FIELD);
+		} else if (this.msgType.equals(KVMessage.REGISTERTYPE)) {
+			valid = fields == MESSAGE_FIELD;
+		} else if (this.msgType.equals(KVMessage.IGNORENEXTTYPE)) {
+			valid = fields == 0;
 		} else {
-			CheckHelper.sanityCheckKeyValue(this.key, this.value);
-				
-			this.addKeyXml(root, doc);
-			this.addValueXml(root, doc);
+			//ready, commit and ack
+			valid = opId != 0 && others == 0;
 		}
+		if (!valid)
+			throw new KVException(new KVMessage(KVMessage.RESPTYPE, "Message format incorrect"));
 	}
 	
 	/**
-	 * Generate the XML representation for this message.
-	 * @return the XML String
-	 * @throws KVException if not enough data is available to generate a valid KV XML message
+	 * Find the end of a message in the binary protocol without parsing it
+	 * @param b
+	 * @param off where the message starts, at the BINARY_MARKER
+	 * @param n bytes available from off
+	 * @return the length of the message, -1 if more bytes are needed to tell, or -2 if the lengths in it are not valid,
+	 * which fromBinary() reports as "Message format incorrect"
 	 */
-	public String toXML() throws KVException {
-	    DocumentBuilderFactory docFactory = DocumentBuilderFactory.newInstance();
-		DocumentBuilder docBuilder = null;
-		try {
-			docBuilder = docFactory.newDocumentBuilder();
-		} catch (ParserConfigurationException e) {
-			DEBUG.debug("this should not happen");
-			e.printStackTrace();
-			throw new KVException( new KVMessage(KVMessage.RESPTYPE, "this should not happen"));
+	static int binaryLength(byte[] b, int off, int n) {
+		if (n < 3) {
+			return -1;
 		}
-		// root element
-		Document doc = docBuilder.newDocument();
-		Element rootElement = doc.createElement("KVMessage");
-		rootElement.setAttribute("type", this.msgType);
-		doc.setXmlStandalone(true);
-		doc.appendChild(rootElement);
-		
-		if (this.msgType.equals(KVMessage.PUTTYPE)) {
-			this.xmlBuildHelperPut(rootElement, doc);
-
-		} else if(this.msgType.equals(KVMessage.GETTYPE)){
-			this.xmlBuildHelperGet(rootElement, doc);
-			
-		} else if( this.msgType.equals(KVMessage.DELTYPE)) {
-			this.xmlBuildHelperDel(rootElement, doc);
-
-		} else if (this.msgType.equals(KVMessage.RESPTYPE)){
-			this.xmlBuildHelperResp(rootElement, doc);
-		} else if (this.msgType.equals(KVMessage.READYTYPE)){
-			this.xmlBuildHelperReady(rootElement, doc);
-		} else if (this.msgType.equals(KVMessage.ABORTTYPE)){
-			this.xmlBuildHelperAbort(rootElement, doc);
-		} else if (this.msgType.equals(KVMessage.COMMITTYPE)){
-			this.xmlBuildHelperCommit(rootElement, doc);
-		} else if (this.msgType.equals(KVMessage.ACKTYPE)){
-			this.xmlBuildHelperAck(rootElement, doc);
-		} else if (this.msgType.equals(KVMessage.REGISTERTYPE)){
-			this.xmlBuildHelperRegister(rootElement, doc);
-		} else if (this.msgType.equals(KVMessage.IGNORENEXTTYPE)){
-			//do nothing
-		}
-    
-		TransformerFactory transformerFactory = TransformerFactory.newInstance();
-		Transformer transformer = null;
-		try {
-			transformer = transformerFactory.newTransformer();
-		} catch (TransformerConfigurationException e) {
-			DEBUG.debug("this should not happen either");
-			e.printStackTrace();
-			throw new KVException( new KVMessage(KVMessage.RESPTYPE, "this should not happen"));
+		int fields = b[off + 2] & 0xFF;
+		int pos = 3;
+		for (int field : new int[] { NUMERIC_OPID_FIELD, OPID_FIELD, KEY_FIELD, VALUE_FIELD, MESSAGE_FIELD }) {
+			if ((fields & field) == 0) {
+				continue;
+			}
+			long v = 0;
+			int shift = 0;
+			while (true) {
+				if (pos >= n) {
+					return -1;
+				}
+				if (shift >= 64) {
+					return -2;
+				}
+				int c = b[off + pos++] & 0xFF;
+				v |= (long) (c & 0x7F) << shift;
+				shift += 7;
+				if ((c & 0x80) == 0) {
+					break;
+				}
+			}
+			if (field != NUMERIC_OPID_FIELD) {
+				if (v < 0 || v > MAX_BINARY_STRING) {
+					return -2;
+				}
+				pos += (int) v;
+			}
 		}
-		
-		StringWriter writer = new StringWriter();
+		return pos <= n ? pos : -1;
+	}
 	
-		DOMSource  source= new DOMSource(doc);
-		StreamResult result = new StreamResult(writer);
- 
-		try {
-			transformer.transform(source, result);
-		} catch (TransformerException e) {
-			//this should not happen
-			DEBUG.debug("this should not happen either");
-			e.printStackTrace();
-			throw new KVException( new KVMessage(KVMessage.RESPTYPE, "this should not happen"));
+	private static long readVarint(DataInputStream in) throws IOException, KVException {
+		long v = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.readUnsignedByte();
+			v |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return v;
+			}
 		}
-				
-		String xml = writer.toString();
-		return xml;
+		throw new KVException(new KVMessage(KVMessage.RESPTYPE, "Message format incorrect"));
+	}
+	
+	private static String readString(DataInputStream in) throws IOException, KVException {
+		long length = readVarint(in);
+		if (length < 0 || length > MAX_BINARY_STRING)
+			throw new KVException(new KVMessage(KVMessage.RESPTYPE, "Message format incorrect"));
+		byte[] bytes = new byte[(int) length];
+		in.readFully(bytes);
+		return new String(bytes, UTF8);
 	}
 	
 	public void sendMessage(Socket sock) throws KVException {
-		String msg = this.toXML();
 		try {
-			PrintWriter out = new PrintWriter(sock.getOutputStream(), true);
-			out.println(msg);
+			this.writeXML(sock.getOutputStream());
 			sock.shutdownOutput();
 		} catch (IOException e) {
 			e.printStackTrace();
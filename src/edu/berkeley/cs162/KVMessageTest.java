@@ -3,7 +3,12 @@ package edu.berkeley.cs162;
 import static org.junit.Assert.*;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
 
 import org.junit.Test;
 
@@ -184,4 +189,248 @@ public class KVMessageTest {
 			assertEquals(e.getMsg().getMessage(), "Oversized key");
 		}
 	}
+	
+	private String parseError(String xml) {
+		try {
+			new KVMessage(new ByteArrayInputStream(xml.getBytes()));
+			fail();
+		} catch (KVException e) {
+			return e.getMsg().getMessage();
+		}
+		return null;
+	}
+
+	@Test
+	public void xmlStreamTest() throws KVException, IOException {
+		KVMessage msg = new KVMessage(KVMessage.PUTTYPE);
+		msg.setKey("key\u00e9\ud83d\ude00");
+		msg.setValue("value<&>\r");
+		msg.setTpcOpId("10010101");
+		assertEquals(msg.toXML(), "<?xml version=\"1.0\" encoding=\"UTF-8\"?><KVMessage type=\"putreq\"><Key>key\u00e9&#128512;</Key>"
+				+ "<Value>value&lt;&amp;&gt;&#13;</Value><TPCOpId>10010101</TPCOpId></KVMessage>");
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		msg.writeXML(out);
+		assertEquals(new String(out.toByteArray(), "UTF-8"), msg.toXML() + System.getProperty("line.separator"));
+		KVMessage newMsg = new KVMessage(new ByteArrayInputStream(out.toByteArray()));
+		assertEquals(newMsg.getKey(), "key\u00e9\ud83d\ude00");
+		assertEquals(newMsg.getValue(), "value<&>\r");
+		assertEquals(newMsg.getTpcOpId(), "10010101");
+
+		assertEquals(new KVMessage(KVMessage.IGNORENEXTTYPE).toXML(), "<?xml version=\"1.0\" encoding=\"UTF-8\"?><KVMessage type=\"ignoreNext\"/>");
+
+		String head = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>";
+		assertEquals(parseError(head + "<KVMessage type=\"getreq\"><Key>k</Key>"), "XML Error: Received unparseable message");
+		assertEquals(parseError(head + "<KVMessage type=\"getreq\"><Key>k</Key></KVMessage><x/>"), "XML Error: Received unparseable message");
+		//whitespace between the elements is a node of its own
+		assertEquals(parseError(head + "<KVMessage type=\"getreq\"> <Key>k</Key></KVMessage>"), "Message format incorrect");
+		assertEquals(parseError(head + "<KVMessage type=\"getreq\"><Key><![CDATA[k]]></Key></KVMessage>"), "Message format incorrect");
+		assertEquals(parseError(head + "<KVMessage type=\"getreq\"><Key a=\"b\">k</Key></KVMessage>"), "Message format incorrect");
+		assertEquals(parseError(head + "<KVMessage type=\"getreq\" id=\"1\"><Key>k</Key></KVMessage>"), "Message format incorrect");
+		assertEquals(parseError("<?xml version=\"1.0\" encoding=\"utf-8\"?><KVMessage type=\"getreq\"><Key>k</Key></KVMessage>"), "Message format incorrect");
+		assertEquals(parseError(head + "<!--c--><KVMessage type=\"getreq\"><Key>k</Key></KVMessage>"), "Message format incorrect");
+		//encodings that only the DOM parser knew, and those it did not know either
+		String body = "<KVMessage type=\"getreq\"><Key>k</Key></KVMessage>";
+		assertEquals(parseError("<?xml version=\"1.0\" encoding=\"UTF8\"?>" + body), "Message format incorrect");
+		assertEquals(parseError("<?xml version=\"1.0\" encoding=\"Cp1252\"?>" + body), "Message format incorrect");
+		assertEquals(parseError("<?xml version=\"1.0\" encoding=\"UTF8\"?><KVMessage type=\"getreq\"><Key>k</Key>"), "XML Error: Received unparseable message");
+		assertEquals(parseError("<?xml version=\"1.0\" encoding=\"bogus\"?>" + body), "Network Error: Could not receive data");
+		assertEquals(parseError("<?xml version=\"1.0\" encoding=\"UTF_8\"?>" + body), "Network Error: Could not receive data");
+		assertEquals(parseError("<?xml version=\"1.0\" encoding=\"1\"?>" + body), "XML Error: Received unparseable message");
+	}
+
+	private KVMessage binaryRoundTrip(KVMessage msg) throws KVException {
+		byte[] bytes = msg.toBinary();
+		assertEquals(bytes[0] & 0xFF, KVMessage.BINARY_MARKER);
+		InputStream in = new ByteArrayInputStream(bytes, 1, bytes.length - 1);
+		KVMessage newMsg = KVMessage.fromBinary(in);
+		assertEquals(newMsg.getMsgType(), msg.getMsgType());
+		return newMsg;
+	}
+	
+	@Test
+	public void binaryTest() throws KVException {
+		KVMessage msg = new KVMessage(KVMessage.PUTTYPE);
+		msg.setKey("key\u00e9");
+		msg.setValue("value<&>");
+		msg.setTpcOpId("10010101");
+		KVMessage newMsg = binaryRoundTrip(msg);
+		assertEquals(newMsg.getKey(), "key\u00e9");
+		assertEquals(newMsg.getValue(), "value<&>");
+		assertEquals(newMsg.getTpcOpId(), "10010101");
+		assertEquals(newMsg.getMessage(), null);
+		
+		//a tpcOpId that is not a plain number is kept as it is
+		msg.setTpcOpId("0042");
+		assertEquals(binaryRoundTrip(msg).getTpcOpId(), "0042");
+		
+		msg = new KVMessage(KVMessage.ABORTTYPE, "testing");
+		msg.setTpcOpId("7");
+		newMsg = binaryRoundTrip(msg);
+		assertEquals(newMsg.getMessage(), "testing");
+		assertEquals(newMsg.getTpcOpId(), "7");
+		
+		//only the fields of the type are sent, as in XML
+		msg = new KVMessage(KVMessage.GETTYPE);
+		msg.setKey("key1");
+		msg.setValue("val1");
+		newMsg = binaryRoundTrip(msg);
+		assertEquals(newMsg.getKey(), "key1");
+		assertEquals(newMsg.getValue(), null);
+		
+		newMsg = binaryRoundTrip(new KVMessage(KVMessage.IGNORENEXTTYPE));
+		assertEquals(newMsg.getKey(), null);
+		
+		try {
+			new KVMessage(KVMessage.GETTYPE).toBinary();
+			fail();
+		} catch (KVException e) {
+			assertEquals(e.getMsg().getMessage(), "Unknown Error: the key is null");
+		}
+		
+		//truncated message
+		byte[] bytes = new KVMessage(KVMessage.RESPTYPE, "Success").toBinary();
+		try {
+			KVMessage.fromBinary(new ByteArrayInputStream(bytes, 1, bytes.length - 2));
+			fail();
+		} catch (KVException e) {
+			assertEquals(e.getMsg().getMessage(), "Network Error: Could not receive data");
+		}
+		
+		//a get without a key
+		bytes = Arrays.copyOf(bytes, bytes.length);
+		bytes[1] = 0;
+		try {
+			KVMessage.fromBinary(new ByteArrayInputStream(bytes, 1, bytes.length - 1));
+			fail();
+		} catch (KVException e) {
+			assertEquals(e.getMsg().getMessage(), "Message format incorrect");
+		}
+	}
+	
+	@Test
+	public void connectionTest() throws IOException, KVException {
+		final ServerSocket server = new ServerSocket(0);
+		Thread t = new Thread() {
+			public void run() {
+				try {
+					for (int i = 0; i < 2; i++) {
+						KVConnection conn = new KVConnection(server.accept());
+						KVMessage request = conn.receive();
+						KVMessage response = new KVMessage(KVMessage.RESPTYPE);
+						response.setKey(request.getKey());
+						response.setValue(conn.isBinary() ? "binary" : "xml");
+						conn.send(response);
+						conn.close();
+					}
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		t.start();
+		
+		//the server answers in the protocol of the request
+		for (boolean binary : new boolean[] { true, false }) {
+			KVConnection conn = new KVConnection(new Socket("localhost", server.getLocalPort()), binary);
+			KVMessage request = new KVMessage(KVMessage.GETTYPE);
+			request.setKey("key1");
+			conn.send(request);
+			KVMessage response = conn.receive();
+			assertEquals(response.getKey(), "key1");
+			assertEquals(response.getValue(), binary ? "binary" : "xml");
+			assertEquals(conn.isBinary(), binary);
+			conn.close();
+		}
+		server.close();
+	}
+	
+	@Test
+	public void keepAliveTest() throws IOException, KVException {
+		final ServerSocket server = new ServerSocket(0);
+		Thread t = new Thread() {
+			public void run() {
+				try {
+					for (int i = 0; i < 3; i++) {
+						KVConnection conn = new KVConnection(server.accept());
+						KVMessage request;
+						while (true) {
+							try {
+								request = conn.receiveNext();
+							} catch (KVException e) {
+								conn.send(e.getMsg());
+								if (conn.isPersistent()) {
+									continue;
+								}
+								break;
+							}
+							if (request == null) {
+								break;
+							}
+							KVMessage response = new KVMessage(KVMessage.RESPTYPE);
+							response.setKey(request.getKey());
+							response.setValue(request.getKey() + (conn.isBinary() ? "b" : "x"));
+							conn.send(response);
+						}
+						conn.close();
+					}
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		t.start();
+		
+		//requests of both protocols are pipelined on one connection
+		for (boolean binary : new boolean[] { true, false }) {
+			KVClient client = new KVClient("localhost", server.getLocalPort());
+			client.setBinaryProtocol(binary);
+			client.setPersistent(true);
+			client.setMaxInFlight(8);
+			KVClient.Response[] responses = new KVClient.Response[100];
+			for (int i = 0; i < responses.length; i++) {
+				responses[i] = client.getAsync("key" + i);
+			}
+			for (int i = 0; i < responses.length; i++) {
+				assertEquals(responses[i].get(), "key" + i + (binary ? "b" : "x"));
+			}
+			assertEquals(client.get("last"), "last" + (binary ? "b" : "x"));
+			client.close();
+		}
+		
+		//a malformed frame is answered and skipped
+		Socket sock = new Socket("localhost", server.getLocalPort());
+		KVConnection conn = new KVConnection(sock, false, true);
+		byte[] bad = "<KVMessage type=\"getreq\"><Key>k</Key>".getBytes("UTF-8");
+		ByteArrayOutputStream frame = new ByteArrayOutputStream();
+		frame.write(KVMessage.FRAMED_XML_MARKER);
+		frame.write(new byte[] { 0, 0, 0, (byte) bad.length });
+		frame.write(bad);
+		sock.getOutputStream().write(frame.toByteArray());
+		assertEquals(conn.receive().getMessage(), "XML Error: Received unparseable message");
+		assertTrue(conn.isFramed());
+		KVMessage request = new KVMessage(KVMessage.GETTYPE);
+		request.setKey("next");
+		conn.send(request);
+		assertEquals(conn.receive().getValue(), "nextx");
+		assertTrue(conn.isHealthy());
+		
+		//an invalid message is not sent, a message that cannot be sent takes the connection out of sync
+		try {
+			conn.send(new KVMessage(KVMessage.GETTYPE));
+			fail();
+		} catch (KVException e) {
+			assertTrue(conn.isPersistent());
+		}
+		conn.close();
+		assertFalse(conn.isHealthy());
+		try {
+			conn.send(request);
+			fail();
+		} catch (KVException e) {
+			assertEquals(e.getMsg().getMessage(), "Network Error: Could not send data");
+			assertFalse(conn.isPersistent());
+		}
+		server.close();
+	}
 }
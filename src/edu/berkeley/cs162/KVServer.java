@@ -30,6 +30,7 @@
  */
 package edu.berkeley.cs162;
 
+import java.util.concurrent.locks.ReentrantReadWriteLock.ReadLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
 
 /**
@@ -51,8 +52,43 @@ public class KVServer implements KeyValueInterface {
 	 * @param numSets number of sets in the data Cache.
 	 */
 	public KVServer(int numSets, int maxElemsPerSet) {
-		dataStore = new KVStore();
-		dataCache = new KVCache(numSets, maxElemsPerSet);
+		this(numSets, maxElemsPerSet, EvictionPolicy.forName(EvictionPolicy.CLOCK));
+	}
+	
+	/**
+	 * @param numSets number of sets in the data Cache.
+	 * @param policy eviction policy of the data Cache
+	 */
+	public KVServer(int numSets, int maxElemsPerSet, EvictionPolicy policy) {
+		this(numSets, maxElemsPerSet, 0, policy);
+	}
+	
+	/**
+	 * @param numSets number of sets in the data Cache.
+	 * @param maxCacheBytes byte budget of the data Cache, see KVCache.weigh(). 0 means no budget.
+	 * @param policy eviction policy of the data Cache
+	 */
+	public KVServer(int numSets, int maxElemsPerSet, long maxCacheBytes, EvictionPolicy policy) {
+		this(numSets, maxElemsPerSet, maxCacheBytes, policy, null);
+	}
+	
+	/**
+	 * @param numSets number of sets in the data Cache.
+	 * @param maxCacheBytes byte budget of the data Cache, see KVCache.weigh(). 0 means no budget.
+	 * @param policy eviction policy of the data Cache
+	 * @param cacheValueStore keeps the values of the data Cache off-heap. null keeps them on the heap.
+	 */
+	public KVServer(int numSets, int maxElemsPerSet, long maxCacheBytes, EvictionPolicy policy, SlabAllocator cacheValueStore) {
+		this(new KVStore(), new KVCache(numSets, maxElemsPerSet, maxCacheBytes, policy, cacheValueStore));
+	}
+	
+	/**
+	 * @param dataStore backing store, for instance a LogStructuredStore to keep the pairs on disk
+	 * @param dataCache
+	 */
+	public KVServer(KVStore dataStore, KVCache dataCache) {
+		this.dataStore = dataStore;
+		this.dataCache = dataCache;
 
 		AutoGrader.registerKVServer(dataStore, dataCache);
 	}
@@ -71,11 +107,12 @@ public class KVServer implements KeyValueInterface {
 			//sanity check on key and value
 			CheckHelper.sanityCheckKeyValue(key, value);
 		
+			//the store first, so that a get that misses the cache meanwhile cannot fill it with the old value, see getValue()
+			this.dataStore.put(key, value);
 			WriteLock lock = this.dataCache.getWriteLock(key);
 			lock.lock();
 			this.dataCache.put(key, value);
 			lock.unlock();
-			this.dataStore.put(key, value);
 
 		} finally {
 			AutoGrader.agKVServerPutFinished(key, value);
@@ -88,6 +125,16 @@ public class KVServer implements KeyValueInterface {
 	 * @throws KVException when the key is not in store. Or key doesn't pass sanity check.
 	 */
 	public String get (String key) throws KVException {
+		return this.getValue(key).toString();
+	}
+	
+	/**
+	 * Same as get(), but a value read from the store on a cache miss is only decoded when the caller asks for it,
+	 * or when the cache keeps its values on the heap.
+	 * @param key
+	 * @throws KVException when the key is not in store. Or key doesn't pass sanity check.
+	 */
+	public Utf8Value getValue (String key) throws KVException {
 		// Must be called before anything else
 		AutoGrader.agKVServerGetStarted(key);
 		
@@ -95,18 +142,31 @@ public class KVServer implements KeyValueInterface {
 			//sanity check on key
 			CheckHelper.sanityCheckKey(key);
 			
-			//try to get the value in cache
-			WriteLock lock = this.dataCache.getWriteLock(key);
-			lock.lock();
-			String cacheValue = this.dataCache.get(key);
-			lock.unlock();
+			//try to get the value in cache. Hits only need the read lock, so they proceed in parallel
+			ReadLock readLock = this.dataCache.getReadLock(key);
+			readLock.lock();
+			String cacheValue;
+			long version;
+			try {
+				cacheValue = this.dataCache.get(key);
+				version = this.dataCache.getVersion(key);
+			} finally {
+				readLock.unlock();
+			}
 			if (cacheValue!=null) {
-				return cacheValue; //directly return the value if the value is in cache
+				return new Utf8Value(cacheValue); //directly return the value if the value is in cache
 			}
 			
 			//key is not in cache, try to get the value in the store
-			String storeResult = this.dataStore.get(key); //this will throw KVException if key is not in store
-			this.dataCache.replace(key, storeResult);
+			Utf8Value storeResult = this.dataStore.getValue(key); //this will throw KVException if key is not in store
+			WriteLock lock = this.dataCache.getWriteLock(key);
+			lock.lock();
+			try {
+				//not if a put or del wrote the cache since the miss, after writing the store
+				this.dataCache.replace(key, storeResult, version);
+			} finally {
+				lock.unlock();
+			}
 			return storeResult;
 
 		} finally {
@@ -127,11 +187,12 @@ public class KVServer implements KeyValueInterface {
 			//sanity check on key
 			CheckHelper.sanityCheckKey(key);
 			
+			//the store first, as in put()
+			this.dataStore.del(key); //will throw KVException if is not in  
 			WriteLock lock = this.dataCache.getWriteLock(key);
 			lock.lock();
 			this.dataCache.del(key);
 			lock.unlock();
-			this.dataStore.del(key); //will throw KVException if is not in  
 		
 		} finally {
 			AutoGrader.agKVServerDelFinished(key);
@@ -159,6 +220,21 @@ public class KVServer implements KeyValueInterface {
 		return this.dataCache.toXML();
 	}
 	
+	/**
+	 * @param key
+	 * @return the set of the data Cache that holds the key, whose lock its operations take
+	 */
+	public int getSetId(String key) {
+		return this.dataCache.getSetId(key);
+	}
+	
+	/**
+	 * @return hit/miss/eviction counters of the data cache
+	 */
+	public EvictionPolicy getCachePolicy(){
+		return this.dataCache.getEvictionPolicy();
+	}
+	
 	/**
 	 * Return true if the key is in datastore; otherwise throw a exception
 	 * @param key
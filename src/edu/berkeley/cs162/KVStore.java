@@ -30,53 +30,58 @@
  *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  */
 package edu.berkeley.cs162;
-import java.io.File;
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.OutputStreamWriter;
 import java.io.StringWriter;
-import java.util.Dictionary;
-import java.util.Enumeration;
-import java.util.Hashtable;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerConfigurationException;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 
 /**
  * This is a dummy KeyValue Store. Ideally this would go to disk, 
  * or some other backing store. For this project, we simulate the disk like 
  * system using a manual delay.
+ * 
+ * The pairs are kept in a ConcurrentHashMap, so that operations on different keys do not block each other.
+ * toXML() and dumpToFile() do not stop the store either: they are weakly consistent snapshots, which
+ * may or may not see the puts and dels that run while they iterate.
+ * 
+ * Subclasses may keep the pairs elsewhere by overriding the storage primitives read(), readValue(), write(),
+ * remove(), pairs() and replaceAll(); see LogStructuredStore.
  *
  */
 public class KVStore implements KeyValueInterface, Debuggable {
-	private Dictionary<String, String> store 	= null;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	//replaced as a whole by restoreFromFile()
+	private volatile ConcurrentHashMap<String, String> store 	= null;
 	
 	public KVStore() {
 		resetStore();
 	}
 
 	private void resetStore() {
-		store = new Hashtable<String, String>();
+		store = new ConcurrentHashMap<String, String>();
 	}
 	
 	/**
 	 * Put the <key, value> pair in the store. Replace the old value if key is existent. 
 	 */
-	public synchronized void put(String key, String value) throws KVException {
+	public void put(String key, String value) throws KVException {
 		AutoGrader.agStorePutStarted(key, value);
 		
 		DEBUG.debug("Store receives a put request of key "+key+" and value "+value);
@@ -86,7 +91,7 @@ public class KVStore implements KeyValueInterface, Debuggable {
 			//sanity check on key and value
 			CheckHelper.sanityCheckKeyValue(key, value);
 			
-			store.put(key, value);
+			this.write(key, value);
 		} finally {
 			AutoGrader.agStorePutFinished(key, value);
 		}
@@ -95,7 +100,14 @@ public class KVStore implements KeyValueInterface, Debuggable {
 	/**
 	 * return the value of key if key exists; otherwise throw a kvexception
 	 */
-	public synchronized String get(String key) throws KVException {
+	public String get(String key) throws KVException {
+		return this.getValue(key).toString();
+	}
+	
+	/**
+	 * Same as get(), but the value may still be undecoded UTF-8
+	 */
+	public Utf8Value getValue(String key) throws KVException {
 		AutoGrader.agStoreGetStarted(key);
 		
 		DEBUG.debug("store receives a get request of key "+key);
@@ -105,7 +117,7 @@ public class KVStore implements KeyValueInterface, Debuggable {
 			//sanity check on key
 			CheckHelper.sanityCheckKey(key);
 			
-			String retVal = this.store.get(key);
+			Utf8Value retVal = this.readValue(key);
 			if (retVal == null) {
 				KVMessage msg = new KVMessage(KVMessage.RESPTYPE, "Does not exist");
 				throw new KVException(msg);
@@ -119,7 +131,7 @@ public class KVStore implements KeyValueInterface, Debuggable {
 	/**
 	 * Delete the value which is mapped to key. If the key does not exist, throw a KVException.
 	 */
-	public synchronized void del(String key) throws KVException {
+	public void del(String key) throws KVException {
 		AutoGrader.agStoreDelStarted(key);
 
 		DEBUG.debug("store receives a del request of key "+key);
@@ -129,8 +141,7 @@ public class KVStore implements KeyValueInterface, Debuggable {
 			//sanity check on key
 			CheckHelper.sanityCheckKey(key);
 			
-			String val = this.store.remove(key);
-			if (val==null)
+			if (!this.remove(key))
 				throw new KVException(new KVMessage(KVMessage.RESPTYPE, "Does not exist"));
 		
 		} finally {
@@ -138,6 +149,61 @@ public class KVStore implements KeyValueInterface, Debuggable {
 		}
 	}
 	
+	/**
+	 * @param key
+	 * @return the value of key, or null if it does not exist
+	 * @throws KVException if the pair could not be read
+	 */
+	protected String read(String key) throws KVException {
+		return this.store.get(key);
+	}
+	
+	/**
+	 * Like read(); a subclass may return the value before it is decoded
+	 * @param key
+	 * @return the value of key, or null if it does not exist
+	 * @throws KVException if the pair could not be read
+	 */
+	protected Utf8Value readValue(String key) throws KVException {
+		String value = this.read(key);
+		return value == null ? null : new Utf8Value(value);
+	}
+	
+	/**
+	 * Map key to value, replacing the old value if any
+	 * @param key
+	 * @param value
+	 * @throws KVException if the pair could not be written
+	 */
+	protected void write(String key, String value) throws KVException {
+		this.store.put(key, value);
+	}
+	
+	/**
+	 * @param key
+	 * @return false if key does not exist
+	 * @throws KVException if the pair could not be removed
+	 */
+	protected boolean remove(String key) throws KVException {
+		return this.store.remove(key) != null;
+	}
+	
+	/**
+	 * Weakly consistent iteration over the pairs
+	 * @return
+	 */
+	protected Iterator<Map.Entry<String, String>> pairs() {
+		return this.store.entrySet().iterator();
+	}
+	
+	/**
+	 * Make pairs the whole content of the store
+	 * @param pairs
+	 */
+	protected void replaceAll(Map<String, String> pairs) {
+		this.store = new ConcurrentHashMap<String, String>(pairs);
+	}
+	
 	private void getDelay() {
 		AutoGrader.agStoreDelay();
 	}
@@ -150,7 +216,7 @@ public class KVStore implements KeyValueInterface, Debuggable {
 		AutoGrader.agStoreDelay();
 	}
 	
-  public synchronized String toXML() throws KVException {
+  public String toXML() throws KVException {
     return this.storeToXML();
   }        
   
@@ -159,195 +225,232 @@ public class KVStore implements KeyValueInterface, Debuggable {
    * @return XML representation of store
    */
   private String storeToXML() {
-    DocumentBuilderFactory docFactory = DocumentBuilderFactory.newInstance();
-    DocumentBuilder docBuilder = null;
+    StringWriter writer = new StringWriter();
     try {
-      docBuilder = docFactory.newDocumentBuilder();
-    } catch (ParserConfigurationException e) {
-      //this should not happen
-      DEBUG.debug("this should not happen");
+      this.writeXML(writer);
+    } catch (IOException e) {
+      //only for a string with an invalid surrogate pair
+      DEBUG.debug("the store cannot be written as XML");
       e.printStackTrace();
       return ""; //return so that the rest doesn't break 
     }
+    return writer.toString();
+  }
 
-    // root element
-    Document doc = docBuilder.newDocument();
-    Element rootElement = doc.createElement("KVStore");
-    doc.setXmlStandalone(true);
-    doc.appendChild(rootElement);
+  /**
+   * Stream the store as XML, one pair at a time
+   * @param writer
+   * @throws IOException
+   */
+  private void writeXML(Writer writer) throws IOException {
+    XMLWriter xml = new XMLWriter(writer);
+    xml.declaration();
     
-    Enumeration<String> keys = this.store.keys();
-    while (keys.hasMoreElements()) {
-      String key = (String)keys.nextElement();
-      String val = this.store.get(key);
-      
-      Element pairElement = doc.createElement("KVPair");
-      
-      Element keyElement = doc.createElement("Key");
-      keyElement.appendChild(doc.createTextNode(key));
-      
-      Element valueElement = doc.createElement("Value");
-      valueElement.appendChild(doc.createTextNode(val));
-      
-      pairElement.appendChild(keyElement);
-      pairElement.appendChild(valueElement);
-
-      rootElement.appendChild(pairElement);
+    //weakly consistent: a pair deleted during the iteration may still be listed, with the value it had
+    Iterator<Map.Entry<String, String>> pairs = this.pairs();
+    if (!pairs.hasNext()) {
+      xml.empty("KVStore");
+      return;
     }
-    
-    TransformerFactory transformerFactory = TransformerFactory.newInstance();
-    Transformer transformer = null;
-    try {
-      transformer = transformerFactory.newTransformer();
-    } catch (TransformerConfigurationException e) {
-      //this should not happen too
-      DEBUG.debug("this should not happen");
-      e.printStackTrace();
-      return ""; //return so that the rest doesn't break 
+    xml.start("KVStore");
+    while (pairs.hasNext()) {
+      Map.Entry<String, String> pair = pairs.next();
+      xml.start("KVPair");
+      xml.element("Key", pair.getKey());
+      xml.element("Value", pair.getValue());
+      xml.end("KVPair");
     }
-    
-    StringWriter writer = new StringWriter();
+    xml.end("KVStore");
+  }
 
-    DOMSource  source= new DOMSource(doc);
-    StreamResult result = new StreamResult(writer);
-    
-    try {
-      transformer.transform(source, result);
-    } catch (TransformerException e) {
-      //this should not happen
-      DEBUG.debug("this should not happen");
-      e.printStackTrace();
-      return ""; //return so that the rest doesn't break 
+    /**
+     * Formats of dumpToFile(). restoreFromFile() tells them apart by itself.
+     */
+    public static enum DumpFormat {
+      /** the storeDump XML of the spec, in UTF-8 */
+      XML,
+      /** binary StoreSnapshot */
+      BINARY,
+      /** binary StoreSnapshot with deflated blocks */
+      COMPRESSED
     }
-    
-    String xml = writer.toString();
-    return xml;
-  }
 
     /**
-     * Dump the current state of store to corresponding file. This does not change the state of the store
+     * Dump the current state of store to corresponding file, in XML. This does not change the state of the store,
+     * and does not block the other operations; see toXML()
      * @param fileName 
      */
-    public synchronized void dumpToFile(String fileName) {
-      try {
-      PrintWriter out = new PrintWriter(fileName);
-      out.print(this.storeToXML());
-      out.close();
-    } catch (FileNotFoundException e) {
-      DEBUG.debug("file not found and couldnot create the file");
-      e.printStackTrace();
+    public void dumpToFile(String fileName) {
+      this.dumpToFile(fileName, DumpFormat.XML);
     }
+
+    /**
+     * Dump the current state of store to corresponding file, in the given format; see dumpToFile(String)
+     * @param fileName 
+     * @param format
+     */
+    public void dumpToFile(String fileName, DumpFormat format) {
+      FileOutputStream file = null;
+      try {
+        file = new FileOutputStream(fileName);
+        if (format == DumpFormat.XML) {
+          Writer out = new BufferedWriter(new OutputStreamWriter(file, UTF8));
+          this.writeXML(out);
+          out.flush();
+        } else {
+          StoreSnapshot.write(this.pairs(), file.getChannel(), format == DumpFormat.COMPRESSED);
+        }
+      } catch (FileNotFoundException e) {
+        DEBUG.debug("file not found and couldnot create the file");
+        e.printStackTrace();
+      } catch (IOException e) {
+        DEBUG.debug("io error");
+        e.printStackTrace();
+      } finally {
+        if (file != null) {
+          try {
+            file.close();
+          } catch (IOException e) {
+            DEBUG.debug("io error");
+            e.printStackTrace();
+          }
+        }
+      }
+  }
+
+  static final String REPORT_CDATA = "http://java.sun.com/xml/stream/properties/report-cdata-event";
+
+  private static KVException ioError() throws KVException {
+    return new KVException( new KVMessage (KVMessage.RESPTYPE, "IO Error"));
   }
 
   /**
-   * STRICTLY checks the XML. The XML needs to have exactly the number of attributes and nodes and format as on the spec to pass the test
-   * @param doc
-   * @return return the new store dictionary
+   * STRICTLY checks the XML while streaming it. The XML needs to have exactly the number of attributes and nodes
+   * and format as on the spec to pass the test: nothing but the KVStore element at the top level, and no text,
+   * whitespace or comment between the elements. Each pair is written to the store once it is checked.
+   * @param reader
    * @throws KVException
+   * @throws XMLStreamException
    */
-  private Dictionary<String, String> checkDocStruture(Document doc) throws KVException {
-    NodeList nodes = doc.getChildNodes();
-    
-    if (nodes.getLength()!=1) {
-      throw new KVException( new KVMessage (KVMessage.RESPTYPE, "IO Error"));
+  private void readStore(XMLStreamReader reader) throws KVException, XMLStreamException {
+    if (nextNode(reader, true) != XMLStreamConstants.START_ELEMENT || !reader.getLocalName().equals("KVStore")) {
+      throw ioError();
     }
     
-    if (!doc.getFirstChild().getNodeName().equals("KVStore")) {
-      throw new KVException( new KVMessage (KVMessage.RESPTYPE, "IO Error"));
+    int event;
+    while ((event = nextNode(reader, false)) == XMLStreamConstants.START_ELEMENT) {
+      if (!reader.getLocalName().equals("KVPair"))
+        throw ioError();
+      readPair(reader);
+    }
+    if (event != XMLStreamConstants.END_ELEMENT) {
+      throw ioError();
     }
     
-    return checkStoreNodeStructure(doc.getFirstChild());	
+    if (nextNode(reader, true) != XMLStreamConstants.END_DOCUMENT) {
+      throw ioError();
+    }
   }
   
-  private Dictionary<String,String> checkStoreNodeStructure(Node storeNode) throws KVException {
-    Dictionary<String, String> newStore = new Hashtable<String, String>();
+  private void readPair(XMLStreamReader reader) throws KVException, XMLStreamException {
+    if (nextNode(reader, false) != XMLStreamConstants.START_ELEMENT || !reader.getLocalName().equals("Key"))
+      throw ioError();
+    String key = readText(reader);
+    CheckHelper.sanityCheckKey(key);
     
-    NodeList nodes = storeNode.getChildNodes();
+    if (nextNode(reader, false) != XMLStreamConstants.START_ELEMENT || !reader.getLocalName().equals("Value"))
+      throw ioError();
+    String value = readText(reader);
+    CheckHelper.sanityCheckValue(value);
     
-    for (int i = 0; i < storeNode.getChildNodes().getLength(); i++){
-      Node pair = nodes.item(i);
-      if (!pair.getNodeName().equals("KVPair"))
-        throw new KVException( new KVMessage (KVMessage.RESPTYPE, "IO Error"));
-    
-      checkPairNodeStructure(pair, newStore);
+    if (nextNode(reader, false) != XMLStreamConstants.END_ELEMENT) {
+      throw ioError();
     }
     
-    return newStore;
+    this.write(key, value);
   }
   
-  private void checkPairNodeStructure(Node pairNode, Dictionary<String, String> store) throws KVException {
-    NodeList nodes = pairNode.getChildNodes();
-
-    if (nodes.getLength()!=2){
-      throw new KVException( new KVMessage (KVMessage.RESPTYPE, "IO Error"));
+  /**
+   * @param reader at the start of an element
+   * @return the text of the element, which must be a single non-empty text node
+   */
+  private String readText(XMLStreamReader reader) throws KVException, XMLStreamException {
+    //the parser may split a text node, at entity references for one
+    StringBuilder text = new StringBuilder();
+    int event;
+    while ((event = reader.next()) == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.SPACE) {
+      text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
     }
-    
-    Node keyNode = nodes.item(0);
-    if (!keyNode.getNodeName().equals("Key"))
-      throw new KVException( new KVMessage (KVMessage.RESPTYPE, "IO Error"));
-    String key = checkKeyNodeStructure(keyNode);
-    
-    Node valNode = nodes.item(1);
-    if (!valNode.getNodeName().equals("Value"))
-      throw new KVException( new KVMessage (KVMessage.RESPTYPE, "IO Error"));
-    String value = checkValNodeStructure(valNode);
-    
-    store.put(key, value);
+    if (event != XMLStreamConstants.END_ELEMENT || text.length() == 0) {
+      throw ioError();
+    }
+    return text.toString();
   }
   
-  private String checkKeyNodeStructure(Node keyNode) throws KVException {
-    NodeList nodes = keyNode.getChildNodes();
-    
-    if (nodes.getLength()!=1 || nodes.item(0).getNodeType() != Document.TEXT_NODE)
-      throw new KVException( new KVMessage (KVMessage.RESPTYPE, "IO Error"));
-
-    String key = nodes.item(0).getTextContent();
-    
-	CheckHelper.sanityCheckKey(key);
-	
-    return key;
+  /**
+   * @param reader
+   * @param topLevel whether the reader is outside the document element, where whitespace is not part of the document
+   * @return the next event, which must not be text, a comment or anything else but an element or the end of the document
+   */
+  private int nextNode(XMLStreamReader reader, boolean topLevel) throws KVException, XMLStreamException {
+    int event = reader.next();
+    while (topLevel && (event == XMLStreamConstants.SPACE || event == XMLStreamConstants.CHARACTERS) && reader.isWhiteSpace()) {
+      event = reader.next();
+    }
+    if (event != XMLStreamConstants.START_ELEMENT && event != XMLStreamConstants.END_ELEMENT
+        && event != XMLStreamConstants.END_DOCUMENT) {
+      throw ioError();
+    }
+    return event;
   }
   
-  private String checkValNodeStructure(Node valNode) throws KVException {
-    NodeList nodes = valNode.getChildNodes();
-  
-    if (nodes.getLength()!=1
-        || nodes.item(0).getNodeType()!=Document.TEXT_NODE)
-      throw new KVException( new KVMessage (KVMessage.RESPTYPE, "IO Error"));
-
-    String value = nodes.item(0).getTextContent();
-    
-	CheckHelper.sanityCheckValue(value);
-	
-    return value;
-  }    
+  /**
+   * Write the pairs of a binary snapshot to the store, with the same checks as for the XML
+   * @param snapshot
+   * @throws KVException
+   * @throws IOException
+   */
+  private void readSnapshot(StoreSnapshot.Reader snapshot) throws KVException, IOException {
+    while (snapshot.next()) {
+      String key = snapshot.getKey();
+      String value = snapshot.getValue();
+      CheckHelper.sanityCheckKey(key);
+      CheckHelper.sanityCheckValue(value);
+      this.write(key, value);
+    }
+  }
   
   /**
-   * restore the state of the store to the one indicated by the file
+   * restore the state of the store to the one indicated by the file, which is either XML or a binary snapshot. 
+   * The file is streamed, and its pairs are written as they are read; operations that run during the restore may be lost.
    * @param fileName 
-   * @throws KVException if file could not be opened or there is error when parsing the XML
+   * @throws KVException if file could not be opened or there is error when parsing the file
    */
   public synchronized void restoreFromFile(String fileName) {
     //delete the original store whether the restore succeeds or not
+    this.replaceAll(new HashMap<String, String>());
+    boolean restored = false;
+    FileInputStream file = null;
+    XMLStreamReader reader = null;
+    StoreSnapshot.Reader snapshot = null;
     try {
-      this.store = new Hashtable<String, String>();
-      File fXmlFile = new File(fileName);
-      DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
-      DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
-      Document doc = dBuilder.parse(fXmlFile);
-     
-      doc.getDocumentElement().normalize();
-      
-      Dictionary<String, String> newStore = checkDocStruture(doc);    		
-      
-      this.store = newStore;
-    
-    } catch (ParserConfigurationException e) {
-      //this should not happen
-      DEBUG.debug("this should not happen");
-      e.printStackTrace();
+      file = new FileInputStream(fileName);
+      if (StoreSnapshot.isSnapshot(file.getChannel())) {
+        snapshot = new StoreSnapshot.Reader(file.getChannel());
+        this.readSnapshot(snapshot);
+      } else {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        //a CDATA section is not a text node, as in the DOM
+        if (factory.isPropertySupported(REPORT_CDATA)) {
+          factory.setProperty(REPORT_CDATA, Boolean.TRUE);
+        }
+        reader = factory.createXMLStreamReader(new BufferedInputStream(file));
+        this.readStore(reader);
+      }
+      restored = true;
     
-    } catch (SAXException e) {
+    } catch (XMLStreamException e) {
       //not a valid XML
       DEBUG.debug("this is not a valid xml");
       e.printStackTrace();
@@ -360,6 +463,27 @@ public class KVStore implements KeyValueInterface, Debuggable {
     } catch (KVException e) {
       DEBUG.debug(e.getMsg().getMessage());
       e.printStackTrace();
+    
+    } finally {
+      if (!restored) {
+        //the pairs read before the error do not stay
+        this.replaceAll(new HashMap<String, String>());
+      }
+      if (snapshot != null) {
+        snapshot.end();
+      }
+      try {
+        if (reader != null) {
+          reader.close();
+        }
+        if (file != null) {
+          file.close();
+        }
+      } catch (XMLStreamException e) {
+        DEBUG.debug("io error");
+      } catch (IOException e) {
+        DEBUG.debug("io error");
+      }
     }
   }
 }
@@ -2,6 +2,10 @@ package edu.berkeley.cs162;
 
 import static org.junit.Assert.*;
 
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
 import org.junit.Before;
 import org.junit.Test;
 
@@ -130,5 +134,103 @@ public class KVStoreTest {
 			fail();
 		}
 	}
-
+	
+	@Test
+	public void escapedDumpTest() throws KVException, IOException {
+		String value = "a&b<c>d\r\n\t\u0085\u00e9\ud83d\ude00";
+		store.put("key1", value);
+		assertEquals(store.toXML(), "<?xml version=\"1.0\" encoding=\"UTF-8\"?><KVStore><KVPair><Key>key1</Key>"
+				+ "<Value>a&amp;b&lt;c&gt;d&#13;\n\t&#133;\u00e9&#128512;</Value></KVPair></KVStore>");
+		
+		store.dumpToFile("storeDump");
+		store.del("key1");
+		store.restoreFromFile("storeDump");
+		assertEquals(store.get("key1"), value);
+		
+		//whitespace between the elements is not allowed, and nothing is restored
+		FileOutputStream out = new FileOutputStream("storeDump");
+		out.write("<KVStore> <KVPair><Key>key2</Key><Value>val2</Value></KVPair></KVStore>".getBytes("UTF-8"));
+		out.close();
+		store.restoreFromFile("storeDump");
+		assertEquals(store.toXML(), "<?xml version=\"1.0\" encoding=\"UTF-8\"?><KVStore/>");
+	}
+	
+	@Test
+	public void binaryDumpTest() throws KVException, IOException {
+		for (KVStore.DumpFormat format : new KVStore.DumpFormat[] { KVStore.DumpFormat.BINARY, KVStore.DumpFormat.COMPRESSED }) {
+			//enough pairs for several compressed blocks
+			for (int i = 0; i < 2000; i++) {
+				store.put("key"+i, "value\u00e9"+i+"-"+(i*7919));
+			}
+			store.dumpToFile("storeDump", format);
+			store.put("key1", "val7");
+			store.del("key6");
+			store.put("key2000", "val");
+			
+			store.restoreFromFile("storeDump");
+			for (int i = 0; i < 2000; i++) {
+				assertEquals(store.get("key"+i), "value\u00e9"+i+"-"+(i*7919));
+			}
+			assertFalse(store.toXML().contains("<Key>key2000</Key>"));
+			
+			//a corrupt snapshot restores nothing
+			RandomAccessFile f = new RandomAccessFile("storeDump", "rw");
+			f.seek(f.length() / 2);
+			int b = f.read();
+			f.seek(f.length() / 2);
+			f.write(b ^ 0x10);
+			f.close();
+			store.restoreFromFile("storeDump");
+			assertEquals(store.toXML(), "<?xml version=\"1.0\" encoding=\"UTF-8\"?><KVStore/>");
+		}
+	}
+	
+	@Test
+	public void concurrentDumpTest() throws InterruptedException{
+		//writers keep changing the store while it is dumped
+		Thread[] writers = new Thread[4];
+		for (int t = 0; t < writers.length; t++) {
+			final int id = t;
+			writers[t] = new Thread() {
+				public void run() {
+					try {
+						for (int i = 0; i < 2000; i++) {
+							store.put("key"+id+"-"+(i%50), "value"+i);
+							if (i % 3 == 0) {
+								try {
+									store.del("key"+id+"-"+((i+25)%50));
+								} catch (KVException e) {
+									//already deleted
+								}
+							}
+						}
+					} catch (KVException e) {
+						fail();
+					}
+				}
+			};
+			writers[t].start();
+		}
+		
+		try {
+			for (int i = 0; i < 20; i++) {
+				String xml = store.toXML();
+				assertTrue(xml.startsWith("<?xml"));
+				assertFalse(xml.contains("<Value/>"));
+			}
+		} catch (KVException e) {
+			fail();
+		}
+		
+		for (Thread w : writers) {
+			w.join();
+		}
+		for (int t = 0; t < writers.length; t++) {
+			try {
+				assertEquals(store.get("key"+t+"-49"), "value1999");
+			} catch (KVException e) {
+				fail();
+			}
+		}
+	}
 }
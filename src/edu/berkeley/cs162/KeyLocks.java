@@ -0,0 +1,58 @@
+package edu.berkeley.cs162;
+
+import java.util.HashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A lock per key, which only operations on the same key wait for. A key has a lock while it is
+ * locked or waited for, so the table holds only the keys in use.
+ */
+class KeyLocks {
+	private static class KeyLock {
+		final ReentrantLock lock = new ReentrantLock();
+		// threads that hold or wait for the lock, guarded by the table
+		int users = 0;
+	}
+
+	private final HashMap<String, KeyLock> locks = new HashMap<String, KeyLock>();
+
+	/**
+	 * Block until the lock of the key is held
+	 * @param key
+	 */
+	public void lock(String key) {
+		KeyLock keyLock;
+		synchronized (this.locks) {
+			keyLock = this.locks.get(key);
+			if (keyLock == null) {
+				keyLock = new KeyLock();
+				this.locks.put(key, keyLock);
+			}
+			keyLock.users++;
+		}
+		keyLock.lock.lock();
+	}
+
+	/**
+	 * Release the lock of the key, held by this thread
+	 * @param key
+	 */
+	public void unlock(String key) {
+		synchronized (this.locks) {
+			KeyLock keyLock = this.locks.get(key);
+			keyLock.lock.unlock();
+			if (--keyLock.users == 0) {
+				this.locks.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * @return how many keys are locked or waited for
+	 */
+	int size() {
+		synchronized (this.locks) {
+			return this.locks.size();
+		}
+	}
+}
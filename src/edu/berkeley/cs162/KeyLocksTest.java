@@ -0,0 +1,45 @@
+package edu.berkeley.cs162;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class KeyLocksTest {
+
+	@Test
+	public void lockTest() throws InterruptedException {
+		final KeyLocks locks = new KeyLocks();
+		locks.lock("a");
+
+		//another key is not held up
+		final CountDownLatch other = new CountDownLatch(1);
+		new Thread() {
+			public void run() {
+				locks.lock("b");
+				other.countDown();
+				locks.unlock("b");
+			}
+		}.start();
+		assertTrue(other.await(5, TimeUnit.SECONDS));
+
+		//the same key is
+		final CountDownLatch same = new CountDownLatch(1);
+		new Thread() {
+			public void run() {
+				locks.lock("a");
+				same.countDown();
+				locks.unlock("a");
+			}
+		}.start();
+		assertFalse(same.await(200, TimeUnit.MILLISECONDS));
+		locks.unlock("a");
+		assertTrue(same.await(5, TimeUnit.SECONDS));
+
+		//keys that are no longer in use are forgotten
+		Thread.sleep(100);
+		assertEquals(locks.size(), 0);
+	}
+}
@@ -0,0 +1,790 @@
+package edu.berkeley.cs162;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * A KVStore that keeps its pairs on disk, Bitcask style.
+ *
+ * Every put and del appends a record to the active segment file, and an in-memory hash index maps each key
+ * to the segment and offset of its latest value. A get is served from a read-only memory mapping of the
+ * segment, without a read call or a copy, and the value is returned undecoded (see Utf8Value).
+ * The active segment is remapped when its unmapped tail reaches REMAP_BYTES and when it rolls over;
+ * values in a tail smaller than that are read with a positional read.
+ * When the active segment reaches maxSegmentBytes it becomes immutable, and a hint file listing its keys
+ * and offsets is written next to it. On start the index is rebuilt from the hint files, so the time taken
+ * is proportional to the index rather than to the data. Segments without a hint, which the last run
+ * did not get to close, are scanned record by record and their CRCs checked; a torn tail is cut off.
+ *
+ * A background thread compacts the store when at least half of the immutable segments are dead
+ * (overwritten or deleted). The live pairs of all immutable segments are copied into a new segment
+ * which takes the id of the newest one, and the old segments are deleted. A merge.pending file makes
+ * this step recoverable: a merge that was interrupted after it is written is finished on the next start.
+ *
+ * Appends go to the OS but are only forced to disk when a segment is closed or sync() is called;
+ * the TPCLog covers the operations that came after the last sync().
+ *
+ * Record: crc(4) keyLength(4) valueLength(4, -1 for a del) key value, with strings in UTF-8.
+ * Hint: keyLength(4) valueLength(4) valueOffset(8) key.
+ */
+public class LogStructuredStore extends KVStore {
+	public static final long DEFAULT_SEGMENT_BYTES = 64L << 20;
+
+	private static final String DATA_SUFFIX = ".data";
+	private static final String HINT_SUFFIX = ".hint";
+	private static final String TMP_SUFFIX = ".tmp";
+	private static final String PENDING_MERGE = "merge.pending";
+
+	//segments are mapped as a whole, so they must stay below 2GB
+	private static final long MAX_SEGMENT_BYTES = 1L << 30;
+	private static final long REMAP_BYTES = 1L << 20;
+
+	private static final int HEADER_SIZE = 12;
+	private static final int TOMBSTONE = -1;
+
+	//compact when this fraction of the bytes of the immutable segments is dead
+	private static final double COMPACT_RATIO = 0.5;
+	private static final long COMPACT_INTERVAL = 10 * 1000;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final File dir;
+	private final long maxSegmentBytes;
+
+	private final ConcurrentHashMap<String, Location> index = new ConcurrentHashMap<String, Location>();
+
+	//all segments by id; the last one is active. Guarded by writeLock
+	private final TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+	private Segment active = null;
+	//appends and index updates are made under this lock, so that the index follows the order of the log
+	private final Object writeLock = new Object();
+	//one compaction at a time
+	private final Object compactLock = new Object();
+
+	private volatile boolean closed = false;
+	private Thread compactor = null;
+
+	/**
+	 * Open the store in dir, creating it if needed, with segments of DEFAULT_SEGMENT_BYTES
+	 * @param dir
+	 * @throws IOException
+	 */
+	public LogStructuredStore(File dir) throws IOException {
+		this(dir, DEFAULT_SEGMENT_BYTES);
+	}
+
+	/**
+	 * Open the store in dir, creating it if needed
+	 * @param dir
+	 * @param maxSegmentBytes size at which the active segment is closed and a new one started
+	 * @throws IOException
+	 */
+	public LogStructuredStore(File dir, long maxSegmentBytes) throws IOException {
+		if (maxSegmentBytes <= 0 || maxSegmentBytes > MAX_SEGMENT_BYTES) {
+			throw new IllegalArgumentException("maxSegmentBytes must be in (0, " + MAX_SEGMENT_BYTES + "]");
+		}
+		this.dir = dir;
+		this.maxSegmentBytes = maxSegmentBytes;
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("could not create " + dir);
+		}
+
+		this.finishPendingMerge();
+		for (File f : dir.listFiles()) {
+			if (f.getName().endsWith(TMP_SUFFIX)) {
+				f.delete();
+			}
+		}
+
+		int nextId = 0;
+		for (int id : this.segmentIds()) {
+			Segment segment = new Segment(id, this.dataFile(id));
+			File hint = this.hintFile(id);
+			if (hint.exists()) {
+				this.loadHint(segment, hint);
+			} else {
+				this.scan(segment);
+			}
+			this.segments.put(id, segment);
+			nextId = id + 1;
+		}
+
+		this.active = new Segment(nextId, this.dataFile(nextId));
+		this.active.hints = new ByteArrayOutputStream();
+		this.segments.put(nextId, this.active);
+
+		this.compactor = new Thread("LogStructuredStore compactor") {
+			public void run() {
+				LogStructuredStore.this.compactLoop();
+			}
+		};
+		this.compactor.setDaemon(true);
+		this.compactor.start();
+	}
+
+	/**
+	 * Stop compacting and close the segment files. The store must not be used afterwards.
+	 */
+	public void close() {
+		this.closed = true;
+		this.compactor.interrupt();
+		synchronized (this.compactLock) {
+			synchronized (this.writeLock) {
+				for (Segment segment : this.segments.values()) {
+					segment.retire();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Force the appends made so far to disk
+	 * @throws IOException
+	 */
+	public void sync() throws IOException {
+		synchronized (this.writeLock) {
+			this.active.channel().force(false);
+		}
+	}
+
+	/**
+	 * @return number of keys in the index
+	 */
+	public int size() {
+		return this.index.size();
+	}
+
+	@Override
+	protected String read(String key) throws KVException {
+		Utf8Value value = this.readValue(key);
+		return value == null ? null : value.toString();
+	}
+
+	@Override
+	protected Utf8Value readValue(String key) throws KVException {
+		while (true) {
+			Location loc = this.index.get(key);
+			if (loc == null) {
+				return null;
+			}
+			try {
+				return new Utf8Value(loc.segment.slice(loc.valueOffset, loc.valueLength));
+			} catch (ClosedChannelException e) {
+				//the segment was compacted away since the lookup; the index has the new location
+				if (this.index.get(key) == loc) {
+					throw ioError(e);
+				}
+			} catch (IOException e) {
+				throw ioError(e);
+			}
+		}
+	}
+
+	@Override
+	protected void write(String key, String value) throws KVException {
+		try {
+			synchronized (this.writeLock) {
+				Location loc = this.append(key, ByteBuffer.wrap(value.getBytes(UTF8)));
+				markDead(this.index.put(key, loc));
+			}
+		} catch (IOException e) {
+			throw ioError(e);
+		}
+	}
+
+	@Override
+	protected boolean remove(String key) throws KVException {
+		try {
+			synchronized (this.writeLock) {
+				if (!this.index.containsKey(key)) {
+					return false;
+				}
+				Location tombstone = this.append(key, null);
+				markDead(tombstone);
+				markDead(this.index.remove(key));
+				return true;
+			}
+		} catch (IOException e) {
+			throw ioError(e);
+		}
+	}
+
+	@Override
+	protected Iterator<Map.Entry<String, String>> pairs() {
+		final Iterator<String> keys = this.index.keySet().iterator();
+		return new Iterator<Map.Entry<String, String>>() {
+			private Map.Entry<String, String> next = null;
+
+			public boolean hasNext() {
+				while (this.next == null && keys.hasNext()) {
+					String key = keys.next();
+					try {
+						String value = LogStructuredStore.this.read(key);
+						//null if deleted since the key was listed
+						if (value != null) {
+							this.next = new AbstractMap.SimpleImmutableEntry<String, String>(key, value);
+						}
+					} catch (KVException e) {
+						DEBUG.debug("could not read the value of " + key);
+					}
+				}
+				return this.next != null;
+			}
+
+			public Map.Entry<String, String> next() {
+				if (!this.hasNext()) {
+					throw new NoSuchElementException();
+				}
+				Map.Entry<String, String> pair = this.next;
+				this.next = null;
+				return pair;
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	@Override
+	protected void replaceAll(Map<String, String> pairs) {
+		try {
+			for (String key : this.index.keySet()) {
+				if (!pairs.containsKey(key)) {
+					this.remove(key);
+				}
+			}
+			for (Map.Entry<String, String> pair : pairs.entrySet()) {
+				this.write(pair.getKey(), pair.getValue());
+			}
+		} catch (KVException e) {
+			DEBUG.debug("could not replace the content of the store");
+		}
+	}
+
+	private static KVException ioError(IOException e) throws KVException {
+		DEBUG.debug("LogStructuredStore: " + e);
+		return new KVException(new KVMessage(KVMessage.RESPTYPE, "IO Error"));
+	}
+
+	private static void markDead(Location loc) {
+		if (loc != null) {
+			loc.segment.deadBytes.addAndGet(loc.recordSize);
+		}
+	}
+
+	/**
+	 * Append a record to the active segment, and start a new segment if it is full. Called under writeLock.
+	 * @param key
+	 * @param value null for a del
+	 * @return location of the record
+	 * @throws IOException
+	 */
+	private Location append(String key, ByteBuffer value) throws IOException {
+		Location loc = this.active.append(key.getBytes(UTF8), value);
+		if (this.active.size >= this.maxSegmentBytes) {
+			this.roll();
+		}
+		return loc;
+	}
+
+	/**
+	 * Make the active segment immutable and start a new one. Called under writeLock.
+	 * @throws IOException
+	 */
+	private void roll() throws IOException {
+		Segment full = this.active;
+		full.channel().force(false);
+		this.writeHint(full.id, full.hints.toByteArray());
+		full.hints = null;
+		full.remap();
+
+		int id = full.id + 1;
+		this.active = new Segment(id, this.dataFile(id));
+		this.active.hints = new ByteArrayOutputStream();
+		this.segments.put(id, this.active);
+	}
+
+	private void compactLoop() {
+		while (!this.closed) {
+			try {
+				Thread.sleep(COMPACT_INTERVAL);
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			long live = 0;
+			long dead = 0;
+			synchronized (this.writeLock) {
+				for (Segment segment : this.segments.values()) {
+					if (segment != this.active) {
+						live += segment.size;
+						dead += segment.deadBytes.get();
+					}
+				}
+			}
+			if (dead > 0 && dead >= COMPACT_RATIO * live) {
+				try {
+					this.compact();
+				} catch (IOException e) {
+					DEBUG.debug("LogStructuredStore: compaction failed " + e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Copy the live pairs of all immutable segments into one new segment, then drop the old segments.
+	 * Puts and dels continue on the active segment meanwhile.
+	 * @throws IOException
+	 */
+	public void compact() throws IOException {
+		synchronized (this.compactLock) {
+			if (this.closed) {
+				return;
+			}
+
+			ArrayList<Segment> merged = new ArrayList<Segment>();
+			synchronized (this.writeLock) {
+				for (Segment segment : this.segments.values()) {
+					if (segment != this.active) {
+						merged.add(segment);
+					}
+				}
+			}
+			if (merged.isEmpty()) {
+				return;
+			}
+			int first = merged.get(0).id;
+			int last = merged.get(merged.size() - 1).id;
+
+			//copy the live pairs. A pair changed during the copy is copied stale, and then not moved in the index
+			File tmpData = new File(this.dir, this.dataFile(last).getName() + TMP_SUFFIX);
+			Segment output = new Segment(last, tmpData);
+			output.hints = new ByteArrayOutputStream();
+			ArrayList<String> keys = new ArrayList<String>();
+			ArrayList<Location> from = new ArrayList<Location>();
+			ArrayList<Location> to = new ArrayList<Location>();
+			for (Map.Entry<String, Location> entry : this.index.entrySet()) {
+				Location loc = entry.getValue();
+				if (loc.segment.id > last || loc.segment.retired) {
+					continue;
+				}
+				ByteBuffer value;
+				try {
+					value = loc.segment.slice(loc.valueOffset, loc.valueLength);
+				} catch (ClosedChannelException e) {
+					continue;
+				}
+				keys.add(entry.getKey());
+				from.add(loc);
+				to.add(output.append(entry.getKey().getBytes(UTF8), value));
+			}
+			output.channel().force(false);
+			this.writeFile(new File(this.dir, this.hintFile(last).getName() + TMP_SUFFIX), output.hints.toByteArray());
+			output.hints = null;
+
+			//from here on the merge is finished by the next start if it is interrupted
+			this.writeFile(new File(this.dir, PENDING_MERGE), (first + " " + last).getBytes(UTF8));
+			this.finishMerge(first, last);
+			output.file = this.dataFile(last);
+
+			for (int i = 0; i < keys.size(); i++) {
+				if (!this.index.replace(keys.get(i), from.get(i), to.get(i))) {
+					markDead(to.get(i));
+				}
+			}
+			synchronized (this.writeLock) {
+				for (Segment segment : merged) {
+					this.segments.remove(segment.id);
+				}
+				this.segments.put(last, output);
+			}
+			for (Segment segment : merged) {
+				segment.retire();
+			}
+			new File(this.dir, PENDING_MERGE).delete();
+			DEBUG.debug("LogStructuredStore: compacted segments " + first + " to " + last + " into " + output.size + " bytes");
+		}
+	}
+
+	/**
+	 * Finish a merge whose pending file is written: move the merged segment in place of the segment last,
+	 * and delete the segments first to last-1.
+	 * @param first
+	 * @param last
+	 * @throws IOException
+	 */
+	private void finishMerge(int first, int last) throws IOException {
+		File tmpHint = new File(this.dir, this.hintFile(last).getName() + TMP_SUFFIX);
+		if (tmpHint.exists()) {
+			Files.move(tmpHint.toPath(), this.hintFile(last).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		File tmpData = new File(this.dir, this.dataFile(last).getName() + TMP_SUFFIX);
+		if (tmpData.exists()) {
+			Files.move(tmpData.toPath(), this.dataFile(last).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		for (int id = first; id < last; id++) {
+			this.hintFile(id).delete();
+			this.dataFile(id).delete();
+		}
+	}
+
+	private void finishPendingMerge() throws IOException {
+		File pending = new File(this.dir, PENDING_MERGE);
+		if (!pending.exists()) {
+			return;
+		}
+		String[] ids = new String(Files.readAllBytes(pending.toPath()), UTF8).trim().split(" ");
+		this.finishMerge(Integer.parseInt(ids[0]), Integer.parseInt(ids[1]));
+		pending.delete();
+	}
+
+	/**
+	 * Rebuild the index entries of segment from its hint file
+	 * @param segment
+	 * @param hint
+	 * @throws IOException
+	 */
+	private void loadHint(Segment segment, File hint) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(hint)));
+		try {
+			while (true) {
+				int keyLength;
+				try {
+					keyLength = in.readInt();
+				} catch (EOFException e) {
+					break;
+				}
+				int valueLength = in.readInt();
+				long valueOffset = in.readLong();
+				byte[] key = new byte[keyLength];
+				in.readFully(key);
+				this.apply(segment, new String(key, UTF8), keyLength, valueLength, valueOffset);
+			}
+		} finally {
+			in.close();
+		}
+		segment.size = segment.channel().size();
+	}
+
+	/**
+	 * Rebuild the index entries of segment from its records, and write its hint file.
+	 * Stops at the first record that is incomplete or fails its CRC, and truncates the segment there.
+	 * @param segment
+	 * @throws IOException
+	 */
+	private void scan(Segment segment) throws IOException {
+		ByteArrayOutputStream hints = new ByteArrayOutputStream();
+		DataOutputStream hintOut = new DataOutputStream(hints);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file)));
+		long offset = 0;
+		try {
+			byte[] header = new byte[HEADER_SIZE];
+			while (true) {
+				try {
+					in.readFully(header);
+				} catch (EOFException e) {
+					break;
+				}
+				ByteBuffer h = ByteBuffer.wrap(header);
+				int crc = h.getInt();
+				int keyLength = h.getInt();
+				int valueLength = h.getInt();
+				if (keyLength < 0 || valueLength < TOMBSTONE) {
+					break;
+				}
+				byte[] body = new byte[keyLength + Math.max(valueLength, 0)];
+				try {
+					in.readFully(body);
+				} catch (EOFException e) {
+					break;
+				}
+				CRC32 check = new CRC32();
+				check.update(header, 4, HEADER_SIZE - 4);
+				check.update(body);
+				if ((int) check.getValue() != crc) {
+					break;
+				}
+
+				long valueOffset = offset + HEADER_SIZE + keyLength;
+				String key = new String(body, 0, keyLength, UTF8);
+				this.apply(segment, key, keyLength, valueLength, valueOffset);
+				hintOut.writeInt(keyLength);
+				hintOut.writeInt(valueLength);
+				hintOut.writeLong(valueOffset);
+				hintOut.write(body, 0, keyLength);
+				offset = valueOffset + Math.max(valueLength, 0);
+			}
+		} finally {
+			in.close();
+		}
+
+		if (segment.channel().size() > offset) {
+			DEBUG.debug("LogStructuredStore: truncating " + segment.file + " at " + offset);
+			segment.channel().truncate(offset);
+		}
+		segment.size = offset;
+		this.writeHint(segment.id, hints.toByteArray());
+	}
+
+	/**
+	 * Replay one record into the index while the store is opened
+	 */
+	private void apply(Segment segment, String key, int keyLength, int valueLength, long valueOffset) {
+		int recordSize = HEADER_SIZE + keyLength + Math.max(valueLength, 0);
+		Location loc = new Location(segment, valueOffset, Math.max(valueLength, 0), recordSize);
+		if (valueLength == TOMBSTONE) {
+			markDead(loc);
+			markDead(this.index.remove(key));
+		} else {
+			markDead(this.index.put(key, loc));
+		}
+	}
+
+	private void writeHint(int id, byte[] hints) throws IOException {
+		File tmp = new File(this.dir, this.hintFile(id).getName() + TMP_SUFFIX);
+		this.writeFile(tmp, hints);
+		Files.move(tmp.toPath(), this.hintFile(id).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Write the whole file and force it to disk
+	 * @param file
+	 * @param content
+	 * @throws IOException
+	 */
+	private void writeFile(File file, byte[] content) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			BufferedOutputStream buffered = new BufferedOutputStream(out);
+			buffered.write(content);
+			buffered.flush();
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+	}
+
+	private int[] segmentIds() {
+		ArrayList<Integer> ids = new ArrayList<Integer>();
+		for (String name : this.dir.list()) {
+			if (name.endsWith(DATA_SUFFIX)) {
+				try {
+					ids.add(Integer.parseInt(name.substring(0, name.length() - DATA_SUFFIX.length())));
+				} catch (NumberFormatException e) {
+					//not a segment
+				}
+			}
+		}
+		int[] sorted = new int[ids.size()];
+		for (int i = 0; i < sorted.length; i++) {
+			sorted[i] = ids.get(i);
+		}
+		Arrays.sort(sorted);
+		return sorted;
+	}
+
+	private File dataFile(int id) {
+		return new File(this.dir, String.format("%010d", id) + DATA_SUFFIX);
+	}
+
+	private File hintFile(int id) {
+		return new File(this.dir, String.format("%010d", id) + HINT_SUFFIX);
+	}
+
+	/**
+	 * Where the latest value of a key is. Immutable, and compared by identity when compaction moves it.
+	 */
+	private static class Location {
+		final Segment segment;
+		final long valueOffset;
+		final int valueLength;
+		//size of the whole record, counted as dead once it is overwritten
+		final int recordSize;
+
+		Location(Segment segment, long valueOffset, int valueLength, int recordSize) {
+			this.segment = segment;
+			this.valueOffset = valueOffset;
+			this.valueLength = valueLength;
+			this.recordSize = recordSize;
+		}
+	}
+
+	/**
+	 * One segment file. Reads go through the mapping, or are positional, so they need no lock.
+	 */
+	private static class Segment {
+		final int id;
+		volatile File file;
+		private FileChannel channel;
+		//set once the segment is compacted away or the store is closed
+		volatile boolean retired = false;
+		//bytes written; only changed by the thread that appends
+		volatile long size = 0;
+		final AtomicLong deadBytes = new AtomicLong();
+		//hint records of the segment while it is appended to
+		ByteArrayOutputStream hints = null;
+		//covers the first map.capacity() bytes of the segment. A mapping stays valid after the channel is closed
+		private volatile MappedByteBuffer map = null;
+
+		Segment(int id, File file) throws IOException {
+			this.id = id;
+			this.file = file;
+			this.channel = open(file);
+		}
+
+		private static FileChannel open(File file) throws IOException {
+			return FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		}
+
+		/**
+		 * A FileChannel is closed for every thread when one thread is interrupted during I/O, so it is reopened here
+		 * @return
+		 * @throws IOException
+		 */
+		synchronized FileChannel channel() throws IOException {
+			if (!this.channel.isOpen()) {
+				if (this.retired) {
+					throw new ClosedChannelException();
+				}
+				this.channel = open(this.file);
+			}
+			return this.channel;
+		}
+
+		synchronized void retire() {
+			this.retired = true;
+			//readers that already hold the mapping keep it alive
+			this.map = null;
+			try {
+				this.channel.close();
+			} catch (IOException e) {
+				//closing anyway
+			}
+		}
+
+		/**
+		 * @param offset
+		 * @param length
+		 * @return a read-only buffer of length bytes from offset, in the mapping if it covers them
+		 * @throws ClosedChannelException if the segment is retired
+		 * @throws IOException
+		 */
+		ByteBuffer slice(long offset, int length) throws IOException {
+			MappedByteBuffer m = this.map;
+			if (m == null || offset + length > m.capacity()) {
+				if (this.hints == null || this.size - (m == null ? 0 : m.capacity()) >= REMAP_BYTES) {
+					m = this.remap();
+				} else {
+					return this.read(offset, length);
+				}
+			}
+			ByteBuffer slice = m.duplicate();
+			slice.limit((int) offset + length);
+			slice.position((int) offset);
+			return slice.slice().asReadOnlyBuffer();
+		}
+
+		/**
+		 * Map all the bytes written so far
+		 * @return
+		 * @throws IOException
+		 */
+		synchronized MappedByteBuffer remap() throws IOException {
+			long size = this.size;
+			if (this.map == null || this.map.capacity() < size) {
+				this.map = this.channel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+			}
+			return this.map;
+		}
+
+		/**
+		 * Positional read of a tail that is not mapped yet
+		 */
+		private ByteBuffer read(long offset, int length) throws IOException {
+			while (true) {
+				ByteBuffer buf = ByteBuffer.allocate(length);
+				FileChannel c = this.channel();
+				try {
+					while (buf.hasRemaining()) {
+						if (c.read(buf, offset + buf.position()) < 0) {
+							throw new EOFException("record past the end of " + this.file);
+						}
+					}
+					buf.flip();
+					return buf.asReadOnlyBuffer();
+				} catch (ClosedByInterruptException e) {
+					throw e;
+				} catch (ClosedChannelException e) {
+					//closed by the interrupt of another thread, or retired: channel() decides
+				}
+			}
+		}
+
+		/**
+		 * Append a record and its hint. Called by one thread at a time.
+		 * @param key
+		 * @param value null for a del
+		 * @return
+		 * @throws IOException
+		 */
+		Location append(byte[] key, ByteBuffer value) throws IOException {
+			int valueLength = value == null ? TOMBSTONE : value.remaining();
+			int recordSize = HEADER_SIZE + key.length + Math.max(valueLength, 0);
+			ByteBuffer buf = ByteBuffer.allocate(recordSize);
+			buf.putInt(0);
+			buf.putInt(key.length);
+			buf.putInt(valueLength);
+			buf.put(key);
+			if (value != null) {
+				buf.put(value.duplicate());
+			}
+			CRC32 crc = new CRC32();
+			crc.update(buf.array(), 4, recordSize - 4);
+			buf.putInt(0, (int) crc.getValue());
+			buf.flip();
+
+			long start = this.size;
+			while (buf.hasRemaining()) {
+				this.channel().write(buf, start + buf.position());
+			}
+			this.size = start + recordSize;
+
+			long valueOffset = start + HEADER_SIZE + key.length;
+			DataOutputStream hintOut = new DataOutputStream(this.hints);
+			hintOut.writeInt(key.length);
+			hintOut.writeInt(valueLength);
+			hintOut.writeLong(valueOffset);
+			hintOut.write(key);
+			return new Location(this, valueOffset, Math.max(valueLength, 0), recordSize);
+		}
+	}
+}
@@ -0,0 +1,171 @@
+package edu.berkeley.cs162;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LogStructuredStoreTest {
+	private File dir;
+	private LogStructuredStore store;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("lsstore").toFile();
+		//small segments so that the tests roll and compact them
+		store = new LogStructuredStore(dir, 256);
+	}
+
+	@After
+	public void tearDown() {
+		store.close();
+		for (File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	private LogStructuredStore reopen() throws IOException {
+		store.close();
+		store = new LogStructuredStore(dir, 256);
+		return store;
+	}
+
+	private int countFiles(String suffix) {
+		int n = 0;
+		for (String name : dir.list()) {
+			if (name.endsWith(suffix)) {
+				n++;
+			}
+		}
+		return n;
+	}
+
+	@Test
+	public void putGetDelTest() throws KVException {
+		store.put("key1", "val1");
+		store.put("key2", "val2");
+		store.put("key1", "val3");
+		assertEquals(store.get("key1"), "val3");
+		assertEquals(store.get("key2"), "val2");
+		store.del("key2");
+		try {
+			store.get("key2");
+			fail();
+		} catch (KVException e) {
+			assertEquals(e.getMsg().getMessage(), "Does not exist");
+		}
+	}
+
+	@Test
+	public void reopenTest() throws KVException, IOException {
+		for (int i = 0; i < 100; i++) {
+			store.put("key"+i, "value"+i);
+		}
+		for (int i = 0; i < 100; i += 2) {
+			store.del("key"+i);
+		}
+		store.put("key1", "v\u00e4lue\u2603");
+		assertTrue(countFiles(".hint") > 0);
+
+		reopen();
+		assertEquals(store.size(), 50);
+		assertEquals(store.get("key1"), "v\u00e4lue\u2603");
+		for (int i = 3; i < 100; i += 2) {
+			assertEquals(store.get("key"+i), "value"+i);
+		}
+		try {
+			store.get("key2");
+			fail();
+		} catch (KVException e) {
+			assertEquals(e.getMsg().getMessage(), "Does not exist");
+		}
+	}
+
+	@Test
+	public void tornTailTest() throws KVException, IOException {
+		store.put("key1", "val1");
+		store.put("key2", "val2");
+		store.close();
+
+		//cut the last record of the segment that was active
+		File active = new File(dir, String.format("%010d", 0) + ".data");
+		RandomAccessFile f = new RandomAccessFile(active, "rw");
+		f.setLength(f.length() - 2);
+		f.close();
+
+		store = new LogStructuredStore(dir, 256);
+		assertEquals(store.get("key1"), "val1");
+		assertEquals(store.size(), 1);
+		store.put("key2", "val4");
+
+		reopen();
+		assertEquals(store.get("key2"), "val4");
+	}
+
+	@Test
+	public void compactTest() throws KVException, IOException {
+		for (int round = 0; round < 20; round++) {
+			for (int i = 0; i < 10; i++) {
+				store.put("key"+i, "value"+round);
+			}
+		}
+		store.del("key9");
+		int before = countFiles(".data");
+
+		store.compact();
+		assertTrue(countFiles(".data") < before);
+		for (int i = 0; i < 9; i++) {
+			assertEquals(store.get("key"+i), "value19");
+		}
+		assertEquals(store.size(), 9);
+
+		reopen();
+		for (int i = 0; i < 9; i++) {
+			assertEquals(store.get("key"+i), "value19");
+		}
+		assertEquals(store.size(), 9);
+	}
+
+	@Test
+	public void dumpAndRestoreTest() throws KVException {
+		for (int i = 0; i < 10; i++) {
+			store.put("key"+i, "value"+i);
+		}
+		File dump = new File(dir, "storeDump");
+		store.dumpToFile(dump.getPath());
+		store.put("key1", "val7");
+		store.del("key6");
+		store.put("key10", "value10");
+
+		store.restoreFromFile(dump.getPath());
+		assertEquals(store.size(), 10);
+		assertEquals(store.get("key1"), "value1");
+		assertEquals(store.get("key6"), "value6");
+	}
+
+	@Test
+	public void mappedReadTest() throws KVException, IOException {
+		for (int i = 0; i < 20; i++) {
+			store.put("key"+i, "value"+i);
+		}
+		//key0 is in a segment that rolled over, so it is served from the mapping, still undecoded
+		Utf8Value value = store.getValue("key0");
+		assertTrue(value.utf8().isDirect());
+		assertEquals(value.utf8Length(), 6);
+
+		//the mapping outlives the segment once it is compacted away
+		for (int i = 0; i < 20; i++) {
+			store.put("key"+i, "new"+i);
+		}
+		store.compact();
+		assertEquals(value.toString(), "value0");
+		assertEquals(store.get("key0"), "new0");
+	}
+}
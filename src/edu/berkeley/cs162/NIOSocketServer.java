@@ -0,0 +1,472 @@
+package edu.berkeley.cs162;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A SocketServer that serves all of its connections from one thread, with a Selector and non-blocking channels.
+ * The bytes of a connection are assembled into whole messages (binary, framed XML, or plain XML that ends with
+ * the input) before the FrameHandler gets them, one at a time per connection, so a connection that waits for
+ * its next request costs no thread, and only as much memory as the part of a message that arrived.
+ */
+public class NIOSocketServer extends SocketServer {
+	/**
+	 * How long a connection is kept without a request, by default
+	 */
+	public static final int DEFAULT_IDLE_TIMEOUT = 60 * 1000;
+
+	//messages of a connection that wait for their turn before the server stops reading it
+	private static final int MAX_QUEUED_MESSAGES = 64;
+	//a plain XML message may take a few bytes more than the document of a frame
+	private static final int MAX_MESSAGE = KVMessage.MAX_XML_FRAME + 5;
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+	//how often idle connections are looked for
+	private static final int SWEEP_MILLISECONDS = 1000;
+
+	private FrameHandler frameHandler = null;
+	private Selector selector = null;
+	private ServerSocketChannel channel = null;
+	private volatile boolean running = false;
+	private volatile int idleTimeout = DEFAULT_IDLE_TIMEOUT;
+	//work of the threads of the handler, for the thread of the server
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	//what a read returns, before it is known to make whole messages
+	private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+	public NIOSocketServer(String hostname) {
+		super(hostname);
+	}
+
+	public NIOSocketServer(String hostname, int port) {
+		super(hostname, port);
+	}
+
+	/**
+	 * Set the handler of the messages that the server receives
+	 * @param frameHandler
+	 */
+	public void setFrameHandler(FrameHandler frameHandler) {
+		this.frameHandler = frameHandler;
+	}
+
+	/**
+	 * Calls setFrameHandler()
+	 * @param handler that is a FrameHandler too, as KVClientHandler
+	 * @throws IllegalArgumentException if it is not
+	 */
+	@Override
+	public void addHandler(NetworkHandler handler) {
+		if (!(handler instanceof FrameHandler)) {
+			throw new IllegalArgumentException("NIOSocketServer needs a FrameHandler");
+		}
+		this.setFrameHandler((FrameHandler) handler);
+	}
+
+	/**
+	 * @param idleTimeout milliseconds that a connection is kept without a request
+	 */
+	public void setIdleTimeout(int idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * Creates a ServerSocketChannel.
+	 * Uses 'port' if it is greater than zero, otherwise, selects a random port.
+	 * @throws IOException
+	 */
+	@Override
+	public void connect() throws IOException {
+		this.selector = Selector.open();
+		this.channel = ServerSocketChannel.open();
+		this.channel.socket().bind(new InetSocketAddress(this.port > 0 ? this.port : 0));
+		this.port = this.channel.socket().getLocalPort();
+		this.server = this.channel.socket();
+		this.channel.configureBlocking(false);
+		this.channel.register(this.selector, SelectionKey.OP_ACCEPT);
+	}
+
+	/**
+	 * Accept connections and read and write them until stop() is called
+	 * @throws IOException if the selector fails
+	 */
+	@Override
+	public void run() throws IOException {
+		this.running = true;
+		long lastSweep = System.currentTimeMillis();
+		try {
+			while (this.running) {
+				this.selector.select(SWEEP_MILLISECONDS);
+
+				Runnable task;
+				while ((task = this.tasks.poll()) != null) {
+					task.run();
+				}
+
+				Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (key.attachment() == null) {
+						if (key.isValid() && key.isAcceptable()) {
+							this.accept();
+						}
+						continue;
+					}
+					Connection conn = (Connection) key.attachment();
+					try {
+						if (key.isValid() && key.isReadable()) {
+							conn.read();
+						}
+						if (key.isValid() && key.isWritable()) {
+							conn.write();
+						}
+					} catch (IOException e) {
+						conn.close();
+					} catch (CancelledKeyException e) {
+						conn.close();
+					}
+				}
+
+				long now = System.currentTimeMillis();
+				if (now - lastSweep >= SWEEP_MILLISECONDS) {
+					lastSweep = now;
+					this.closeIdle(now);
+				}
+			}
+		} finally {
+			for (SelectionKey key : new ArrayList<SelectionKey>(this.selector.keys())) {
+				if (key.attachment() != null) {
+					((Connection) key.attachment()).close();
+				}
+			}
+			this.selector.close();
+			this.channel.close();
+		}
+	}
+
+	/**
+	 * Stop serving: the connections are closed
+	 */
+	@Override
+	public void stop() {
+		this.running = false;
+		if (this.selector != null) {
+			this.selector.wakeup();
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel ch;
+		while ((ch = this.channel.accept()) != null) {
+			ch.configureBlocking(false);
+			ch.socket().setTcpNoDelay(true);
+			Connection conn = new Connection(ch);
+			conn.key = ch.register(this.selector, SelectionKey.OP_READ, conn);
+		}
+	}
+
+	private void closeIdle(long now) {
+		long oldest = now - this.idleTimeout;
+		for (SelectionKey key : new ArrayList<SelectionKey>(this.selector.keys())) {
+			Connection conn = (Connection) key.attachment();
+			if (conn != null && conn.isIdle() && conn.lastActive < oldest) {
+				conn.close();
+			}
+		}
+	}
+
+	/**
+	 * Run on the thread of the server
+	 * @param task
+	 */
+	private void submit(Runnable task) {
+		this.tasks.add(task);
+		this.selector.wakeup();
+	}
+
+	/**
+	 * The length of the message that starts at off
+	 * @param b
+	 * @param off
+	 * @param n bytes available from off
+	 * @return the length, -1 if more bytes are needed to tell, or -2 if the message is not valid
+	 */
+	private static int messageLength(byte[] b, int off, int n) {
+		int first = b[off] & 0xFF;
+		if (first == KVMessage.BINARY_MARKER) {
+			return KVMessage.binaryLength(b, off, n);
+		}
+		if (first == KVMessage.FRAMED_XML_MARKER) {
+			if (n < 5) {
+				return -1;
+			}
+			int length = ((b[off + 1] & 0xFF) << 24) | ((b[off + 2] & 0xFF) << 16) | ((b[off + 3] & 0xFF) << 8) | (b[off + 4] & 0xFF);
+			if (length < 0 || length > KVMessage.MAX_XML_FRAME) {
+				return -2;
+			}
+			return n >= 5 + length ? 5 + length : -1;
+		}
+		//plain XML ends with the input
+		return n > MAX_MESSAGE ? -2 : -1;
+	}
+
+	private class Connection {
+		private final SocketChannel ch;
+		private SelectionKey key = null;
+		//the start of a message that is not whole yet
+		private byte[] partial = null;
+		private int partialLength = 0;
+		//whole messages that wait for the one with the handler
+		private final ArrayDeque<byte[]> messages = new ArrayDeque<byte[]>();
+		private final ArrayDeque<ByteBuffer> responses = new ArrayDeque<ByteBuffer>();
+		//a message is with the handler
+		private boolean busy = false;
+		//no more messages are read: the input ended, or a message cannot be delimited
+		private boolean inputEnded = false;
+		//close once the responses are written
+		private boolean closing = false;
+		private boolean closed = false;
+		private long lastActive = System.currentTimeMillis();
+
+		Connection(SocketChannel ch) {
+			this.ch = ch;
+		}
+
+		boolean isIdle() {
+			return !this.busy && this.messages.isEmpty() && this.responses.isEmpty();
+		}
+
+		void read() throws IOException {
+			ByteBuffer buffer = NIOSocketServer.this.readBuffer;
+			buffer.clear();
+			int n = this.ch.read(buffer);
+			if (n == -1) {
+				this.endInput();
+				return;
+			}
+			if (n == 0) {
+				return;
+			}
+			this.lastActive = System.currentTimeMillis();
+
+			byte[] data;
+			int length;
+			if (this.partial == null) {
+				data = buffer.array();
+				length = n;
+			} else {
+				this.append(buffer.array(), 0, n);
+				data = this.partial;
+				length = this.partialLength;
+			}
+
+			int off = 0;
+			while (off < length) {
+				int m = messageLength(data, off, length - off);
+				if (m == -1) {
+					break;
+				}
+				if (m == -2) {
+					//the handler finds out what is wrong with it, and the connection ends after the response
+					m = length - off;
+					this.inputEnded = true;
+				}
+				this.messages.add(Arrays.copyOfRange(data, off, off + m));
+				off += m;
+			}
+
+			if (off == length) {
+				this.partial = null;
+				this.partialLength = 0;
+			} else if (data != this.partial) {
+				this.partial = null;
+				this.partialLength = 0;
+				this.append(data, off, length - off);
+			} else if (off > 0) {
+				System.arraycopy(this.partial, off, this.partial, 0, length - off);
+				this.partialLength = length - off;
+			}
+
+			if (this.inputEnded || this.messages.size() >= MAX_QUEUED_MESSAGES) {
+				this.setInterest(SelectionKey.OP_READ, false);
+			}
+			this.dispatch();
+		}
+
+		private void append(byte[] b, int off, int n) {
+			if (this.partial == null) {
+				this.partial = new byte[Math.max(n, 1024)];
+			} else if (this.partialLength + n > this.partial.length) {
+				this.partial = Arrays.copyOf(this.partial, Math.max(this.partialLength + n, this.partial.length * 2));
+			}
+			System.arraycopy(b, off, this.partial, this.partialLength, n);
+			this.partialLength += n;
+		}
+
+		/**
+		 * The end of the input: what is left of it is the last message, a plain XML one or an incomplete one
+		 */
+		private void endInput() {
+			if (this.partial != null) {
+				this.messages.add(Arrays.copyOf(this.partial, this.partialLength));
+				this.partial = null;
+				this.partialLength = 0;
+			}
+			this.inputEnded = true;
+			this.setInterest(SelectionKey.OP_READ, false);
+			this.dispatch();
+		}
+
+		/**
+		 * Hand the next message to the handler, if the previous one was answered
+		 */
+		private void dispatch() {
+			if (this.closed || this.busy) {
+				return;
+			}
+			byte[] message = this.messages.poll();
+			if (message == null) {
+				if (this.inputEnded) {
+					this.closeWhenWritten();
+				}
+				return;
+			}
+			if (!this.inputEnded && this.messages.size() < MAX_QUEUED_MESSAGES) {
+				this.setInterest(SelectionKey.OP_READ, true);
+			}
+			this.busy = true;
+			try {
+				NIOSocketServer.this.frameHandler.handle(new KVConnection(new ByteArrayInputStream(message), new ResponseStream(this)));
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+				this.close();
+			}
+		}
+
+		/**
+		 * Called on the thread of the server with what a handler sent
+		 * @param response
+		 * @param last whether the handler closed the connection
+		 */
+		private void respond(ByteBuffer response, boolean last) {
+			if (this.closed) {
+				return;
+			}
+			if (response != null) {
+				this.responses.add(response);
+			}
+			this.lastActive = System.currentTimeMillis();
+			this.busy = false;
+			if (last) {
+				this.messages.clear();
+				this.inputEnded = true;
+				this.setInterest(SelectionKey.OP_READ, false);
+				this.closeWhenWritten();
+			}
+			try {
+				this.write();
+			} catch (IOException e) {
+				this.close();
+				return;
+			}
+			this.dispatch();
+		}
+
+		void write() throws IOException {
+			ByteBuffer response;
+			while ((response = this.responses.peek()) != null) {
+				this.ch.write(response);
+				if (response.hasRemaining()) {
+					this.setInterest(SelectionKey.OP_WRITE, true);
+					return;
+				}
+				this.responses.poll();
+			}
+			this.setInterest(SelectionKey.OP_WRITE, false);
+			if (this.closing) {
+				this.close();
+			}
+		}
+
+		private void closeWhenWritten() {
+			this.closing = true;
+			if (this.responses.isEmpty()) {
+				this.close();
+			}
+		}
+
+		private void setInterest(int op, boolean on) {
+			if (this.closed || !this.key.isValid()) {
+				return;
+			}
+			int ops = this.key.interestOps();
+			this.key.interestOps(on ? ops | op : ops & ~op);
+		}
+
+		void close() {
+			if (this.closed) {
+				return;
+			}
+			this.closed = true;
+			this.key.cancel();
+			try {
+				this.ch.close();
+			} catch (IOException e) {
+				//ignore this exception
+			}
+		}
+	}
+
+	/**
+	 * Where a handler sends to: what is flushed goes to the connection, on the thread of the server
+	 */
+	private class ResponseStream extends ByteArrayOutputStream {
+		private final Connection conn;
+		private boolean closed = false;
+
+		ResponseStream(Connection conn) {
+			super(256);
+			this.conn = conn;
+		}
+
+		@Override
+		public synchronized void flush() {
+			if (this.count > 0 && !this.closed) {
+				this.handOver(false);
+			}
+		}
+
+		@Override
+		public synchronized void close() {
+			if (!this.closed) {
+				this.closed = true;
+				this.handOver(true);
+			}
+		}
+
+		private void handOver(final boolean last) {
+			final ByteBuffer response = this.count > 0 ? ByteBuffer.wrap(this.buf, 0, this.count) : null;
+			//the bytes are the connection's now
+			this.buf = new byte[32];
+			this.count = 0;
+			NIOSocketServer.this.submit(new Runnable() {
+				public void run() {
+					ResponseStream.this.conn.respond(response, last);
+				}
+			});
+		}
+	}
+}
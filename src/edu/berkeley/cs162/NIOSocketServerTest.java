@@ -0,0 +1,136 @@
+package edu.berkeley.cs162;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+public class NIOSocketServerTest {
+
+	/**
+	 * Answers a get with the key and the protocol it came in, on the thread of the server
+	 */
+	private static class EchoHandler implements FrameHandler {
+		@Override
+		public void handle(KVConnection client) {
+			try {
+				KVMessage request;
+				try {
+					request = client.receive();
+				} catch (KVException e) {
+					client.send(e.getMsg());
+					if (!client.isPersistent()) {
+						client.close();
+					}
+					return;
+				}
+				KVMessage response = new KVMessage(KVMessage.RESPTYPE);
+				response.setKey(request.getKey());
+				response.setValue(request.getKey() + (client.isBinary() ? "b" : client.isFramed() ? "f" : "x"));
+				client.send(response);
+				if (!client.isPersistent()) {
+					client.close();
+				}
+			} catch (KVException e) {
+				client.close();
+			}
+		}
+	}
+
+	private NIOSocketServer start() throws IOException {
+		final NIOSocketServer server = new NIOSocketServer("localhost");
+		server.setFrameHandler(new EchoHandler());
+		server.connect();
+		new Thread() {
+			public void run() {
+				try {
+					server.run();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}.start();
+		return server;
+	}
+
+	@Test
+	public void protocolTest() throws IOException, KVException {
+		NIOSocketServer server = this.start();
+		try {
+			//pipelined on persistent connections
+			for (boolean binary : new boolean[] { true, false }) {
+				KVClient client = new KVClient("localhost", server.getPort());
+				client.setBinaryProtocol(binary);
+				client.setPersistent(true);
+				KVClient.Response[] responses = new KVClient.Response[500];
+				for (int i = 0; i < responses.length; i++) {
+					responses[i] = client.getAsync("key" + i);
+				}
+				for (int i = 0; i < responses.length; i++) {
+					assertEquals(responses[i].get(), "key" + i + (binary ? "b" : "f"));
+				}
+				client.close();
+			}
+
+			//a connection per request
+			KVClient client = new KVClient("localhost", server.getPort());
+			assertEquals(client.get("plain"), "plainx");
+
+			//a message that arrives a byte at a time
+			KVMessage request = new KVMessage(KVMessage.GETTYPE);
+			request.setKey("slow");
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			request.writeXML(bytes, true);
+			Socket sock = new Socket("localhost", server.getPort());
+			sock.setTcpNoDelay(true);
+			OutputStream out = sock.getOutputStream();
+			for (byte b : bytes.toByteArray()) {
+				out.write(b);
+				out.flush();
+			}
+			KVConnection conn = new KVConnection(sock, false, true);
+			assertEquals(conn.receive().getValue(), "slowf");
+
+			//a frame that is too long is answered, then the connection is closed
+			out.write(new byte[] { (byte) KVMessage.FRAMED_XML_MARKER, 0x7F, 0, 0, 0 });
+			assertEquals(conn.receive().getMessage(), "Message format incorrect");
+			assertEquals(sock.getInputStream().read(), -1);
+			sock.close();
+		} finally {
+			server.stop();
+		}
+	}
+
+	@Test
+	public void idleTest() throws IOException, KVException, InterruptedException {
+		NIOSocketServer server = this.start();
+		server.setIdleTimeout(300);
+		try {
+			//idle connections hold no thread
+			ArrayList<Socket> idle = new ArrayList<Socket>();
+			for (int i = 0; i < 200; i++) {
+				idle.add(new Socket("localhost", server.getPort()));
+			}
+			KVClient client = new KVClient("localhost", server.getPort());
+			client.setPersistent(true);
+			assertEquals(client.get("busy"), "busyf");
+
+			//and are closed after the idle timeout
+			Thread.sleep(2000);
+			for (Socket sock : idle) {
+				InputStream in = sock.getInputStream();
+				assertEquals(in.read(), -1);
+				sock.close();
+			}
+			client.close();
+		} finally {
+			server.stop();
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package edu.berkeley.cs162;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Report of how the keys are spread over the slave servers by the ring of TPCMaster, versus the number
+ * of virtual nodes of each slave server. Slave servers with random IDs are registered without running, and
+ * the share of a sample of keys of which each is the primary replica is counted.
+ *
+ * Run from the src directory:
+ *		"java edu/berkeley/cs162/RingReport [slaves] [keys] [maxVirtualNodes]"
+ *
+ */
+public class RingReport implements Debuggable {
+
+	public static void main(String[] args) throws KVException {
+		int slaves = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+		int numKeys = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+		int maxVirtualNodes = args.length > 2 ? Integer.parseInt(args[2]) : 256;
+
+		DEBUG.setEnabled(false);
+
+		long[] slaveIds = new long[slaves];
+		Random random = new Random(162);
+		for (int i = 0; i < slaves; i++) {
+			slaveIds[i] = random.nextLong();
+		}
+		ArrayList<String> keys = new ArrayList<String>();
+		for (int i = 0; i < numKeys; i++) {
+			keys.add("key" + i);
+		}
+
+		StringBuilder header = new StringBuilder(String.format("%8s", "vnodes"));
+		for (int i = 0; i < slaves; i++) {
+			header.append(String.format(" %8s", "slave" + i));
+		}
+		header.append(String.format(" %8s", "max/avg"));
+		System.out.println(header);
+
+		for (int virtualNodes = 1; virtualNodes <= maxVirtualNodes; virtualNodes *= 4) {
+			TPCMaster master = new TPCMaster(slaves);
+			master.setVirtualNodes(virtualNodes);
+			for (int i = 0; i < slaves; i++) {
+				master.registerSlave(slaveIds[i] + "@localhost:" + (10000 + i));
+			}
+			Map<Long, Double> shares = master.getKeyShares(keys);
+
+			StringBuilder line = new StringBuilder(String.format("%8d", virtualNodes));
+			double max = 0;
+			for (int i = 0; i < slaves; i++) {
+				double share = shares.get(slaveIds[i]);
+				max = Math.max(max, share);
+				line.append(String.format(" %7.1f%%", 100 * share));
+			}
+			line.append(String.format(" %8.2f", max * slaves));
+			System.out.println(line);
+		}
+		//the registration handlers of the masters keep their threads
+		System.exit(0);
+	}
+}
@@ -31,6 +31,8 @@
 package edu.berkeley.cs162;
 
 import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.List;
 
 public class Server {
 	static SocketServer server = null;
@@ -38,20 +40,39 @@ public class Server {
 	static TPCMaster tpcMaster = null;
 	
 	/**
-	 * @param args number of SlaveServers
+	 * @param args number of SlaveServers, and optionally "binary" to talk to them in the binary protocol,
+	 * "nio" to serve the clients with a NIOSocketServer, "virtual" to handle the clients and send to the
+	 * SlaveServers from virtual threads, "hedged" to send GETs to the primary SlaveServer first and "vnodes=N"
+	 * to give each SlaveServer N points on the ring of keys
 	 * @throws IOException 
 	 */
 	public static void main(String[] args) throws Exception {		
 		
 		// Create TPCMaster
 		tpcMaster = new TPCMaster(Integer.parseInt(args[0]));
+		List<String> options = Arrays.asList(args).subList(1, args.length);
+		tpcMaster.setBinaryProtocol(options.contains("binary"));
+		tpcMaster.setVirtualThreads(options.contains("virtual"));
+		tpcMaster.setHedgedReads(options.contains("hedged"));
+		for (String option : options) {
+			if (option.startsWith("vnodes=")) {
+				tpcMaster.setVirtualNodes(Integer.parseInt(option.substring("vnodes=".length())));
+			}
+		}
 		tpcMaster.run();
 		
 		// Create KVClientHandler
 		System.out.println("Binding Master:");
-		server = new SocketServer(InetAddress.getLocalHost().getHostAddress(), 8080);
-		NetworkHandler handler = new KVClientHandler(tpcMaster);
-		server.addHandler(handler);
+		KVClientHandler handler = new KVClientHandler(tpcMaster);
+		handler.setVirtualThreads(options.contains("virtual"));
+		if (options.contains("nio")) {
+			NIOSocketServer nioServer = new NIOSocketServer(InetAddress.getLocalHost().getHostAddress(), 8080);
+			nioServer.setFrameHandler(handler);
+			server = nioServer;
+		} else {
+			server = new SocketServer(InetAddress.getLocalHost().getHostAddress(), 8080);
+			server.addHandler(handler);
+		}
 		server.connect();
 		System.out.println("Starting Master "+server.getHostname()+" on "+server.getPort());
 		server.run();		
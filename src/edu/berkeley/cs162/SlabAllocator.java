@@ -0,0 +1,290 @@
+package edu.berkeley.cs162;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Off-heap storage for the values of a KVCache, which keeps them UTF-8 encoded.
+ * Memory is taken from the OS in direct ByteBuffer slabs of SLAB_SIZE bytes.
+ * A slab is given to one size class (powers of two from MIN_CHUNK to SLAB_SIZE) and cut into chunks of that size.
+ * Freed chunks go back to the free list of their slab. A slab whose chunks are all free goes back to the
+ * allocator, and any class can take it, so that the memory of values of one size can later hold values of
+ * another size. Slabs are not returned to the OS.
+ *
+ * A chunk is identified by its address: slab number * SLAB_SIZE + offset in the slab.
+ * Allocation and free are thread-safe. Reading or writing a chunk is not synchronized: the caller must make
+ * sure a chunk is not freed while it is read, which KVCache does with the set locks.
+ */
+public class SlabAllocator {
+	public static final int SLAB_SIZE = 1 << 20;
+	public static final int MIN_CHUNK = 64;
+	private static final int MIN_CHUNK_BITS = 6;
+	private static final int NUM_CLASSES = 20 - MIN_CHUNK_BITS + 1;
+
+	private final long maxBytes;
+
+	//copy-on-write so that readers never lock; replaced under the allocator lock
+	private volatile Slab[] slabs = new Slab[0];
+
+	//slabs with no chunk in use, guarded by the allocator lock
+	private final ArrayList<Slab> freeSlabs = new ArrayList<Slab>();
+
+	private final SizeClass[] classes = new SizeClass[NUM_CLASSES];
+
+	private final AtomicLong usedBytes = new AtomicLong();
+
+	/**
+	 * @param maxBytes the most memory taken for slabs. 0 means no limit.
+	 */
+	public SlabAllocator(long maxBytes) {
+		this.maxBytes = maxBytes;
+		for (int i = 0; i < NUM_CLASSES; i++) {
+			this.classes[i] = new SizeClass(MIN_CHUNK << i);
+		}
+	}
+
+	/**
+	 * @param length number of bytes to store
+	 * @return the size of the chunk that holds length bytes, or -1 if length is larger than a slab
+	 */
+	public static int chunkSize(int length) {
+		if (length > SLAB_SIZE) {
+			return -1;
+		}
+		int size = MIN_CHUNK;
+		while (size < length) {
+			size <<= 1;
+		}
+		return size;
+	}
+
+	private static int classOf(int chunkSize) {
+		return Integer.numberOfTrailingZeros(chunkSize) - MIN_CHUNK_BITS;
+	}
+
+	/**
+	 * Copy bytes into a new chunk
+	 * @param bytes
+	 * @return the address of the chunk, or -1 if the allocator is out of memory
+	 */
+	public long store(byte[] bytes) {
+		return this.store(ByteBuffer.wrap(bytes));
+	}
+
+	/**
+	 * Copy the remaining bytes of the buffer into a new chunk. The buffer is consumed.
+	 * @param bytes
+	 * @return the address of the chunk, or -1 if the allocator is out of memory
+	 */
+	public long store(ByteBuffer bytes) {
+		long address = allocate(bytes.remaining());
+		if (address < 0) {
+			return -1;
+		}
+		ByteBuffer slab = this.slabs[(int) (address / SLAB_SIZE)].buffer.duplicate();
+		slab.position((int) (address % SLAB_SIZE));
+		slab.put(bytes);
+		return address;
+	}
+
+	/**
+	 * Copy out the bytes given to store()
+	 * @param address
+	 * @param length number of bytes stored
+	 * @return
+	 */
+	public byte[] load(long address, int length) {
+		byte[] bytes = new byte[length];
+		ByteBuffer slab = this.slabs[(int) (address / SLAB_SIZE)].buffer.duplicate();
+		slab.position((int) (address % SLAB_SIZE));
+		slab.get(bytes);
+		return bytes;
+	}
+
+	/**
+	 * @param length
+	 * @return address of a chunk of chunkSize(length) bytes, or -1 if the allocator is out of memory
+	 */
+	public long allocate(int length) {
+		int size = chunkSize(length);
+		if (size < 0) {
+			return -1;
+		}
+		SizeClass sc = this.classes[classOf(size)];
+		synchronized (sc) {
+			if (sc.partial.isEmpty() && !this.addSlab(sc)) {
+				return -1;
+			}
+			//the most recently added slab, so that the others can empty out
+			Slab slab = sc.partial.get(sc.partial.size() - 1);
+			int offset = slab.allocate();
+			if (slab.isFull()) {
+				sc.remove(slab);
+			}
+			this.usedBytes.addAndGet(size);
+			return (long) slab.number * SLAB_SIZE + offset;
+		}
+	}
+
+	/**
+	 * Return a chunk obtained from allocate(length)
+	 * @param address
+	 * @param length the same length given to allocate()
+	 */
+	public void free(long address, int length) {
+		SizeClass sc = this.classes[classOf(chunkSize(length))];
+		Slab slab = this.slabs[(int) (address / SLAB_SIZE)];
+		synchronized (sc) {
+			boolean wasFull = slab.isFull();
+			slab.free((int) (address % SLAB_SIZE));
+			if (slab.inUse == 0) {
+				//any class can take it now
+				if (!wasFull) {
+					sc.remove(slab);
+				}
+				synchronized (this) {
+					this.freeSlabs.add(slab);
+				}
+			} else if (wasFull) {
+				sc.add(slab);
+			}
+		}
+		this.usedBytes.addAndGet(-sc.chunkSize);
+	}
+
+	/**
+	 * @return bytes in chunks that are currently allocated
+	 */
+	public long getUsedBytes() {
+		return this.usedBytes.get();
+	}
+
+	/**
+	 * @return bytes taken by slabs
+	 */
+	public long getSlabBytes() {
+		return (long) this.slabs.length * SLAB_SIZE;
+	}
+
+	/**
+	 * @return bytes taken by slabs that no class holds, as all their chunks are free
+	 */
+	public long getFreeSlabBytes() {
+		synchronized (this) {
+			return (long) this.freeSlabs.size() * SLAB_SIZE;
+		}
+	}
+
+	/**
+	 * Give sc a slab that no class holds, or else a new one. Called with sc locked.
+	 * @param sc
+	 * @return false if the memory limit is reached and every slab is held
+	 */
+	private boolean addSlab(SizeClass sc) {
+		Slab slab;
+		synchronized (this) {
+			if (!this.freeSlabs.isEmpty()) {
+				slab = this.freeSlabs.remove(this.freeSlabs.size() - 1);
+			} else {
+				Slab[] old = this.slabs;
+				if (this.maxBytes > 0 && (long) (old.length + 1) * SLAB_SIZE > this.maxBytes) {
+					return false;
+				}
+				Slab[] grown = Arrays.copyOf(old, old.length + 1);
+				slab = new Slab(old.length, ByteBuffer.allocateDirect(SLAB_SIZE));
+				grown[old.length] = slab;
+				this.slabs = grown;
+			}
+		}
+		slab.carve(sc.chunkSize);
+		sc.add(slab);
+		return true;
+	}
+
+	/**
+	 * A slab, cut into chunks of the size of the class that holds it. Chunks that were never allocated are
+	 * taken in order, so that cutting the slab takes no time. Guarded by the monitor of the class that
+	 * holds it, or by the allocator lock while no class does.
+	 */
+	private static class Slab {
+		final int number;
+		final ByteBuffer buffer;
+		int chunkSize;
+		//offset of the first chunk that was never allocated
+		int unused;
+		//offsets of the freed chunks
+		int[] free = new int[0];
+		int numFree = 0;
+		int inUse = 0;
+		//position in the partial list of its class, -1 if it is not in it
+		int partialIndex = -1;
+
+		Slab(int number, ByteBuffer buffer) {
+			this.number = number;
+			this.buffer = buffer;
+		}
+
+		void carve(int chunkSize) {
+			if (chunkSize != this.chunkSize) {
+				this.free = new int[0];
+			}
+			this.chunkSize = chunkSize;
+			this.unused = 0;
+			this.numFree = 0;
+		}
+
+		boolean isFull() {
+			return this.numFree == 0 && this.unused == SLAB_SIZE;
+		}
+
+		/**
+		 * @return the offset of a chunk. The slab must not be full.
+		 */
+		int allocate() {
+			this.inUse++;
+			if (this.numFree > 0) {
+				return this.free[--this.numFree];
+			}
+			int offset = this.unused;
+			this.unused += this.chunkSize;
+			return offset;
+		}
+
+		void free(int offset) {
+			this.inUse--;
+			if (this.numFree == this.free.length) {
+				this.free = Arrays.copyOf(this.free, Math.max(16, 2 * this.free.length));
+			}
+			this.free[this.numFree++] = offset;
+		}
+	}
+
+	/**
+	 * The slabs of one chunk size that have free chunks. Guarded by its own monitor
+	 */
+	private static class SizeClass {
+		final int chunkSize;
+		final ArrayList<Slab> partial = new ArrayList<Slab>();
+
+		SizeClass(int chunkSize) {
+			this.chunkSize = chunkSize;
+		}
+
+		void add(Slab slab) {
+			slab.partialIndex = this.partial.size();
+			this.partial.add(slab);
+		}
+
+		void remove(Slab slab) {
+			//the last slab takes its place
+			Slab last = this.partial.remove(this.partial.size() - 1);
+			if (last != slab) {
+				last.partialIndex = slab.partialIndex;
+				this.partial.set(slab.partialIndex, last);
+			}
+			slab.partialIndex = -1;
+		}
+	}
+}
@@ -29,6 +29,7 @@
  */
 package edu.berkeley.cs162;
 
+import java.io.File;
 import java.net.InetAddress;
 
 public class SlaveServer {
@@ -48,18 +49,26 @@ public class SlaveServer {
 	 */
 	public static void main(String[] args) throws Exception {
 		System.out.println(args.length);
-		if (args.length != 2) {
-			System.err.println("USAGE: SlaveServer <slaveID> <masterHostName>");
+		if (args.length < 2 || args.length > 5) {
+			System.err.println("USAGE: SlaveServer <slaveID> <masterHostName> [clock|lru|lfu|wtinylfu] [offHeapCacheMB] [dataDir]");
 			System.exit(1);
 		}
 		
 		// Read Master info from command line
 		slaveID = Long.parseLong(args[0]);
 		masterHostName = args[1];
+		String cachePolicy = args.length >= 3 ? args[2] : EvictionPolicy.CLOCK;
+		//cached values are kept off-heap in at most this many MB of slabs; 0 keeps them on the heap
+		SlabAllocator cacheValueStore = null;
+		if (args.length >= 4 && Long.parseLong(args[3]) > 0) {
+			cacheValueStore = new SlabAllocator(Long.parseLong(args[3]) << 20);
+		}
+		//the pairs are kept on disk in dataDir, otherwise in memory
+		KVStore dataStore = args.length == 5 ? new LogStructuredStore(new File(args[4])) : new KVStore();
 		
 		// Create TPCMasterHandler
 		System.out.println("Binding SlaveServer:");
-		keyServer = new KVServer(100, 10);
+		keyServer = new KVServer(dataStore, new KVCache(100, 10, 0, EvictionPolicy.forName(cachePolicy), cacheValueStore));
 		server = new SocketServer(InetAddress.getLocalHost().getHostAddress());
 		TPCMasterHandler handler = new TPCMasterHandler(keyServer, slaveID);
 		server.addHandler(handler);
@@ -71,6 +80,11 @@ public class SlaveServer {
 		
 		// Load from disk and rebuild logs
 		tpcLog.rebuildKeyServer();
+		if (dataStore instanceof LogStructuredStore) {
+			//the store now holds every decided operation, so the next start only replays what comes after
+			((LogStructuredStore) dataStore).sync();
+			tpcLog.checkpoint();
+		}
 		
 		// Set log for TPCMasterHandler
 		handler.setTPCLog(tpcLog);
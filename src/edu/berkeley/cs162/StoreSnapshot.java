@@ -0,0 +1,397 @@
+package edu.berkeley.cs162;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Binary snapshot of a KVStore, the compact alternative to the XML storeDump (see KVStore.dumpToFile()).
+ *
+ * A snapshot is a header of HEADER_SIZE bytes followed by the payload:
+ * MAGIC (int), version (byte), flags (byte), 0 (short), number of pairs (long), CRC32 of the records (long),
+ * payload length (long), then the records, each keyLength (int), key, valueLength (int), value, in UTF-8.
+ * If the COMPRESSED flag is set, the records are cut in blocks of BLOCK_SIZE bytes, and each block is
+ * written deflated as rawLength (int), compressedLength (int), compressed bytes. The CRC is of the records
+ * before compression.
+ *
+ * The header is written last, so a dump that did not complete does not look like a snapshot.
+ * Files are read and written through FileChannels with direct buffers of BUFFER_SIZE bytes.
+ */
+public final class StoreSnapshot {
+	static final int MAGIC = 0x4B565350;
+	static final int HEADER_SIZE = 32;
+	private static final byte VERSION = 1;
+	private static final byte COMPRESSED = 1;
+	private static final int BUFFER_SIZE = 256 * 1024;
+	private static final int BLOCK_SIZE = 64 * 1024;
+	//UTF-8 takes at most 3 bytes per char
+	private static final int MAX_KEY_BYTES = KVMessage.MAX_KEY_LENGTH * 3;
+	private static final int MAX_VALUE_BYTES = KVMessage.MAX_VALUE_LENGTH * 3;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private StoreSnapshot() {
+	}
+
+	/**
+	 * Check the magic number without moving the position of the channel
+	 * @param channel
+	 * @return whether the channel holds a snapshot rather than XML
+	 * @throws IOException
+	 */
+	public static boolean isSnapshot(FileChannel channel) throws IOException {
+		ByteBuffer magic = ByteBuffer.allocate(4);
+		while (magic.hasRemaining() && channel.read(magic, magic.position()) >= 0) {
+		}
+		return !magic.hasRemaining() && magic.getInt(0) == MAGIC;
+	}
+
+	/**
+	 * Write the pairs as a snapshot, from the start of the channel
+	 * @param pairs
+	 * @param channel
+	 * @param compress whether to deflate the records
+	 * @throws IOException
+	 */
+	public static void write(Iterator<Map.Entry<String, String>> pairs, FileChannel channel, boolean compress)
+			throws IOException {
+		Output out = new Output(channel, compress);
+		long count = 0;
+		try {
+			while (pairs.hasNext()) {
+				Map.Entry<String, String> pair = pairs.next();
+				out.putBytes(pair.getKey().getBytes(UTF8));
+				out.putBytes(pair.getValue().getBytes(UTF8));
+				count++;
+			}
+			out.finish();
+		} finally {
+			out.end();
+		}
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC).put(VERSION).put(compress ? COMPRESSED : 0).putShort((short) 0);
+		header.putLong(count).putLong(out.crc.getValue()).putLong(out.position - HEADER_SIZE);
+		header.flip();
+		while (header.hasRemaining()) {
+			channel.write(header, header.position());
+		}
+	}
+
+	private static KVException ioError() throws KVException {
+		return new KVException(new KVMessage(KVMessage.RESPTYPE, "IO Error"));
+	}
+
+	/**
+	 * Buffered writer of the payload, which compresses it if asked
+	 */
+	private static class Output {
+		final FileChannel channel;
+		final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		final CRC32 crc = new CRC32();
+		final byte[] scratch = new byte[4];
+		//for the block lengths, as scratch may be in the middle of a put()
+		final byte[] frame = new byte[4];
+		//channel position of the start of the buffer
+		long position = HEADER_SIZE;
+
+		//records that are not compressed yet; null if not compressing
+		final byte[] block;
+		int blockLength = 0;
+		final Deflater deflater;
+		byte[] compressed;
+
+		Output(FileChannel channel, boolean compress) {
+			this.channel = channel;
+			this.block = compress ? new byte[BLOCK_SIZE] : null;
+			this.deflater = compress ? new Deflater(Deflater.BEST_SPEED) : null;
+			this.compressed = compress ? new byte[BLOCK_SIZE] : null;
+		}
+
+		void putBytes(byte[] b) throws IOException {
+			this.putInt(b.length);
+			this.put(b, 0, b.length);
+		}
+
+		void putInt(int v) throws IOException {
+			toBytes(v, this.scratch);
+			this.put(this.scratch, 0, 4);
+		}
+
+		/**
+		 * record bytes
+		 */
+		void put(byte[] b, int off, int len) throws IOException {
+			this.crc.update(b, off, len);
+			if (this.block == null) {
+				this.raw(b, off, len);
+				return;
+			}
+			while (len > 0) {
+				int n = Math.min(len, this.block.length - this.blockLength);
+				System.arraycopy(b, off, this.block, this.blockLength, n);
+				this.blockLength += n;
+				off += n;
+				len -= n;
+				if (this.blockLength == this.block.length) {
+					this.flushBlock();
+				}
+			}
+		}
+
+		void flushBlock() throws IOException {
+			this.deflater.reset();
+			this.deflater.setInput(this.block, 0, this.blockLength);
+			this.deflater.finish();
+			int n = 0;
+			while (!this.deflater.finished()) {
+				if (n == this.compressed.length) {
+					//incompressible block
+					this.compressed = Arrays.copyOf(this.compressed, this.compressed.length * 2);
+				}
+				n += this.deflater.deflate(this.compressed, n, this.compressed.length - n);
+			}
+			toBytes(this.blockLength, this.frame);
+			this.raw(this.frame, 0, 4);
+			toBytes(n, this.frame);
+			this.raw(this.frame, 0, 4);
+			this.raw(this.compressed, 0, n);
+			this.blockLength = 0;
+		}
+
+		void raw(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				if (!this.buffer.hasRemaining()) {
+					this.drain();
+				}
+				int n = Math.min(len, this.buffer.remaining());
+				this.buffer.put(b, off, n);
+				off += n;
+				len -= n;
+			}
+		}
+
+		void drain() throws IOException {
+			this.buffer.flip();
+			while (this.buffer.hasRemaining()) {
+				this.position += this.channel.write(this.buffer, this.position);
+			}
+			this.buffer.clear();
+		}
+
+		void finish() throws IOException {
+			if (this.block != null && this.blockLength > 0) {
+				this.flushBlock();
+			}
+			this.drain();
+		}
+
+		void end() {
+			if (this.deflater != null) {
+				this.deflater.end();
+			}
+		}
+	}
+
+	private static void toBytes(int v, byte[] b) {
+		b[0] = (byte) (v >>> 24);
+		b[1] = (byte) (v >>> 16);
+		b[2] = (byte) (v >>> 8);
+		b[3] = (byte) v;
+	}
+
+	private static int toInt(byte[] b) {
+		return ((b[0] & 0xFF) << 24) | ((b[1] & 0xFF) << 16) | ((b[2] & 0xFF) << 8) | (b[3] & 0xFF);
+	}
+
+	/**
+	 * Reads the pairs of a snapshot one at a time. A snapshot that is truncated or does not match its
+	 * header gives an IO Error, at the latest when next() reaches the end.
+	 */
+	public static class Reader {
+		private final FileChannel channel;
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		private final CRC32 crc = new CRC32();
+		private final byte[] scratch = new byte[4];
+		//for the block lengths, as scratch may be in the middle of a get()
+		private final byte[] frame = new byte[4];
+		private final long count;
+		private final long checksum;
+		//channel position of the end of the buffer, and of the payload
+		private long position = HEADER_SIZE;
+		private final long end;
+		private long read = 0;
+
+		//the inflated block; null if not compressed
+		private final byte[] block;
+		private int blockLength = 0;
+		private int blockPosition = 0;
+		private final Inflater inflater;
+		private byte[] compressed;
+
+		private String key;
+		private String value;
+
+		/**
+		 * @param channel with a snapshot, see isSnapshot()
+		 * @throws IOException
+		 * @throws KVException if the header is not valid
+		 */
+		public Reader(FileChannel channel) throws IOException, KVException {
+			this.channel = channel;
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			while (header.hasRemaining() && channel.read(header, header.position()) >= 0) {
+			}
+			if (header.hasRemaining() || header.getInt(0) != MAGIC || header.get(4) != VERSION) {
+				throw ioError();
+			}
+			boolean compress = (header.get(5) & COMPRESSED) != 0;
+			this.count = header.getLong(8);
+			this.checksum = header.getLong(16);
+			this.end = HEADER_SIZE + header.getLong(24);
+			if (this.count < 0 || this.end != channel.size()) {
+				throw ioError();
+			}
+			this.buffer.limit(0);
+			this.block = compress ? new byte[BLOCK_SIZE] : null;
+			this.inflater = compress ? new Inflater() : null;
+			this.compressed = compress ? new byte[BLOCK_SIZE] : null;
+		}
+
+		/**
+		 * Read the next pair
+		 * @return false at the end of the snapshot
+		 * @throws IOException
+		 * @throws KVException if the snapshot is corrupt
+		 */
+		public boolean next() throws IOException, KVException {
+			if (this.read == this.count) {
+				this.end();
+				if (this.position != this.end || this.buffer.hasRemaining() || this.blockPosition != this.blockLength
+						|| this.crc.getValue() != this.checksum) {
+					throw ioError();
+				}
+				return false;
+			}
+			this.key = this.getString(MAX_KEY_BYTES);
+			this.value = this.getString(MAX_VALUE_BYTES);
+			this.read++;
+			return true;
+		}
+
+		public String getKey() {
+			return this.key;
+		}
+
+		public String getValue() {
+			return this.value;
+		}
+
+		/**
+		 * Release the inflater. next() does it at the end of the snapshot.
+		 */
+		public void end() {
+			if (this.inflater != null) {
+				this.inflater.end();
+			}
+		}
+
+		private String getString(int maxBytes) throws IOException, KVException {
+			this.get(this.scratch, 0, 4);
+			int length = toInt(this.scratch);
+			if (length < 0 || length > maxBytes) {
+				throw ioError();
+			}
+			byte[] b = new byte[length];
+			this.get(b, 0, length);
+			return new String(b, UTF8);
+		}
+
+		/**
+		 * record bytes
+		 */
+		private void get(byte[] b, int off, int len) throws IOException, KVException {
+			if (this.block == null) {
+				this.raw(b, off, len);
+			} else {
+				for (int done = 0; done < len;) {
+					if (this.blockPosition == this.blockLength) {
+						this.nextBlock();
+					}
+					int n = Math.min(len - done, this.blockLength - this.blockPosition);
+					System.arraycopy(this.block, this.blockPosition, b, off + done, n);
+					this.blockPosition += n;
+					done += n;
+				}
+			}
+			this.crc.update(b, off, len);
+		}
+
+		private void nextBlock() throws IOException, KVException {
+			this.raw(this.frame, 0, 4);
+			int rawLength = toInt(this.frame);
+			this.raw(this.frame, 0, 4);
+			int compressedLength = toInt(this.frame);
+			if (rawLength <= 0 || rawLength > BLOCK_SIZE || compressedLength <= 0
+					|| compressedLength > this.end - this.position + this.buffer.remaining()) {
+				throw ioError();
+			}
+			if (compressedLength > this.compressed.length) {
+				this.compressed = new byte[compressedLength];
+			}
+			this.raw(this.compressed, 0, compressedLength);
+
+			this.inflater.reset();
+			this.inflater.setInput(this.compressed, 0, compressedLength);
+			try {
+				int n = 0;
+				while (n < rawLength && !this.inflater.finished() && !this.inflater.needsInput()) {
+					n += this.inflater.inflate(this.block, n, rawLength - n);
+				}
+				if (n != rawLength || !this.inflater.finished()) {
+					throw ioError();
+				}
+			} catch (DataFormatException e) {
+				throw ioError();
+			}
+			this.blockLength = rawLength;
+			this.blockPosition = 0;
+		}
+
+		private void raw(byte[] b, int off, int len) throws IOException, KVException {
+			while (len > 0) {
+				if (!this.buffer.hasRemaining()) {
+					this.fill();
+				}
+				int n = Math.min(len, this.buffer.remaining());
+				this.buffer.get(b, off, n);
+				off += n;
+				len -= n;
+			}
+		}
+
+		private void fill() throws IOException, KVException {
+			this.buffer.clear();
+			this.buffer.limit((int) Math.min(this.buffer.capacity(), this.end - this.position));
+			if (!this.buffer.hasRemaining()) {
+				//the records go past the payload
+				throw ioError();
+			}
+			while (this.buffer.hasRemaining()) {
+				int n = this.channel.read(this.buffer, this.position);
+				if (n < 0) {
+					throw ioError();
+				}
+				this.position += n;
+			}
+			this.buffer.flip();
+		}
+	}
+}
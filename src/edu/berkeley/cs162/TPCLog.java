@@ -36,6 +36,7 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 
 public class TPCLog {
 
@@ -159,7 +160,11 @@ public class TPCLog {
 				if (msgToCommit.getMsgType().equals(KVMessage.PUTTYPE)){
 					this.kvServer.put(msgToCommit.getKey(), msgToCommit.getValue());
 				} else {
-					this.kvServer.del(msgToCommit.getKey());
+					try {
+						this.kvServer.del(msgToCommit.getKey());
+					} catch (KVException e) {
+						//a persistent store may already have applied the del before the crash
+					}
 				}
 			} else if (type.equals(KVMessage.ABORTTYPE)){
 				this.interruptedTpcOperations.remove(msg.getTpcOpId());
@@ -173,6 +178,25 @@ public class TPCLog {
 		}
 	}
 	
+	/**
+	 * Drop the decided operations from the log, and keep the interrupted ones.
+	 * Only call this after rebuildKeyServer() when the KVServer keeps its pairs on disk and has synced them,
+	 * since the dropped operations are not replayed again.
+	 */
+	public void checkpoint() {
+		LinkedHashMap<String, KVMessage> undecided = new LinkedHashMap<String, KVMessage>();
+		for (KVMessage msg : this.entries) {
+			String type = msg.getMsgType();
+			if (type.equals(KVMessage.PUTTYPE) || type.equals(KVMessage.DELTYPE)) {
+				undecided.put(msg.getTpcOpId(), msg);
+			} else {
+				undecided.remove(msg.getTpcOpId());
+			}
+		}
+		this.entries = new ArrayList<KVMessage>(undecided.values());
+		this.flushToDisk();
+	}
+	
 	/**
 	 * 
 	 * @return Interrupted 2PC operation, if any 
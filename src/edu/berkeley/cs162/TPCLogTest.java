@@ -2,9 +2,11 @@ package edu.berkeley.cs162;
 
 import static org.junit.Assert.*;
 
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.HashMap;
 
@@ -344,6 +346,63 @@ public class TPCLogTest {
 		}
   	}
   
-
-
+  @Test
+  /**
+   * With a persistent store, the decided operations are dropped from the log and the next start only replays the rest
+   */
+  	public void checkpointTest() throws IOException, KVException {
+		File dir = Files.createTempDirectory("checkpointTest").toFile();
+		
+		ArrayList<KVMessage> entries = new ArrayList<KVMessage>();
+		KVMessage put1 = new KVMessage(KVMessage.PUTTYPE);
+		put1.setKey("key1");
+		put1.setValue("value1");
+		put1.setTpcOpId("1");
+		KVMessage commit1 = new KVMessage(KVMessage.COMMITTYPE);
+		commit1.setTpcOpId("1");
+		KVMessage del2 = new KVMessage(KVMessage.DELTYPE);
+		del2.setKey("key1");
+		del2.setTpcOpId("2");
+		entries.add(put1);
+		entries.add(commit1);
+		entries.add(del2);
+		
+		String fileName = "checkpointTest";
+		this.writeEntries(fileName, entries);
+		
+		LogStructuredStore store = new LogStructuredStore(dir);
+		KVServer kvServer = new KVServer(store, new KVCache(10, 10));
+		TPCLog tpcLog = new TPCLog(fileName, kvServer);
+		tpcLog.rebuildKeyServer();
+		store.sync();
+		tpcLog.checkpoint();
+		assertEquals(tpcLog.getEntries().size(), 1);
+		assertEquals(kvServer.get("key1"), "value1");
+		
+		//the del is committed and applied, then the slave crashes
+		KVMessage commit2 = new KVMessage(KVMessage.COMMITTYPE);
+		commit2.setTpcOpId("2");
+		tpcLog.appendAndFlush(commit2);
+		kvServer.del("key1");
+		store.close();
+		
+		//replaying the del finds key1 already gone, which must not fail
+		store = new LogStructuredStore(dir);
+		kvServer = new KVServer(store, new KVCache(10, 10));
+		tpcLog = new TPCLog(fileName, kvServer);
+		tpcLog.rebuildKeyServer();
+		try {
+			kvServer.get("key1");
+			fail();
+		} catch (KVException e) {
+			assertEquals(e.getMsg().getMessage(), "Does not exist");
+		}
+		assertEquals(tpcLog.getInterruptedTpcOperations(), null);
+		store.close();
+		
+		for (File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+  	}
 }
@@ -35,10 +35,26 @@ import java.net.InetAddress;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Comparator;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock.ReadLock;
@@ -74,29 +90,33 @@ public class TPCMaster implements Debuggable {
 			} catch (InterruptedException e) {
 				// Ignore this error
 				return;
+			} catch (KVException e) {
+				KVConnection conn = new KVConnection(client);
+				conn.sendIgnoringException(e.getMsg());
+				conn.close();
 			}
 		}
 		
 		private class RegistrationHandler implements Runnable {
 			
-			private Socket client = null;
+			private KVConnection client = null;
 
 			public RegistrationHandler(Socket client) {
-				this.client = client;
+				this.client = new KVConnection(client);
 			}
 		
 			@Override
 			public void run() {
 				KVMessage msg=null;
 				try {
-					msg = new KVMessage(client);
+					msg = client.receive();
 				} catch (KVException e) {
-					e.getMsg().sendMessageIgnoringException(this.client);
+					this.client.sendIgnoringException(e.getMsg());
 					return;
 				}
 				
 				if (!msg.getMsgType().equals(KVMessage.REGISTERTYPE)){
-					KVMessage.sendRespMsgIgnoringException("Unknown Error: cannot recognize the message type", this.client);
+					this.client.sendRespIgnoringException("Unknown Error: cannot recognize the message type");
 					return;
 				}
 								
@@ -105,29 +125,74 @@ public class TPCMaster implements Debuggable {
 					slaveInfo = new SlaveInfo(msg.getMessage());
 				} catch (KVException e) {
 					System.out.println("error when parsig: "+msg.getMessage());
-					e.getMsg().sendMessageIgnoringException(this.client);
+					this.client.sendIgnoringException(e.getMsg());
 					return;
 				}
 					
-				TPCMaster.this.slaveInfosLock.lock();
-				try{
-					TPCMaster.this.slaveInfos.put(slaveInfo.getSlaveID(), slaveInfo);
-					if (TPCMaster.this.slaveInfos.size()>TPCMaster.this.numSlaves){
-						TPCMaster.this.slaveInfos.remove(slaveInfo.getSlaveID());
-						KVMessage.sendRespMsgIgnoringException("Unknown Error: master already has enough slave servers", this.client);
-						return;
-					}
-				}finally{
-					TPCMaster.this.slaveInfosLock.unlock();
+				if (!TPCMaster.this.registerSlave(slaveInfo)){
+					this.client.sendRespIgnoringException("Unknown Error: master already has enough slave servers");
+					return;
 				}
 				
 				//send back message
-				KVMessage.sendRespMsgIgnoringException(String.format("Successfully registered %s@%s:%s", slaveInfo.slaveID, slaveInfo.hostName, slaveInfo.port), this.client);
+				this.client.sendRespIgnoringException(String.format("Successfully registered %s@%s:%s", slaveInfo.slaveID, slaveInfo.hostName, slaveInfo.port));
 
 			}
 		}	
 	}
 	
+	/**
+	 * An idle connection of the pool of a slave server
+	 */
+	private static class PooledConnection {
+		private final KVConnection conn;
+		private long lastUsed;
+		
+		PooledConnection(KVConnection conn) {
+			this.conn = conn;
+		}
+	}
+	
+	/**
+	 * The connection that an exchange with a slave server is on, which another thread can close to give up on it
+	 */
+	private static class InFlightExchange {
+		private KVConnection conn = null;
+		private boolean cancelled = false;
+		
+		/**
+		 * @param conn that the exchange is about to use
+		 * @return false if the exchange was cancelled, and then conn is closed
+		 */
+		synchronized boolean begin(KVConnection conn) {
+			if (this.cancelled) {
+				conn.close();
+				return false;
+			}
+			this.conn = conn;
+			return true;
+		}
+		
+		/**
+		 * @return false if the exchange was cancelled, and then its connection is closed
+		 */
+		synchronized boolean end() {
+			this.conn = null;
+			return !this.cancelled;
+		}
+		
+		/**
+		 * Close the connection of the exchange, if it is on one, and keep it from starting on another
+		 */
+		synchronized void cancel() {
+			this.cancelled = true;
+			if (this.conn != null) {
+				this.conn.close();
+				this.conn = null;
+			}
+		}
+	}
+	
 	/**
 	 *  Data structure to maintain information about SlaveServers
 	 *
@@ -139,6 +204,8 @@ public class TPCMaster implements Debuggable {
 		private String hostName = null;
 		// Port which SlaveServer is listening to
 		private int port = -1;
+		// Idle persistent connections to the slave server, the most recently used first
+		private final ArrayDeque<PooledConnection> idleConnections = new ArrayDeque<PooledConnection>();
 
 		/**
 		 * 
@@ -202,13 +269,193 @@ public class TPCMaster implements Debuggable {
 				throw new KVException(new KVMessage(KVMessage.RESPTYPE, "Unknown Error: Could not close the socket"));
 			}
 		}
+		
+		/**
+		 * Send a request to the slave server and receive its response, on an idle connection of the pool if
+		 * there is one. A pooled connection that the slave server closed while it was idle is replaced by a new
+		 * one once. Any other failure is not retried, as the slave server may have handled the request.
+		 * @param msg
+		 * @return the response
+		 * @throws KVException if the request could not be sent or the response could not be received
+		 */
+		public KVMessage exchange(KVMessage msg) throws KVException {
+			return this.exchange(msg, null);
+		}
+		
+		/**
+		 * As exchange(msg), on a connection that inFlight can close
+		 * @param msg
+		 * @param inFlight or null
+		 * @return the response
+		 * @throws KVException if the request could not be sent or the response could not be received, or inFlight
+		 * was cancelled
+		 */
+		public KVMessage exchange(KVMessage msg, InFlightExchange inFlight) throws KVException {
+			PooledConnection pooled = this.borrowConnection();
+			if (pooled != null) {
+				KVMessage response = this.exchange(pooled, msg, true, inFlight);
+				if (response != null) {
+					return response;
+				}
+				DEBUG.debug("pooled connection to "+this.hostName+" with port "+this.port+" was closed, reconnecting");
+			}
+			return this.exchange(this.openConnection(), msg, false, inFlight);
+		}
+		
+		/**
+		 * @param pooled
+		 * @param msg
+		 * @param stale whether the connection may have been closed by the slave server while it was idle
+		 * @param inFlight or null
+		 * @return the response, or null if stale and the request cannot have been handled: the send failed, or
+		 * the connection ended before a byte of the response. A timeout, or a response cut short, is an error,
+		 * as the slave server may have handled the request.
+		 * @throws KVException
+		 */
+		private KVMessage exchange(PooledConnection pooled, KVMessage msg, boolean stale, InFlightExchange inFlight) throws KVException {
+			if (inFlight != null && !inFlight.begin(pooled.conn)) {
+				throw new KVException(new KVMessage(KVMessage.RESPTYPE, "Network Error: Could not send data"));
+			}
+			KVMessage response;
+			try {
+				pooled.conn.send(msg);
+			} catch (KVException e) {
+				pooled.conn.close();
+				if (stale) {
+					return null;
+				}
+				throw e;
+			}
+			try {
+				response = pooled.conn.receive();
+			} catch (KVException e) {
+				pooled.conn.close();
+				if (stale && pooled.conn.isEndedBeforeMessage()) {
+					return null;
+				}
+				throw e;
+			}
+			if (inFlight == null || inFlight.end()) {
+				this.releaseConnection(pooled);
+			}
+			return response;
+		}
+		
+		private PooledConnection openConnection() throws KVException {
+			Socket sock = this.connectHost();
+			try {
+				sock.setSoTimeout(TPCMaster.TIMEOUT_MILLISECONDS);
+				sock.setTcpNoDelay(true);
+			} catch (SocketException e) {
+				try {
+					sock.close();
+				} catch (IOException e1) {
+					//silence this
+				}
+				throw new KVException(new KVMessage(KVMessage.RESPTYPE, "Unknown Error: could not set timeout of socket"));
+			}
+			//framed XML if not binary, so that the connection can be kept
+			return new PooledConnection(new KVConnection(sock, TPCMaster.this.binary, TPCMaster.this.maxIdleConnections > 0));
+		}
+		
+		/**
+		 * @return the most recently used idle connection that passes the health check, or null
+		 */
+		private PooledConnection borrowConnection() {
+			while (true) {
+				PooledConnection pooled;
+				synchronized (this.idleConnections) {
+					this.evictIdleConnections();
+					pooled = this.idleConnections.pollFirst();
+				}
+				if (pooled == null || pooled.conn.isHealthy()) {
+					return pooled;
+				}
+				pooled.conn.close();
+			}
+		}
+		
+		private void releaseConnection(PooledConnection pooled) {
+			if (pooled.conn.isPersistent()) {
+				pooled.lastUsed = System.currentTimeMillis();
+				synchronized (this.idleConnections) {
+					this.evictIdleConnections();
+					if (this.idleConnections.size() < TPCMaster.this.maxIdleConnections) {
+						this.idleConnections.addFirst(pooled);
+						return;
+					}
+				}
+			}
+			pooled.conn.close();
+		}
+		
+		/**
+		 * Close the connections that were idle for longer than the idle timeout. Call with idleConnections locked.
+		 */
+		private void evictIdleConnections() {
+			long oldest = System.currentTimeMillis() - TPCMaster.this.idleTimeout;
+			PooledConnection pooled;
+			while ((pooled = this.idleConnections.peekLast()) != null && pooled.lastUsed < oldest) {
+				this.idleConnections.pollLast().conn.close();
+			}
+		}
+		
+		/**
+		 * Close the idle connections of the pool
+		 */
+		public void closeConnections() {
+			synchronized (this.idleConnections) {
+				PooledConnection pooled;
+				while ((pooled = this.idleConnections.pollFirst()) != null) {
+					pooled.conn.close();
+				}
+			}
+		}
 	}
 	
 	// Timeout value used during 2PC operations
 	private static final int TIMEOUT_MILLISECONDS = 5000;
 	
+	// How long a phase waits for the slave servers, which covers a request and its retry on a new connection
+	// when the pooled one turns out to be closed
+	private static final int PHASE_TIMEOUT_MILLISECONDS = TIMEOUT_MILLISECONDS + 1000;
+	
+	/**
+	 * How long the primary has to answer a hedged GET before it is sent to the successor as well, until
+	 * enough GETs have been timed
+	 */
+	public static final int DEFAULT_HEDGE_DELAY_MILLISECONDS = 20;
+	
+	// How many of the latest GETs to the primaries the hedge delay is taken from, and how often it is
+	private static final int READ_LATENCY_SAMPLES = 256;
+	private static final int READ_LATENCY_UPDATE = 32;
+	
+	/**
+	 * Idle connections kept to each slave server, by default
+	 */
+	public static final int DEFAULT_MAX_IDLE_CONNECTIONS = 8;
+	
+	/**
+	 * How long an idle connection to a slave server is kept, by default. Shorter than the idle timeout of
+	 * TPCMasterHandler, so that the master server closes its connections first.
+	 */
+	public static final int DEFAULT_IDLE_TIMEOUT = 30 * 1000;
+	
 	// Cache stored in the Master/Coordinator Server
-	private KVCache masterCache = new KVCache(100, 10);
+	private KVCache masterCache = null;
+	
+	// Held for a key across the round trips of an operation on it, while the cache is only locked to be updated
+	private final KeyLocks keyLocks = new KeyLocks();
+	
+	// Whether GETs go to the primary first, and to the successor only if the primary is slow or fails
+	private volatile boolean hedgedReads = false;
+	// The 95th percentile of the latest latencies of the GETs to the primaries
+	private volatile long hedgeDelayNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_HEDGE_DELAY_MILLISECONDS);
+	private final AtomicLongArray readLatencies = new AtomicLongArray(READ_LATENCY_SAMPLES);
+	private final AtomicLong readLatencyCount = new AtomicLong();
+	
+	// Fetches of keys that missed the cache, which the misses of the key that follow wait for
+	private final HashMap<String, FutureTask<String>> fetches = new HashMap<String, FutureTask<String>>();
 	
 	// Registration server that uses TPCRegistrationHandler
 	private SocketServer regServer = null;
@@ -217,10 +464,32 @@ public class TPCMaster implements Debuggable {
 	private int numSlaves = -1;
 	
 	// ID of the next 2PC operation
-	private Long tpcOpId = 0L;
+	private final AtomicLong tpcOpId = new AtomicLong();
+	
+	// Whether to talk to the slave servers in the binary protocol of KVMessage
+	private volatile boolean binary = false;
+	
+	// Connection pools of the slave servers
+	private volatile int maxIdleConnections = DEFAULT_MAX_IDLE_CONNECTIONS;
+	private volatile int idleTimeout = DEFAULT_IDLE_TIMEOUT;
+	
+	// Threads that send the requests of the operations to the slave servers, kept between operations
+	private final ExecutorService fanoutThreads = Executors.newCachedThreadPool(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "TPCMaster");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	// Sends the requests to the slave servers: fanoutThreads, or a virtual thread per request
+	private volatile Executor fanout = fanoutThreads;
 	
 	//slaveInfos of slave servers
 	private TreeMap<Long, SlaveInfo> slaveInfos = new TreeMap<Long, SlaveInfo>(new UnsignedLongComparator());
+	
+	//the points of the slave servers on the ring of keys, virtualNodes for each, rebuilt under slaveInfosLock
+	private volatile Ring ring = new Ring(new TreeMap<Long, SlaveInfo>(), 0, false);
+	private int virtualNodes = 1;
 	private WriteLock slaveInfosLock = new ReentrantReadWriteLock().writeLock();
 	
 	/**
@@ -230,14 +499,331 @@ public class TPCMaster implements Debuggable {
 	 * @throws Exception
 	 */
 	public TPCMaster(int numSlaves) {
+		this(numSlaves, new KVCache(100, 10));
+	}
+	
+	/**
+	 * Creates TPCMaster
+	 * 
+	 * @param numSlaves number of expected slave servers to register
+	 * @param masterCache cache of the master, e.g. one with a byte budget
+	 */
+	public TPCMaster(int numSlaves, KVCache masterCache) {
 		// Using SlaveInfos from command line just to get the expected number of SlaveServers 
 		this.numSlaves = numSlaves;
+		this.masterCache = masterCache;
 
 		// Create registration server
 		regServer = new SocketServer("localhost", 9090);
 		regServer.addHandler(new TPCRegistrationHandler());
 	}
 	
+	/**
+	 * Send the requests to the slave servers in the binary protocol of KVMessage instead of XML
+	 * @param binary
+	 */
+	public void setBinaryProtocol(boolean binary) {
+		this.binary = binary;
+		this.closeConnections();
+	}
+	
+	/**
+	 * Keep up to maxIdleConnections connections to each slave server open between requests, instead of a
+	 * connection per request. Requests to the slave servers are sent in framed XML (or binary) so that
+	 * TPCMasterHandler keeps the connections alive. 0 turns pooling off.
+	 * @param maxIdleConnections
+	 */
+	public void setMaxIdleConnections(int maxIdleConnections) {
+		this.maxIdleConnections = maxIdleConnections;
+		this.closeConnections();
+	}
+	
+	/**
+	 * @param idleTimeout milliseconds that an idle connection to a slave server is kept
+	 */
+	public void setIdleTimeout(int idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+	
+	/**
+	 * Send the requests of an operation to the slave servers from a virtual thread each instead of the shared
+	 * platform threads, so that operations that wait for slow slave servers (up to the 5 second timeout) hold no
+	 * platform thread. See VirtualThreads for Java without virtual threads.
+	 * @param virtualThreads
+	 */
+	public void setVirtualThreads(boolean virtualThreads) {
+		this.fanout = virtualThreads ? VirtualThreads.newThreadPerTaskExecutor("TPCMaster") : this.fanoutThreads;
+	}
+	
+	/**
+	 * Send a GET that misses the cache to the primary first, and to the successor as well only if the primary
+	 * fails, or has not answered within the 95th percentile of the latest GETs to the primaries. The first value
+	 * that comes back is taken. Halves the GETs to the slave servers, while a slow primary costs a GET little
+	 * more than the hedge delay. Off by default, when every GET goes to both replicas at once.
+	 * @param hedgedReads
+	 */
+	public void setHedgedReads(boolean hedgedReads) {
+		this.hedgedReads = hedgedReads;
+	}
+	
+	/**
+	 * @return milliseconds that the primary has to answer a hedged GET
+	 */
+	public long getHedgeDelayMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(this.hedgeDelayNanos);
+	}
+	
+	/**
+	 * @param nanos that a GET to a primary took
+	 */
+	private void recordReadLatency(long nanos) {
+		long count = this.readLatencyCount.incrementAndGet();
+		this.readLatencies.set((int) ((count - 1) % READ_LATENCY_SAMPLES), nanos);
+		if (count % READ_LATENCY_UPDATE == 0) {
+			//with no lock, the samples that other GETs write meanwhile may or may not be seen
+			int samples = (int) Math.min(count, READ_LATENCY_SAMPLES);
+			long[] sorted = new long[samples];
+			for (int i = 0; i < samples; i++) {
+				sorted[i] = this.readLatencies.get(i);
+			}
+			Arrays.sort(sorted);
+			this.hedgeDelayNanos = sorted[samples * 95 / 100];
+		}
+	}
+	
+	/**
+	 * Send a GET to the primary, then to the successor as setHedgedReads() describes. A GET that is no
+	 * longer waited for, because the other replica answered first or the time is up, is cancelled: its
+	 * connection is closed rather than kept busy until the slave server answers.
+	 * @param primary
+	 * @param secondary
+	 * @param values written by the GETs, null where a replica did not answer with a value
+	 * @return whether the GET to the primary, then the one to the secondary, is done
+	 */
+	private boolean[] readHedged(final RunnableGet primary, RunnableGet secondary, String[] values) {
+		final LinkedBlockingQueue<Integer> done = new LinkedBlockingQueue<Integer>();
+		final long start = System.nanoTime();
+		this.fanout.execute(new Runnable() {
+			public void run() {
+				try {
+					primary.run();
+				} finally {
+					TPCMaster.this.recordReadLatency(System.nanoTime() - start);
+					done.offer(0);
+				}
+			}
+		});
+		
+		long deadline = start + TimeUnit.MILLISECONDS.toNanos(PHASE_TIMEOUT_MILLISECONDS);
+		boolean[] answered = new boolean[2];
+		boolean hedged = false;
+		int pending = 1;
+		boolean interrupted = false;
+		while (pending > 0) {
+			long wait = (hedged ? deadline : Math.min(deadline, start + this.hedgeDelayNanos)) - System.nanoTime();
+			Integer replica;
+			try {
+				replica = done.poll(Math.max(0, wait), TimeUnit.NANOSECONDS);
+			} catch (InterruptedException e) {
+				//the GETs are already sent, so their results are waited for anyway
+				interrupted = true;
+				continue;
+			}
+			if (replica != null) {
+				answered[replica] = true;
+				pending--;
+				if (values[replica] != null) {
+					break;
+				}
+			} else if (hedged || System.nanoTime() - deadline >= 0) {
+				break;
+			}
+			//the primary failed or is slow
+			if (!hedged) {
+				hedged = true;
+				pending++;
+				final RunnableGet hedge = secondary;
+				this.fanout.execute(new Runnable() {
+					public void run() {
+						try {
+							hedge.run();
+						} finally {
+							done.offer(1);
+						}
+					}
+				});
+			}
+		}
+		if (!answered[0]) {
+			primary.cancel();
+		}
+		if (hedged && !answered[1]) {
+			secondary.cancel();
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		return answered;
+	}
+	
+	/**
+	 * Send the requests of a phase to both replicas at once, and wait until both are done
+	 * @param primary
+	 * @param secondary
+	 * @param timeout milliseconds to wait at most, 0 to wait as long as they take
+	 * @return whether the request to the primary, then the one to the secondary, is done
+	 */
+	private boolean[] sendToReplicas(Runnable primary, Runnable secondary, long timeout) {
+		Runnable[] requests = { primary, secondary };
+		CountDownLatch[] done = new CountDownLatch[requests.length];
+		for (int i = 0; i < requests.length; i++) {
+			final Runnable request = requests[i];
+			final CountDownLatch latch = new CountDownLatch(1);
+			done[i] = latch;
+			this.fanout.execute(new Runnable() {
+				public void run() {
+					try {
+						request.run();
+					} finally {
+						latch.countDown();
+					}
+				}
+			});
+		}
+		
+		long deadline = System.currentTimeMillis() + timeout;
+		boolean[] finished = new boolean[requests.length];
+		boolean interrupted = false;
+		for (int i = 0; i < requests.length; i++) {
+			while (!finished[i]) {
+				try {
+					if (timeout == 0) {
+						done[i].await();
+						finished[i] = true;
+					} else {
+						finished[i] = done[i].await(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+						if (!finished[i]) {
+							break;
+						}
+					}
+				} catch (InterruptedException e) {
+					//the requests are already sent, so their results are waited for anyway
+					interrupted = true;
+				}
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		return finished;
+	}
+	
+	/**
+	 * Give each slave server this many points on the ring of keys instead of the one at its ID, so that the
+	 * keys are spread evenly over a few slave servers. With more than one, the points and the keys are placed by a
+	 * well mixed hash, as hashTo64bit() puts similar strings next to each other. Moves most keys to other slave
+	 * servers, so it is to be set before the slave servers register and kept from then on. 1 by default.
+	 * @param virtualNodes
+	 */
+	public void setVirtualNodes(int virtualNodes) {
+		if (virtualNodes < 1) {
+			throw new IllegalArgumentException("virtualNodes must be at least 1");
+		}
+		this.slaveInfosLock.lock();
+		try{
+			this.virtualNodes = virtualNodes;
+			this.rebuildRing();
+		}finally{
+			this.slaveInfosLock.unlock();
+		}
+	}
+	
+	/**
+	 * Add or replace a slave server, as if it registered
+	 * @param slaveInfo as "SlaveServerID@HostName:Port"
+	 * @return false if the master already has enough slave servers
+	 * @throws KVException if slaveInfo cannot be parsed
+	 */
+	boolean registerSlave(String slaveInfo) throws KVException {
+		return this.registerSlave(new SlaveInfo(slaveInfo));
+	}
+	
+	/**
+	 * Add or replace a slave server that registers
+	 * @param slaveInfo
+	 * @return false if the master already has enough slave servers
+	 */
+	private boolean registerSlave(SlaveInfo slaveInfo) {
+		this.slaveInfosLock.lock();
+		try{
+			SlaveInfo replaced = this.slaveInfos.put(slaveInfo.getSlaveID(), slaveInfo);
+			if (replaced != null) {
+				//the slave server restarted
+				replaced.closeConnections();
+			}
+			if (this.slaveInfos.size()>this.numSlaves){
+				this.slaveInfos.remove(slaveInfo.getSlaveID());
+				return false;
+			}
+			this.rebuildRing();
+			return true;
+		}finally{
+			this.slaveInfosLock.unlock();
+		}
+	}
+	
+	/**
+	 * Place the points of the slave servers on the ring. Called with slaveInfosLock held.
+	 */
+	private void rebuildRing() {
+		TreeMap<Long, SlaveInfo> points = new TreeMap<Long, SlaveInfo>(new UnsignedLongComparator());
+		for (SlaveInfo slaveInfo : this.slaveInfos.values()) {
+			if (this.virtualNodes == 1) {
+				points.put(slaveInfo.getSlaveID(), slaveInfo);
+				continue;
+			}
+			for (int i = 0; i < this.virtualNodes; i++) {
+				points.put(mix64(slaveInfo.getSlaveID() + i * 0x9E3779B97F4A7C15L), slaveInfo);
+			}
+		}
+		this.ring = new Ring(points, this.slaveInfos.size(), this.virtualNodes > 1);
+	}
+	
+	/**
+	 * @param keys a sample of keys
+	 * @return the share of the keys of which each slave server is the primary replica, by slave ID
+	 */
+	public Map<Long, Double> getKeyShares(Collection<String> keys) {
+		Map<Long, Double> shares = new TreeMap<Long, Double>(new UnsignedLongComparator());
+		this.slaveInfosLock.lock();
+		try{
+			for (Long slaveId : this.slaveInfos.keySet()) {
+				shares.put(slaveId, 0.0);
+			}
+		}finally{
+			this.slaveInfosLock.unlock();
+		}
+		for (String key : keys) {
+			Long slaveId = this.findReplicas(key)[0].getSlaveID();
+			shares.put(slaveId, shares.get(slaveId) + 1.0 / keys.size());
+		}
+		return shares;
+	}
+	
+	/**
+	 * Close the idle connections to the slave servers
+	 */
+	private void closeConnections() {
+		this.slaveInfosLock.lock();
+		try{
+			for (SlaveInfo slaveInfo : this.slaveInfos.values()) {
+				slaveInfo.closeConnections();
+			}
+		}finally{
+			this.slaveInfosLock.unlock();
+		}
+	}
+	
 	private SlaveInfo getSlaveInfo(Long slaveId) {
 		this.slaveInfosLock.lock();
 		try{
@@ -285,8 +871,7 @@ public class TPCMaster implements Debuggable {
 	 * @return 
 	 */
 	private String getNextTpcOpId() {
-		tpcOpId++;
-		return tpcOpId.toString();		
+		return Long.toString(tpcOpId.incrementAndGet());
 	}
 	
 	/**
@@ -316,6 +901,8 @@ public class TPCMaster implements Debuggable {
 	 */
 	public void stop(){
 		regServer.stop();
+		this.closeConnections();
+		this.fanoutThreads.shutdown();
 	}
 	
 	/**
@@ -336,6 +923,20 @@ public class TPCMaster implements Debuggable {
 		return h;
 	}
 	
+	/**
+	 * Spreads the bits of a 64-bit value over all 64 bits, the finalizer of MurmurHash3
+	 * @param h
+	 * @return
+	 */
+	private static long mix64(long h) {
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+		return h;
+	}
+	
 	/**
 	 * Compares two longs as if they were unsigned (Java doesn't have unsigned data types except for char)
 	 * Borrowed from http://www.javamex.com/java_equivalents/unsigned_arithmetic.shtml
@@ -357,7 +958,7 @@ public class TPCMaster implements Debuggable {
 		public int compare(Long arg0, Long arg1) {
 			if (TPCMaster.this.isLessThanUnsigned(arg0, arg1)) return -1;
 			
-			if (arg0==arg1) return 0;
+			if (arg0.longValue()==arg1.longValue()) return 0;
 			
 			return 1;
 		}
@@ -365,57 +966,82 @@ public class TPCMaster implements Debuggable {
 	}
 
 	/**
-	 * Find first/primary replica location
-	 * @param key
-	 * @return
+	 * The ring of keys as it is between two registrations. Never changed once built, so that finding the
+	 * replicas of a key takes no lock.
 	 */
-	private SlaveInfo findFirstReplica(String key) {
-		// 64-bit hash of the key
-		long hashedKey = hashTo64bit(key.toString());
-
-		this.slaveInfosLock.lock();
-		
-		//get the value of the least key greater or equal to the hashedkey
-		Map.Entry<Long, SlaveInfo> entry = this.slaveInfos.ceilingEntry(hashedKey);
+	private static class Ring {
+		// the points in unsigned order, with the sign bit flipped so that they are sorted as signed longs
+		private final long[] points;
+		// the slave server of each point
+		private final SlaveInfo[] slaves;
+		// the index of the next point, around the ring, of another slave server than each point
+		private final int[] successors;
+		// how many slave servers had registered
+		private final int numSlaves;
+		// whether the points are virtual nodes, and the keys are placed by a mixed hash
+		private final boolean mixed;
 		
-		SlaveInfo slaveInfo = null;
-		//if it is null, the hashed key is stored in the 1st slave(lowest ID)
-		if (entry==null){
-			slaveInfo = this.slaveInfos.firstEntry().getValue();
-		}else{
-			slaveInfo = entry.getValue();
+		/**
+		 * @param points the points of the slave servers, in unsigned order
+		 * @param numSlaves
+		 * @param mixed
+		 */
+		Ring(TreeMap<Long, SlaveInfo> points, int numSlaves, boolean mixed) {
+			this.points = new long[points.size()];
+			this.slaves = new SlaveInfo[points.size()];
+			int i = 0;
+			for (Map.Entry<Long, SlaveInfo> point : points.entrySet()) {
+				this.points[i] = point.getKey() ^ Long.MIN_VALUE;
+				this.slaves[i] = point.getValue();
+				i++;
+			}
+			this.successors = new int[this.points.length];
+			for (i = 0; i < this.points.length; i++) {
+				//the point itself if there is only one slave server
+				int next = i;
+				for (int j = 1; j < this.points.length; j++) {
+					int k = (i + j) % this.points.length;
+					if (this.slaves[k] != this.slaves[i]) {
+						next = k;
+						break;
+					}
+				}
+				this.successors[i] = next;
+			}
+			this.numSlaves = numSlaves;
+			this.mixed = mixed;
 		}
-			
-		this.slaveInfosLock.unlock();
 		
-		return slaveInfo;
+		/**
+		 * @param hashedKey
+		 * @return the index of the first point at or after the key, around the ring
+		 */
+		int find(long hashedKey) {
+			int i = Arrays.binarySearch(this.points, hashedKey ^ Long.MIN_VALUE);
+			if (i < 0) {
+				i = -i - 1;
+			}
+			//past the last point, the hashed key is stored in the 1st slave(lowest ID)
+			return i == this.points.length ? 0 : i;
+		}
 	}
 	
 	/**
-	 * Find the successor of firstReplica to put the second replica
-	 * @param firstReplica
-	 * @return
+	 * Find the replicas of a key: the slave server of the first point of the ring at or after the key, and
+	 * the successor, the slave server of the next point that is not the same slave server
+	 * @param key
+	 * @return the primary replica, then the secondary
 	 */
-	private SlaveInfo findSuccessor(SlaveInfo firstReplica) {
-		// implement me
-		long keyFirstReplica = firstReplica.getSlaveID();
-		
-		this.slaveInfosLock.lock();
-
-		Map.Entry<Long, SlaveInfo> entry = this.slaveInfos.ceilingEntry(keyFirstReplica+1);
-
-		SlaveInfo slaveInfo = null;
+	private SlaveInfo[] findReplicas(String key) {
+		// 64-bit hash of the key
+		long hashedKey = hashTo64bit(key);
 		
-		//if it is null, the successor is stored the 1st slave(lowest ID)
-		if (entry==null){
-			slaveInfo = this.slaveInfos.firstEntry().getValue();
-		}else{
-			slaveInfo = entry.getValue();
+		Ring ring = this.ring;
+		if (ring.mixed) {
+			hashedKey = mix64(hashedKey);
 		}
-		
-		this.slaveInfosLock.unlock();
-
-		return slaveInfo;
+		int i = ring.find(hashedKey);
+		return new SlaveInfo[] { ring.slaves[i], ring.slaves[ring.successors[i]] };
 	}
 	
 	/**
@@ -423,18 +1049,12 @@ public class TPCMaster implements Debuggable {
 	 * @return true if numSlaves matches the size of slaveInfos(registration finished)
 	 */
 	public boolean hasFinishedRegistration(){
-		this.slaveInfosLock.lock();
-		
-		try{
-			return this.numSlaves==this.slaveInfos.size();
-		}finally{
-			this.slaveInfosLock.unlock();
-		}
+		return this.numSlaves==this.ring.numSlaves;
 	}
 	
 	/**
-	 * Synchronized method to perform 2PC operations one after another
-	 * You will need to remove the synchronized declaration if you wish to attempt the extra credit
+	 * Perform a 2PC operation. Operations on the same key are performed one after another, and
+	 * operations on different keys at the same time.
 	 * 
 	 * @param msg
 	 * @param isPutReq
@@ -442,16 +1062,16 @@ public class TPCMaster implements Debuggable {
 	 */
 	public void performTPCOperation(KVMessage msg, boolean isPutReq) throws KVException {
 		AutoGrader.agPerformTPCOperationStarted(isPutReq);
-		WriteLock lock = this.masterCache.getWriteLock(msg.getKey());
-		lock.lock();
+		this.keyLocks.lock(msg.getKey());
 		
 		// implement me
 		try{
 			String key = msg.getKey();
 			String value = msg.getValue();
 			
-			SlaveInfo primary = this.findFirstReplica(key);
-			SlaveInfo secondary = this.findSuccessor(primary);
+			SlaveInfo[] replicas = this.findReplicas(key);
+			SlaveInfo primary = replicas[0];
+			SlaveInfo secondary = replicas[1];
 			
 			String[] errors = new String [2];errors[0] = null; errors[1] = null;
 			msg.setTpcOpId(this.getNextTpcOpId());
@@ -460,30 +1080,17 @@ public class TPCMaster implements Debuggable {
 			Runnable r1 = new RunnableVoteRequest(primary, msg, errors, true);
 			Runnable r2 = new RunnableVoteRequest(secondary, msg, errors, false);
 			
-			Thread t1 = new Thread(r1), t2 = new Thread(r2);
-			t1.start(); t2.start();
-			try {
-				t1.join();
-				t2.join();
-			} catch (InterruptedException e) {
-				//ignore
-			} 
+			//a vote that does not come in time, a retry included, is taken for an abort
+			boolean[] voted = this.sendToReplicas(r1, r2, PHASE_TIMEOUT_MILLISECONDS);
 			
-			String e1 = errors[0];
-			String e2 = errors[1];
+			String e1 = voted[0] ? errors[0] : "Network Error: Could not receive data";
+			String e2 = voted[1] ? errors[1] : "Network Error: Could not receive data";
 			
 			//2nd phase, block until we got ack from both slaves
 			Runnable r3 = new RunnableSendDecision(msg, true, e1==null && e2==null);
 			Runnable r4 = new RunnableSendDecision(msg, false, e1==null && e2==null);
 			
-			Thread t3 = new Thread(r3), t4 = new Thread(r4);
-			t3.start(); t4.start();
-			try {
-				t3.join();
-				t4.join();
-			} catch (InterruptedException e) {
-				//ignore
-			} 
+			this.sendToReplicas(r3, r4, 0);
 						
 			if (e1!=null || e2!=null){
 				String message = "";
@@ -499,13 +1106,19 @@ public class TPCMaster implements Debuggable {
 			}
 			
 			
-			if (isPutReq){
-				this.masterCache.put(key, value);
-			}else{
-				this.masterCache.del(key);
+			WriteLock cacheLock = this.masterCache.getWriteLock(key);
+			cacheLock.lock();
+			try{
+				if (isPutReq){
+					this.masterCache.put(key, value);
+				}else{
+					this.masterCache.del(key);
+				}
+			}finally{
+				cacheLock.unlock();
 			}
 		}finally{
-			lock.unlock();
+			this.keyLocks.unlock(msg.getKey());
 			AutoGrader.agPerformTPCOperationFinished(isPutReq);
 		}
 	}
@@ -517,21 +1130,7 @@ public class TPCMaster implements Debuggable {
 	 * @throws KVException if there is any error or the vote is not ready
 	 */
 	private void sendVoteRequest(SlaveInfo slave, KVMessage msg) throws KVException{
-		Socket sock = slave.connectHost();
-		try {
-			sock.setSoTimeout(TPCMaster.TIMEOUT_MILLISECONDS);
-		} catch (SocketException e) {
-			throw new KVException(new KVMessage(KVMessage.RESPTYPE, "Unknown Error: could not set timeout of socket"));
-		}
-		msg.sendMessage(sock);
-		
-		KVMessage response = new KVMessage(sock);
-		
-		try{
-			slave.closeHost(sock);
-		} catch (KVException e){
-			//silence this
-		}
+		KVMessage response = slave.exchange(msg);
 		
 		if (response.getMsgType().equals(KVMessage.ABORTTYPE)){
 			throw new KVException(response);
@@ -547,7 +1146,8 @@ public class TPCMaster implements Debuggable {
 		public RunnableVoteRequest(SlaveInfo slaveInfo, KVMessage msg, String[] errors, boolean isPrimary){
 			super();
 			this.slaveInfo = slaveInfo;
-			this.msg = msg;
+			//a copy of its own, as the request to the other replica is sent at the same time
+			this.msg = new KVMessage(msg);
 			this.errors = errors;
 			this.isPrimary = isPrimary;
 		}
@@ -610,18 +1210,10 @@ public class TPCMaster implements Debuggable {
 		
 		while (true){
 			//get the updated slave information
-			if (isPrimary){
-				slave = this.findFirstReplica(key);
-			}else{
-				slave = this.findSuccessor(this.findFirstReplica(key));
-			}
+			slave = this.findReplicas(key)[isPrimary ? 0 : 1];
 			
 			try {
-				Socket sock  = slave.connectHost();
-				sock.setSoTimeout(TPCMaster.TIMEOUT_MILLISECONDS);
-				msg.sendMessage(sock);
-				KVMessage response = new KVMessage(sock);
-				slave.closeHost(sock);
+				KVMessage response = slave.exchange(msg);
 				//return upon success
 				if (response.getMsgType().equals(KVMessage.ACKTYPE) 
 						&& response.getTpcOpId().equals(msg.getTpcOpId())){
@@ -631,10 +1223,7 @@ public class TPCMaster implements Debuggable {
 			} catch (KVException e) {
 				// TODO Auto-generated catch block
 				e.printStackTrace();
-			} catch (SocketException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}	
+			}
 		}
 	}
 
@@ -650,64 +1239,138 @@ public class TPCMaster implements Debuggable {
 	 * @return Value corresponding to the Key
 	 * @throws KVException
 	 */
-	public String handleGet(KVMessage msg) throws KVException {
-		AutoGrader.aghandleGetStarted();	
-		WriteLock l = this.masterCache.getWriteLock(msg.getKey());
-		l.lock();
+	public String handleGet(final KVMessage msg) throws KVException {
+		AutoGrader.aghandleGetStarted();
+		final String key = msg.getKey();
 		try{
-			String cacheResult = this.masterCache.get(msg.getKey());
+			//cache hits only need the read lock
+			ReadLock rl = this.masterCache.getReadLock(key);
+			rl.lock();
+			try{
+				String cacheResult = this.masterCache.get(key);
+				if (cacheResult!=null){
+					return cacheResult;
+				}
+			}finally{
+				rl.unlock();
+			}
+			
+			//misses of the key at the same time share the fetch of the first of them
+			FutureTask<String> fetch;
+			boolean first = false;
+			synchronized (this.fetches) {
+				fetch = this.fetches.get(key);
+				if (fetch == null) {
+					fetch = new FutureTask<String>(new Callable<String>() {
+						public String call() throws KVException {
+							return TPCMaster.this.fetch(msg);
+						}
+					});
+					this.fetches.put(key, fetch);
+					first = true;
+				}
+			}
+			if (first) {
+				//a put or del of the key may be under way, and its result is not to be overwritten by an older value
+				this.keyLocks.lock(key);
+				try{
+					fetch.run();
+				}finally{
+					//before the key is unlocked, so that a miss after a put or del of the key fetches again
+					synchronized (this.fetches) {
+						this.fetches.remove(key);
+					}
+					this.keyLocks.unlock(key);
+				}
+			}
 			
+			boolean interrupted = false;
+			try{
+				while (true) {
+					try {
+						return fetch.get();
+					} catch (InterruptedException e) {
+						//the fetch is shared, so it is waited for anyway
+						interrupted = true;
+					}
+				}
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof KVException) {
+					throw (KVException) e.getCause();
+				}
+				throw new KVException(new KVMessage(KVMessage.RESPTYPE, "Unknown Error: " + e.getCause()));
+			} finally {
+				if (interrupted) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}finally{
+			AutoGrader.aghandleGetFinished();
+		}
+	}
+	
+	/**
+	 * Get a key from its replicas into the cache, as handleGet() describes. Called with the key locked.
+	 * @param msg
+	 * @return Value corresponding to the Key
+	 * @throws KVException
+	 */
+	private String fetch(KVMessage msg) throws KVException {
+		//another request may have filled the key while we waited for the lock
+		ReadLock rl = this.masterCache.getReadLock(msg.getKey());
+		long version;
+		rl.lock();
+		try{
+			String cacheResult = this.masterCache.get(msg.getKey());
 			if (cacheResult!=null){
 				return cacheResult;
 			}
-			
-			msg.setTpcOpId(this.getNextTpcOpId());
-			
-			//trying primary
-			String [] values = new String[2]; values[0] = null; values[1] = null;
-			String [] errors = new String[2]; errors[0] = null; errors[1] = null;
-			
-			SlaveInfo primary = this.findFirstReplica(msg.getKey());
-			SlaveInfo secondary = this.findSuccessor(primary);
+			version = this.masterCache.getVersion(msg.getKey());
+		}finally{
+			rl.unlock();
+		}
+		
+		//trying primary
+		String [] values = new String[2]; values[0] = null; values[1] = null;
+		String [] errors = new String[2]; errors[0] = null; errors[1] = null;
+		
+		SlaveInfo[] replicas = this.findReplicas(msg.getKey());
+		SlaveInfo primary = replicas[0];
+		SlaveInfo secondary = replicas[1];
 
-			Runnable r1 = new RunnableGet(primary, msg, values,errors, true);
-			Runnable r2 = new RunnableGet(secondary, msg, values, errors, false);
+		RunnableGet r1 = new RunnableGet(primary, msg, values,errors, true);
+		RunnableGet r2 = new RunnableGet(secondary, msg, values, errors, false);
+		
+		//what a request that does not answer in time writes later is not read
+		boolean[] answered = this.hedgedReads ? this.readHedged(r1, r2, values) : this.sendToReplicas(r1, r2, PHASE_TIMEOUT_MILLISECONDS);
+		String v1 = answered[0] ? values[0] : null;
+		String v2 = answered[1] ? values[1] : null;
+		
+		if (v1!=null || v2!=null){
+			String value = v1!=null ? v1 : v2;
+			WriteLock cacheLock = this.masterCache.getWriteLock(msg.getKey());
+			cacheLock.lock();
+			try{
+				this.masterCache.replace(msg.getKey(), value, version);
+			}finally{
+				cacheLock.unlock();
+			}
+			return value;
+		} else {
+			String e1 = answered[0] ? errors[0] : String.format("@%s:=%s", primary.getSlaveID(), "Network Error: Could not receive data");
+			String e2 = answered[1] ? errors[1] : String.format("@%s:=%s", secondary.getSlaveID(), "Network Error: Could not receive data");
 			
-			Thread t1 = new Thread(r1), t2 = new Thread(r2);
-			t1.start(); t2.start();
-			try {
-				t1.join();
-				t2.join();
-			} catch (InterruptedException e) {
-				//ignore
-			} 
+			String message = "";
 			
-			if (values[0]!=null){
-				this.masterCache.replace(msg.getKey(), values[0]);
-				return values[0];
-			} else if (values[1]!=null){
-				this.masterCache.replace(msg.getKey(), values[1]);
-				return values[1];
-			} else {
-				String e1 = errors[0];
-				String e2 = errors[1];
-				
-				String message = "";
-				
-				if (e1!=null && e2!=null){
-					message = e1+"\n"+e2;
-				}else if(e1!=null){
-					message = e1;
-				}else{
-					message = e2;
-				}
-				
-				throw new KVException(new KVMessage(KVMessage.RESPTYPE, message));
+			if (e1!=null && e2!=null){
+				message = e1+"\n"+e2;
+			}else if(e1!=null){
+				message = e1;
+			}else{
+				message = e2;
 			}
 			
-		}finally{
-			l.unlock();
-			AutoGrader.aghandleGetFinished();
+			throw new KVException(new KVMessage(KVMessage.RESPTYPE, message));
 		}
 	}
 	
@@ -716,11 +1379,13 @@ public class TPCMaster implements Debuggable {
 		KVMessage msg;
 		boolean isPrimary;
 		String [] values, errors;
+		final InFlightExchange inFlight = new InFlightExchange();
 		
 		public RunnableGet(SlaveInfo slaveInfo, KVMessage msg, String[] values, String[] errors, boolean isPrimary){
 			super();
 			this.slaveInfo = slaveInfo;
-			this.msg = msg;
+			//a copy of its own, which gets a tpcOpId of its own
+			this.msg = new KVMessage(msg);
 			this.isPrimary = isPrimary;
 			this.values = values;
 			this.errors = errors;
@@ -729,11 +1394,8 @@ public class TPCMaster implements Debuggable {
 		@Override
 		public void run() {			
 			try {
-				Socket sock = slaveInfo.connectHost();
-				sock.setSoTimeout(TPCMaster.TIMEOUT_MILLISECONDS);
 				msg.setTpcOpId(TPCMaster.this.getNextTpcOpId());
-				msg.sendMessage(sock);
-				KVMessage response  = new KVMessage(sock);
+				KVMessage response = slaveInfo.exchange(msg, inFlight);
 				
 				//return upon success
 				if (response.getMessage()==null){
@@ -756,16 +1418,15 @@ public class TPCMaster implements Debuggable {
 				}else{
 					errors[1] = String.format("@%s:=%s", slaveInfo.getSlaveID(), e.getMsg().getMessage());
 				}
-			}catch (SocketException e) {
-				//should not happen
-				if (isPrimary){
-					errors[0] = String.format("@%s:=%s", slaveInfo.getSlaveID(), "this should not happen");
-				}else{
-					errors[1] = String.format("@%s:=%s", slaveInfo.getSlaveID(), "this should not happen");
-				}
-				e.printStackTrace();
 			}
 		}
 		
+		/**
+		 * Give up on the GET: its result is no longer read
+		 */
+		public void cancel() {
+			inFlight.cancel();
+		}
+		
 	}
 }
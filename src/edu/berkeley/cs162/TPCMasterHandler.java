@@ -33,8 +33,11 @@ package edu.berkeley.cs162;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.Socket;
+import java.net.SocketException;
 import java.net.UnknownHostException;
 import java.util.HashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
@@ -45,8 +48,13 @@ import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
  *
  */
 public class TPCMasterHandler implements NetworkHandler, Debuggable {
+	/**
+	 * How long a persistent connection of the master server is kept without a request, by default
+	 */
+	public static final int DEFAULT_IDLE_TIMEOUT = 60 * 1000;
+	
 	private KVServer kvServer = null;
-	private ThreadPool threadpool = null;
+	private volatile ThreadPool threadpool = null;
 	private TPCLog tpcLog = null;
 	
 	private long slaveID = -1;
@@ -60,6 +68,12 @@ public class TPCMasterHandler implements NetworkHandler, Debuggable {
 	private HashMap<String, KVMessage> waitingOperations = new HashMap<String, KVMessage>();
 	private WriteLock waitingLock = new ReentrantReadWriteLock().writeLock();
 //	private boolean aborted = true;	
+	
+	private volatile boolean keepAlive = true;
+	private volatile int idleTimeout = DEFAULT_IDLE_TIMEOUT;
+	//runs the requests instead of the threadpool, if set
+	private volatile Executor executor = null;
+	private volatile boolean keyAffinity = false;
 
 	public TPCMasterHandler(KVServer keyserver) {
 		this(keyserver, 1);
@@ -77,19 +91,177 @@ public class TPCMasterHandler implements NetworkHandler, Debuggable {
 		threadpool = new ThreadPool(connections);
 	}
 
+	/**
+	 * Keep alive the connections of the master server that send framed XML or binary requests (see
+	 * TPCMaster.setMaxIdleConnections()), until the master server closes them or they are idle for the idle
+	 * timeout. While a persistent connection waits for its next request, it holds a thread of its own rather
+	 * than one of the thread pool, which still handles the requests. On by default.
+	 * @param keepAlive
+	 */
+	public void setKeepAlive(boolean keepAlive) {
+		this.keepAlive = keepAlive;
+	}
+	
+	/**
+	 * @param idleTimeout milliseconds that a persistent connection is kept without a request
+	 */
+	public void setIdleTimeout(int idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+	
+	/**
+	 * @return the threadpool that handles the requests, for its rejection policy and metrics
+	 */
+	public ThreadPool getThreadPool() {
+		return threadpool;
+	}
+	
+	/**
+	 * Handle each request on a virtual thread of its own instead of the threadpool, so that requests are no
+	 * longer handled one after the other by the threads of the pool. Persistent connections wait for their next
+	 * request on virtual threads too. See VirtualThreads for Java without virtual threads.
+	 * @param virtualThreads
+	 */
+	public void setVirtualThreads(boolean virtualThreads) {
+		this.executor = virtualThreads ? VirtualThreads.newThreadPerTaskExecutor("TPCMasterHandler-"+this.slaveID) : null;
+	}
+	
+	/**
+	 * Queue each request of a persistent connection for the thread of the pool that the KVCache set of its key
+	 * maps to (see KVServer.getSetId()), so that the requests of a set follow one another on the same thread
+	 * instead of handing the set lock over between threads, and requests of different sets do not wait for each
+	 * other. A commit or abort goes where the request it decides went. A thread with nothing to do still takes
+	 * the requests waiting for the others, so a busy set does not hold up the pool. Off by default. Replaces
+	 * the threadpool, so it is to be set before the server runs.
+	 * @param keyAffinity
+	 */
+	public void setKeyAffinity(boolean keyAffinity) {
+		ThreadPool old = this.threadpool;
+		this.threadpool = new ThreadPool(old.threads.length, ThreadPool.DEFAULT_CAPACITY, old.getRejectionPolicy(), keyAffinity);
+		this.keyAffinity = keyAffinity;
+		old.cleanup();
+	}
+	
+	private void execute(Runnable r) throws InterruptedException, KVException {
+		this.execute(r, null);
+	}
+	
+	/**
+	 * @param r
+	 * @param msg the request that r handles, if it has been received
+	 * @throws InterruptedException
+	 * @throws KVException
+	 */
+	private void execute(Runnable r, KVMessage msg) throws InterruptedException, KVException {
+		Executor executor = this.executor;
+		if (executor != null) {
+			executor.execute(r);
+			return;
+		}
+		String key = null;
+		if (this.keyAffinity && msg != null) {
+			key = msg.getKey();
+			if (key == null && msg.getTpcOpId() != null) {
+				this.waitingLock.lock();
+				KVMessage decided = this.waitingOperations.get(msg.getTpcOpId());
+				this.waitingLock.unlock();
+				key = decided != null ? decided.getKey() : null;
+			}
+		}
+		if (key != null) {
+			threadpool.addToQueue(r, this.kvServer.getSetId(key));
+		} else {
+			threadpool.addToQueue(r);
+		}
+	}
+
 	private class ClientHandler implements Runnable {
 		private KVServer keyserver = null;
-		private Socket client = null;
+		private KVConnection client = null;
+		// The next request of a persistent connection, received by the waiter
+		private KVMessage next = null;
+		// Released when the thread pool has handled the next request
+		private Semaphore handled = null;
 		
 		private void closeConn() {
-			try {
-				client.close();
-			} catch (IOException e) {
-			}
+			client.close();
 		}
 		
 		@Override
 		public void run() {
+			KVMessage msg = this.next;
+			this.next = null;
+			if (msg == null) {
+				//the first request of the connection
+				try {
+					msg = this.client.receive();
+				} catch (KVException e) {
+					//cannot get a KVMessage from the socket, just timeout
+					closeConn();
+					return;
+				}
+			}
+			
+			this.handleRequest(msg);
+			
+			if (this.handled != null) {
+				this.handled.release();
+			} else if (TPCMasterHandler.this.keepAlive && this.client.isPersistent()) {
+				this.handled = new Semaphore(0);
+				Runnable waitForRequests = new Runnable() {
+					public void run() {
+						ClientHandler.this.waitForRequests();
+					}
+				};
+				String name = "TPCMasterHandler-"+TPCMasterHandler.this.slaveID;
+				Thread waiter = TPCMasterHandler.this.executor != null ? VirtualThreads.newThread(waitForRequests, name) : new Thread(waitForRequests, name);
+				waiter.setDaemon(true);
+				waiter.start();
+			} else {
+				// Finally, close the connection
+				closeConn();
+			}
+		}
+		
+		/**
+		 * Receive the requests of a persistent connection one after the other, and have the thread pool handle
+		 * each of them before receiving the next
+		 */
+		private void waitForRequests() {
+			try {
+				this.client.getSocket().setSoTimeout(TPCMasterHandler.this.idleTimeout);
+				while (true) {
+					KVMessage msg;
+					try {
+						msg = this.client.receiveNext();
+					} catch (KVException e) {
+						//as after a request that cannot be received on a connection of its own
+						break;
+					}
+					if (msg == null) {
+						break;
+					}
+					AutoGrader.agReceivedTPCRequest(slaveID);
+					this.next = msg;
+					try {
+						TPCMasterHandler.this.execute(this, msg);
+					} finally {
+						AutoGrader.agFinishedTPCRequest(slaveID);
+					}
+					this.handled.acquireUninterruptibly();
+				}
+			} catch (SocketException e) {
+				//ignore this exception
+			} catch (KVException e) {
+				//the threadpool is full: closed without a vote, as below
+			} catch (InterruptedException e) {
+				//ignore this exception
+			} finally {
+				closeConn();
+			}
+		}
+		
+		private void handleRequest(KVMessage msg) {
 			
 			//check and update the waiting operations(ready state) if any (After server restarts)
 			TPCMasterHandler.this.waitingLock.lock();
@@ -98,17 +270,6 @@ public class TPCMasterHandler implements NetworkHandler, Debuggable {
 			}
 			TPCMasterHandler.this.waitingLock.unlock();
 
-			// Receive message from client
-			// Implement me	
-			KVMessage msg = null;
-			
-			try {
-				msg = new KVMessage(this.client);
-			} catch (KVException e) {
-				//cannot get a KVMessage from the socket, just timeout
-				return;
-			}
-
 			// Parse the message and do stuff 
 			String key = msg.getKey();
 			
@@ -128,7 +289,7 @@ public class TPCMasterHandler implements NetworkHandler, Debuggable {
 				TPCMasterHandler.this.ignoreNextLock.unlock();
 				
 				// Send back an acknowledgment
-				KVMessage.sendRespMsgIgnoringException("Success",this.client);
+				this.client.sendRespIgnoringException("Success");
 			}
 			else if (msg.getMsgType().equals("commit") || msg.getMsgType().equals("abort")) {
 				TPCMasterHandler.this.waitingLock.lock();
@@ -142,9 +303,10 @@ public class TPCMasterHandler implements NetworkHandler, Debuggable {
 				
 				handleMasterResponse(msg, originalMsg, msg.getMsgType().equals("abort"));
 			}
-			
-			// Finally, close the connection
-			closeConn();
+			else {
+				//no response: the master server learns from the closed connection
+				closeConn();
+			}
 		}
 		
 		/**
@@ -156,7 +318,7 @@ public class TPCMasterHandler implements NetworkHandler, Debuggable {
 			try {
 				commit = new KVMessage(KVMessage.READYTYPE);
 				commit.setTpcOpId(msg.getTpcOpId());
-				commit.sendMessageIgnoringException(this.client);
+				this.client.sendIgnoringException(commit);
 			} catch (KVException e) {
 				//ignore this exception
 			}
@@ -172,7 +334,7 @@ public class TPCMasterHandler implements NetworkHandler, Debuggable {
 				abort = new KVMessage(KVMessage.ABORTTYPE);
 				abort.setTpcOpId(tpcOpId);
 				abort.setMessage(msg);
-				abort.sendMessageIgnoringException(this.client);
+				this.client.sendIgnoringException(abort);
 			} catch (KVException e) {
 				//ignore this exception
 			}
@@ -187,7 +349,7 @@ public class TPCMasterHandler implements NetworkHandler, Debuggable {
 			try {
 				ack = new KVMessage(KVMessage.ACKTYPE);
 				ack.setTpcOpId(msg.getTpcOpId());
-				ack.sendMessageIgnoringException(this.client);
+				this.client.sendIgnoringException(ack);
 			} catch (KVException e) {
 				//ignore this exception
 			}
@@ -199,10 +361,11 @@ public class TPCMasterHandler implements NetworkHandler, Debuggable {
  			try{
  				KVMessage response = null;
  				try {
-					String val = this.keyserver.get(key);
+					Utf8Value val = this.keyserver.getValue(key);
 					response = new KVMessage(KVMessage.RESPTYPE);
 					response.setKey(key);
-					response.setValue(val);
+					//the value is decoded here, at the latest
+					response.setValue(val.toString());
 					
 				} catch (KVException e) {
 					// TODO Auto-generated catch block
@@ -211,7 +374,7 @@ public class TPCMasterHandler implements NetworkHandler, Debuggable {
  				
  				//sendback message
  				try {
-					response.sendMessage(this.client);
+					this.client.send(response);
 				} catch (KVException e) {
 					// TODO Auto-generated catch block
 					e.printStackTrace();
@@ -313,12 +476,16 @@ public class TPCMasterHandler implements NetworkHandler, Debuggable {
 					try {
 						this.keyserver.put(origMsg.getKey(), origMsg.getValue());
 					} catch (KVException e) {
+						//no ack: the master server learns from the closed connection
+						closeConn();
 						return;
 					}
 				} else {
 					try{
 						this.keyserver.del(origMsg.getKey());
 					} catch (KVException e){
+						//no ack: the master server learns from the closed connection
+						closeConn();
 						return;
 					}
 				}
@@ -332,7 +499,8 @@ public class TPCMasterHandler implements NetworkHandler, Debuggable {
 		
 		public ClientHandler(KVServer keyserver, Socket client) {
 			this.keyserver = keyserver;
-			this.client = client;
+			//answers in the protocol of the master
+			this.client = new KVConnection(client);
 		}
 	}
 
@@ -341,10 +509,13 @@ public class TPCMasterHandler implements NetworkHandler, Debuggable {
 		AutoGrader.agReceivedTPCRequest(slaveID);
 		Runnable r = new ClientHandler(kvServer, client);
 		try {
-			threadpool.addToQueue(r);
+			this.execute(r);
 		} catch (InterruptedException e) {
 			// TODO: HANDLE ERROR
 //			return; comment out this so that it'll always call agFinishedTPCRequest
+		} catch (KVException e) {
+			//the threadpool is full: a resp would pass for a vote, so the master server only sees the connection close
+			client.close();
 		}		
 		AutoGrader.agFinishedTPCRequest(slaveID);
 	}
@@ -2,6 +2,8 @@ package edu.berkeley.cs162;
 
 import static org.junit.Assert.*;
 
+import java.util.ArrayList;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -72,4 +74,30 @@ public class TPCMasterTest {
 		}
 		System.out.println(h);
 	}
+
+	@Test
+	public void ringTest() throws KVException {
+		TPCMaster master = new TPCMaster(3);
+		master.setVirtualNodes(64);
+		assertTrue(master.registerSlave("1@localhost:1001"));
+		assertTrue(master.registerSlave("2@localhost:1002"));
+		assertTrue(master.registerSlave("3@localhost:1003"));
+		assertFalse(master.registerSlave("4@localhost:1004"));
+
+		//a slave server that registers again replaces itself
+		assertTrue(master.registerSlave("2@otherhost:1002"));
+		assertEquals(master.getSlaveHost(2L), "otherhost");
+		assertTrue(master.hasFinishedRegistration());
+
+		//similar keys are spread over all slave servers
+		ArrayList<String> keys = new ArrayList<String>();
+		for (int i = 0; i < 10000; i++) {
+			keys.add("key" + i);
+		}
+		Map<Long, Double> shares = master.getKeyShares(keys);
+		assertEquals(shares.size(), 3);
+		for (double share : shares.values()) {
+			assertTrue(share > 0.2 && share < 0.5);
+		}
+	}
 }
@@ -31,20 +31,69 @@
 
 package edu.berkeley.cs162;
 
-import java.util.LinkedList;
-import java.util.concurrent.locks.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 public class ThreadPool implements Debuggable{
+	/**
+	 * Jobs that can wait in the queue, by default
+	 */
+	public static final int DEFAULT_CAPACITY = 1024;
+	
+	/**
+	 * What addToQueue() does with a job when the queue is full
+	 */
+	public enum RejectionPolicy {
+		/** wait for room in the queue */
+		BLOCK,
+		/** run the job on the thread that adds it */
+		CALLER_RUNS,
+		/** throw a KVException with the message "Unknown Error: Server is too busy" */
+		REJECT
+	}
+	
 	/**
 	 * Set of threads in the threadpool
 	 */
 	protected WorkerThread threads[] = null;
-	LinkedList<Runnable> jobQueue = new LinkedList<Runnable>();
-	private ReadWriteLock lock = new ReentrantReadWriteLock();
-	private Lock jobQueueLock = lock.writeLock();
+	private final BlockingQueue<Job> jobQueue;
+	private volatile RejectionPolicy rejectionPolicy;
+	private volatile boolean finished = false;
 	
-	public Lock cvLock = new ReentrantLock();
-	public Condition jobQueueNotEmpty = cvLock.newCondition();
+	//work-stealing mode: each worker has a deque of its own (see WorkerThread), and these permits bound the jobs of all of them
+	private final boolean workStealing;
+	private final Semaphore room;
+	private final AtomicInteger nextWorker = new AtomicInteger();
+	private final AtomicInteger idleWorkers = new AtomicInteger();
+	//how many times a thread of a work-stealing pool looks for jobs before it sleeps
+	private static final int IDLE_YIELDS = 16;
+	
+	//metrics
+	private final AtomicLong jobsQueued = new AtomicLong();
+	private final AtomicLong jobsRejected = new AtomicLong();
+	private final AtomicLong jobsStarted = new AtomicLong();
+	private final AtomicLong totalWaitNanos = new AtomicLong();
+	private final AtomicLong maxWaitNanos = new AtomicLong();
+	private final AtomicLong jobsStolen = new AtomicLong();
+	
+	/**
+	 * A job and when it was queued
+	 */
+	static class Job {
+		final Runnable runnable;
+		final long queuedAt = System.nanoTime();
+		
+		Job(Runnable runnable) {
+			this.runnable = runnable;
+		}
+	}
 	
 	/**
 	 * Initialize the number of threads required in the threadpool. 
@@ -52,14 +101,80 @@ public class ThreadPool implements Debuggable{
 	 * @param size  How many threads in the thread pool.
 	 */
 	public ThreadPool(int size) {      
+		this(size, DEFAULT_CAPACITY, RejectionPolicy.BLOCK);
+	}
+	
+	/**
+	 * @param size How many threads in the thread pool.
+	 * @param capacity How many jobs can wait in the queue
+	 * @param rejectionPolicy What to do with a job when the queue is full
+	 */
+	public ThreadPool(int size, int capacity, RejectionPolicy rejectionPolicy) {
+		this(size, capacity, rejectionPolicy, false);
+	}
+	
+	/**
+	 * @param size How many threads in the thread pool.
+	 * @param capacity How many jobs can wait in the queues
+	 * @param rejectionPolicy What to do with a job when the queues are full
+	 * @param workStealing Whether each thread has a queue of its own instead of all sharing one. Jobs are
+	 * spread over the threads round-robin, or by key (see addToQueue(Runnable, int)), and a thread that has
+	 * nothing to do takes the jobs that wait for the others, so that no lock is shared by all of them.
+	 */
+	public ThreadPool(int size, int capacity, RejectionPolicy rejectionPolicy, boolean workStealing) {
+		this.workStealing = workStealing;
+		jobQueue = workStealing ? null : new LinkedBlockingQueue<Job>(capacity);
+		room = workStealing ? new Semaphore(capacity) : null;
+		this.rejectionPolicy = rejectionPolicy;
 		threads = new WorkerThread[size];
 		initializeThreads();
 	}
 	
-	public void cleanup() {
+	public RejectionPolicy getRejectionPolicy() {
+		return rejectionPolicy;
+	}
+	
+	public void setRejectionPolicy(RejectionPolicy rejectionPolicy) {
+		this.rejectionPolicy = rejectionPolicy;
+	}
+	
+	/**
+	 * Stop the threads: each one finishes its job, if it has one, and the jobs that wait in the queue are
+	 * dropped. Returns once the threads have ended.
+	 * @return the jobs that were dropped
+	 */
+	public List<Runnable> cleanup() {
+		this.finished = true;
 		for (WorkerThread t : threads) {
 			t.signalFinish();
 		}
+		boolean interrupted = false;
+		for (WorkerThread t : threads) {
+			while (t.isAlive() && t != Thread.currentThread()) {
+				try {
+					t.join();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		List<Runnable> dropped = new ArrayList<Runnable>();
+		Job job;
+		if (workStealing) {
+			for (WorkerThread t : threads) {
+				while ((job = t.deque.pollFirst()) != null) {
+					dropped.add(job.runnable);
+				}
+			}
+			return dropped;
+		}
+		while ((job = jobQueue.poll()) != null) {
+			dropped.add(job.runnable);
+		}
+		return dropped;
 	}
 	
 	/**
@@ -67,7 +182,7 @@ public class ThreadPool implements Debuggable{
 	 */
 	private void initializeThreads() {
 		for (int i = 0; i < threads.length; i++) {
-			threads[i] = new WorkerThread(this);
+			threads[i] = new WorkerThread(this, i);
 		}
 		
 		for (WorkerThread w : this.threads) {
@@ -78,19 +193,70 @@ public class ThreadPool implements Debuggable{
 
 	/**
 	 * Add a job to the queue of tasks that has to be executed. As soon as a thread is available, 
-	 * it will retrieve tasks from this queue and start processing.
+	 * it will retrieve tasks from this queue and start processing. If the queue is full, the job is
+	 * handled according to the rejection policy.
 	 * @param r job that has to be executed asynchronously
-	 * @throws InterruptedException 
+	 * @throws InterruptedException if interrupted while waiting for room in the queue
+	 * @throws KVException with the message "Unknown Error: Server is too busy" if the queue is full and the
+	 * policy is REJECT, or if the threadpool was cleaned up
 	 */
-	public void addToQueue(Runnable r) throws InterruptedException {
-		jobQueueLock.lock();	
-		jobQueue.add(r);
-//		Test.addJobQueue((r).hashCode()); //for testing
-		jobQueueLock.unlock();
+	public void addToQueue(Runnable r) throws InterruptedException, KVException {
+		this.addToQueue(r, workStealing ? nextWorker.getAndIncrement() : 0);
+	}
+	
+	/**
+	 * Add a job as addToQueue(Runnable) does. In work-stealing mode, the jobs of a key go to the same thread,
+	 * unless another thread has nothing to do and takes them.
+	 * @param r job that has to be executed asynchronously
+	 * @param key
+	 * @throws InterruptedException
+	 * @throws KVException
+	 */
+	public void addToQueue(Runnable r, int key) throws InterruptedException, KVException {
+		if (finished) {
+			jobsRejected.incrementAndGet();
+			throw new KVException(new KVMessage(KVMessage.RESPTYPE, "Unknown Error: Server is too busy"));
+		}
+		Job job = new Job(r);
+		if (workStealing) {
+			if (!room.tryAcquire()) {
+				switch (rejectionPolicy) {
+				case BLOCK:
+					room.acquire();
+					break;
+				case CALLER_RUNS:
+					DEBUG.debug("the queues are full, running the job on the calling thread");
+					r.run();
+					return;
+				default:
+					jobsRejected.incrementAndGet();
+					throw new KVException(new KVMessage(KVMessage.RESPTYPE, "Unknown Error: Server is too busy"));
+				}
+			}
+			WorkerThread owner = threads[(key & Integer.MAX_VALUE) % threads.length];
+			owner.deque.offerLast(job);
+			jobsQueued.incrementAndGet();
+			this.wake(owner);
+			return;
+		}
+		if (jobQueue.offer(job)) {
+			jobsQueued.incrementAndGet();
+			return;
+		}
 		
-		cvLock.lock();
-		this.jobQueueNotEmpty.signal();
-		cvLock.unlock();
+		switch (rejectionPolicy) {
+		case BLOCK:
+			jobQueue.put(job);
+			jobsQueued.incrementAndGet();
+			break;
+		case CALLER_RUNS:
+			DEBUG.debug("the queue is full, running the job on the calling thread");
+			r.run();
+			break;
+		default:
+			jobsRejected.incrementAndGet();
+			throw new KVException(new KVMessage(KVMessage.RESPTYPE, "Unknown Error: Server is too busy"));
+		}
 	}
 	
 	/** 
@@ -99,22 +265,170 @@ public class ThreadPool implements Debuggable{
 	 * @throws InterruptedException 
 	 */
 	public Runnable getJob() throws InterruptedException {
-		while (true) {
-			Runnable r = null;
-			jobQueueLock.lock();
-			if (!jobQueue.isEmpty())
-				r = jobQueue.removeFirst();
-			jobQueueLock.unlock();
-			
-			if (r==null) {
-				cvLock.lock();
-				jobQueueNotEmpty.await();
-				cvLock.unlock();
-			} else {
-				return r;
+		return this.getJob(null);
+	}
+	
+	/**
+	 * Wake the owner of a job that was just queued, or, if it is busy, a thread that has nothing to do
+	 * @param owner
+	 */
+	private void wake(WorkerThread owner) {
+		//the job is queued before parked is read, and a thread sets parked before it looks for jobs a last time
+		if (owner.parked) {
+			LockSupport.unpark(owner);
+		} else if (idleWorkers.get() > 0) {
+			for (WorkerThread t : threads) {
+				if (t.parked) {
+					LockSupport.unpark(t);
+					return;
+				}
 			}
 		}
 	}
+	
+	/**
+	 * @param worker
+	 * @return the first job of the worker, or else the last job of another thread, or null
+	 */
+	private Job findJob(WorkerThread worker) {
+		int start = 0;
+		if (worker != null) {
+			Job job = worker.deque.pollFirst();
+			if (job != null) {
+				return job;
+			}
+			start = worker.index + 1;
+		}
+		for (int i = 0; i < threads.length; i++) {
+			WorkerThread victim = threads[(start + i) % threads.length];
+			if (victim == worker) {
+				continue;
+			}
+			Job job = victim.deque.pollLast();
+			if (job != null) {
+				jobsStolen.incrementAndGet();
+				return job;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Block until a job is available and retrieve it
+	 * @param worker the thread of the pool that asks, or null
+	 * @return
+	 * @throws InterruptedException if the threadpool is cleaned up, or the thread interrupted
+	 */
+	Runnable getJob(WorkerThread worker) throws InterruptedException {
+		Job job;
+		if (!workStealing) {
+			job = jobQueue.take();
+		} else {
+			int idle = 0;
+			while ((job = this.findJob(worker)) == null) {
+				if (finished || Thread.interrupted()) {
+					throw new InterruptedException();
+				}
+				if (worker == null) {
+					//not a thread of the pool, which wake() does not know
+					LockSupport.parkNanos(1000000L);
+					continue;
+				}
+				//a job is likely on its way when the pool is busy, and cheaper to wait for than to be woken for
+				if (idle++ < IDLE_YIELDS) {
+					Thread.yield();
+					continue;
+				}
+				worker.parked = true;
+				idleWorkers.incrementAndGet();
+				try {
+					job = this.findJob(worker);
+					if (job != null) {
+						break;
+					}
+					LockSupport.park(this);
+				} finally {
+					worker.parked = false;
+					idleWorkers.decrementAndGet();
+				}
+			}
+			room.release();
+		}
+		long wait = System.nanoTime() - job.queuedAt;
+		jobsStarted.incrementAndGet();
+		totalWaitNanos.addAndGet(wait);
+		long max;
+		while (wait > (max = maxWaitNanos.get()) && !maxWaitNanos.compareAndSet(max, wait)) {
+			//another thread raised it
+		}
+		return job.runnable;
+	}
+	
+	/**
+	 * @return how many jobs wait in the queue
+	 */
+	public int getQueueDepth() {
+		if (workStealing) {
+			int depth = 0;
+			for (WorkerThread t : threads) {
+				depth += t.deque.size();
+			}
+			return depth;
+		}
+		return jobQueue.size();
+	}
+	
+	/**
+	 * @return how many jobs were queued since the threadpool was created
+	 */
+	public long getJobsQueued() {
+		return jobsQueued.get();
+	}
+	
+	/**
+	 * @return how many jobs were rejected
+	 */
+	public long getJobsRejected() {
+		return jobsRejected.get();
+	}
+	
+	/**
+	 * @return the mean time that the started jobs waited in the queue, in nanoseconds
+	 */
+	public long getAverageWaitNanos() {
+		long started = jobsStarted.get();
+		return started == 0 ? 0 : totalWaitNanos.get() / started;
+	}
+	
+	/**
+	 * @return the longest time that a job waited in the queue, in nanoseconds
+	 */
+	public long getMaxWaitNanos() {
+		return maxWaitNanos.get();
+	}
+	
+	/**
+	 * @return how many jobs were run by another thread than the one they were queued for, in work-stealing mode
+	 */
+	public long getJobsStolen() {
+		return jobsStolen.get();
+	}
+	
+	boolean isFinished() {
+		return finished;
+	}
+	
+	/**
+	 * @return whether all the threads have ended
+	 */
+	boolean isTerminated() {
+		for (WorkerThread t : threads) {
+			if (t.isAlive()) {
+				return false;
+			}
+		}
+		return true;
+	}
 }
 
 /**
@@ -128,10 +442,15 @@ class WorkerThread extends Thread implements Debuggable {
 	 */
 	private static int workerThreadCounter = 0;
 	private ThreadPool o;
-	private boolean run = true;
+	//in work-stealing mode, the jobs queued for this thread
+	final int index;
+	final ConcurrentLinkedDeque<ThreadPool.Job> deque = new ConcurrentLinkedDeque<ThreadPool.Job>();
+	//waits for ThreadPool.wake()
+	volatile boolean parked = false;
 	
-	WorkerThread(ThreadPool o) {
+	WorkerThread(ThreadPool o, int index) {
 		this.o = o;
+		this.index = index;
 		this.setName("WorkerThread"+WorkerThread.workerThreadCounter++);
 	}
 
@@ -139,19 +458,27 @@ class WorkerThread extends Thread implements Debuggable {
 	 * Scan for and execute tasks.
 	 */
 	public void run() {
-		while (run){
+		while (!o.isFinished()){
 			Runnable r = null;
 			try {
-				r = o.getJob(); // would wait until it gets a job
-				r.run();
+				r = o.getJob(this); // would wait until it gets a job
 			} catch (InterruptedException e) {
-				//ignore this exception
+				//signalFinish(), or a job that interrupted its thread
+				continue;
+			}
+			try {
+				r.run();
+			} catch (RuntimeException e) {
+				//the thread serves the next job
 				e.printStackTrace();
 			}
 		}
 	}
 	
+	/**
+	 * Interrupt the thread, which ends after its job, or at once if it waits for one
+	 */
 	public void signalFinish() {
-		this.run = false;
+		this.interrupt();
 	}
 }
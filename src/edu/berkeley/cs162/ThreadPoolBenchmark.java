@@ -0,0 +1,100 @@
+package edu.berkeley.cs162;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Microbenchmark of ThreadPool job throughput versus number of workers.
+ * Several producers queue short jobs as fast as the pool takes them, which is the worst case for the
+ * lock of the shared queue. Each worker count is measured twice: with the shared queue and with
+ * a queue per worker and work stealing.
+ *
+ * Run from the src directory:
+ *		"java edu/berkeley/cs162/ThreadPoolBenchmark [maxWorkers] [millisPerRun] [producers]"
+ *
+ */
+public class ThreadPoolBenchmark implements Debuggable {
+	private static final int CAPACITY = 4096;
+	//iterations of busy work per job, a few hundred nanoseconds
+	private static final int JOB_WORK = 100;
+
+	public static void main(String[] args) throws InterruptedException, KVException {
+		int maxWorkers = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+		long millis = args.length > 1 ? Long.parseLong(args[1]) : 1000;
+		int producers = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+
+		DEBUG.setEnabled(false);
+
+		//warm up both pools
+		run(4, producers, millis, false);
+		run(4, producers, millis, true);
+
+		System.out.println(String.format("%8s %16s %16s %8s %10s", "workers", "shared ops/s", "stealing ops/s", "speedup", "stolen"));
+		for (int workers = 1; workers <= maxWorkers; workers *= 2) {
+			double shared = run(workers, producers, millis, false)[0];
+			double[] stealing = run(workers, producers, millis, true);
+			System.out.println(String.format("%8d %16.0f %16.0f %8.2f %9.0f%%", workers, shared, stealing[0], stealing[0] / shared,
+					100 * stealing[1]));
+		}
+	}
+
+	/**
+	 * Queue jobs for the given time
+	 * @return jobs run per second, and the share of the jobs that were stolen
+	 */
+	private static double[] run(int workers, int producers, long millis, boolean workStealing)
+			throws InterruptedException, KVException {
+		final ThreadPool pool = new ThreadPool(workers, CAPACITY, ThreadPool.RejectionPolicy.BLOCK, workStealing);
+		final AtomicBoolean stop = new AtomicBoolean(false);
+		final AtomicLong total = new AtomicLong();
+		final CountDownLatch start = new CountDownLatch(1);
+		final Runnable job = new Runnable() {
+			public void run() {
+				long x = 0;
+				for (int i = 0; i < JOB_WORK; i++) {
+					x = x * 31 + i;
+				}
+				if (x == 42) {
+					System.out.print("");
+				}
+				total.incrementAndGet();
+			}
+		};
+		Thread[] threads = new Thread[producers];
+
+		for (int t = 0; t < producers; t++) {
+			threads[t] = new Thread() {
+				public void run() {
+					try {
+						start.await();
+						while (!stop.get()) {
+							pool.addToQueue(job);
+						}
+					} catch (InterruptedException e) {
+						return;
+					} catch (KVException e) {
+						return;
+					}
+				}
+			};
+			threads[t].start();
+		}
+
+		start.countDown();
+		Thread.sleep(millis / 10);
+		long before = total.get();
+		long begin = System.nanoTime();
+		Thread.sleep(millis);
+		long ran = total.get() - before;
+		long elapsed = System.nanoTime() - begin;
+		stop.set(true);
+		for (Thread p : threads) {
+			p.join();
+		}
+		pool.cleanup();
+
+		double stolen = pool.getJobsQueued() == 0 ? 0 : (double) pool.getJobsStolen() / pool.getJobsQueued();
+		return new double[] { ran * 1e9 / elapsed, stolen };
+	}
+}
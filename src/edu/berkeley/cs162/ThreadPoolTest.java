@@ -0,0 +1,183 @@
+package edu.berkeley.cs162;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class ThreadPoolTest {
+
+	/**
+	 * A job that holds its thread until released
+	 */
+	private static class Blocker implements Runnable {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		volatile boolean interrupted = false;
+
+		public void run() {
+			started.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+	}
+
+	@Test
+	public void runTest() throws InterruptedException, KVException {
+		ThreadPool pool = new ThreadPool(4);
+		final AtomicInteger ran = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(100);
+		for (int i = 0; i < 100; i++) {
+			pool.addToQueue(new Runnable() {
+				public void run() {
+					ran.incrementAndGet();
+					done.countDown();
+				}
+			});
+		}
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertEquals(ran.get(), 100);
+		assertEquals(pool.getJobsQueued(), 100);
+		assertEquals(pool.getJobsRejected(), 0);
+		assertTrue(pool.getMaxWaitNanos() >= pool.getAverageWaitNanos());
+		pool.cleanup();
+	}
+
+	@Test
+	public void rejectionTest() throws InterruptedException, KVException {
+		ThreadPool pool = new ThreadPool(1, 1, ThreadPool.RejectionPolicy.REJECT);
+		Blocker blocker = new Blocker();
+		pool.addToQueue(blocker);
+		assertTrue(blocker.started.await(5, TimeUnit.SECONDS));
+		pool.addToQueue(new Blocker());
+		assertEquals(pool.getQueueDepth(), 1);
+
+		//the queue is full
+		try {
+			pool.addToQueue(new Blocker());
+			fail();
+		} catch (KVException e) {
+			assertEquals(e.getMsg().getMessage(), "Unknown Error: Server is too busy");
+		}
+		assertEquals(pool.getJobsRejected(), 1);
+
+		pool.setRejectionPolicy(ThreadPool.RejectionPolicy.CALLER_RUNS);
+		final Thread caller = Thread.currentThread();
+		final boolean[] onCaller = new boolean[1];
+		pool.addToQueue(new Runnable() {
+			public void run() {
+				onCaller[0] = Thread.currentThread() == caller;
+			}
+		});
+		assertTrue(onCaller[0]);
+
+		pool.setRejectionPolicy(ThreadPool.RejectionPolicy.BLOCK);
+		final ThreadPool fpool = pool;
+		final CountDownLatch queued = new CountDownLatch(1);
+		new Thread() {
+			public void run() {
+				try {
+					fpool.addToQueue(new Blocker());
+					queued.countDown();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		}.start();
+		assertFalse(queued.await(200, TimeUnit.MILLISECONDS));
+		blocker.release.countDown();
+		assertTrue(queued.await(5, TimeUnit.SECONDS));
+
+		//the threads are interrupted and joined, and what waits is dropped
+		List<Runnable> dropped = pool.cleanup();
+		assertEquals(dropped.size() + pool.getQueueDepth(), 1);
+		try {
+			pool.addToQueue(new Blocker());
+			fail();
+		} catch (KVException e) {
+			assertEquals(e.getMsg().getMessage(), "Unknown Error: Server is too busy");
+		}
+	}
+
+	@Test
+	public void workStealingTest() throws InterruptedException, KVException {
+		ThreadPool pool = new ThreadPool(4, 1000, ThreadPool.RejectionPolicy.BLOCK, true);
+		final AtomicInteger ran = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(1000);
+		for (int i = 0; i < 1000; i++) {
+			pool.addToQueue(new Runnable() {
+				public void run() {
+					ran.incrementAndGet();
+					done.countDown();
+				}
+			});
+		}
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertEquals(ran.get(), 1000);
+		assertEquals(pool.getJobsQueued(), 1000);
+
+		//the jobs of a key wait for a busy thread, until the others take them
+		Blocker blocker = new Blocker();
+		pool.addToQueue(blocker, 7);
+		assertTrue(blocker.started.await(5, TimeUnit.SECONDS));
+		final CountDownLatch others = new CountDownLatch(10);
+		for (int i = 0; i < 10; i++) {
+			pool.addToQueue(new Runnable() {
+				public void run() {
+					others.countDown();
+				}
+			}, 7);
+		}
+		assertTrue(others.await(5, TimeUnit.SECONDS));
+		assertTrue(pool.getJobsStolen() >= 10);
+		blocker.release.countDown();
+
+		//the queues are bounded together
+		ThreadPool full = new ThreadPool(2, 2, ThreadPool.RejectionPolicy.REJECT, true);
+		Blocker[] blockers = { new Blocker(), new Blocker() };
+		for (Blocker b : blockers) {
+			full.addToQueue(b);
+		}
+		for (Blocker b : blockers) {
+			assertTrue(b.started.await(5, TimeUnit.SECONDS));
+		}
+		full.addToQueue(new Blocker(), 0);
+		full.addToQueue(new Blocker(), 1);
+		assertEquals(full.getQueueDepth(), 2);
+		try {
+			full.addToQueue(new Blocker());
+			fail();
+		} catch (KVException e) {
+			assertEquals(e.getMsg().getMessage(), "Unknown Error: Server is too busy");
+		}
+		assertEquals(full.cleanup().size(), 2);
+		for (Blocker b : blockers) {
+			assertTrue(b.interrupted);
+		}
+		pool.cleanup();
+	}
+
+	@Test
+	public void cleanupTest() throws InterruptedException, KVException {
+		ThreadPool pool = new ThreadPool(2);
+		Blocker[] blockers = { new Blocker(), new Blocker() };
+		for (Blocker blocker : blockers) {
+			pool.addToQueue(blocker);
+		}
+		for (Blocker blocker : blockers) {
+			assertTrue(blocker.started.await(5, TimeUnit.SECONDS));
+		}
+		pool.cleanup();
+		for (Blocker blocker : blockers) {
+			assertTrue(blocker.interrupted);
+		}
+		assertTrue(pool.isTerminated());
+	}
+}
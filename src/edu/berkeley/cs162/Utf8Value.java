@@ -0,0 +1,93 @@
+package edu.berkeley.cs162;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * A value as UTF-8 bytes, decoded to a String only when toString() is first called.
+ * LogStructuredStore hands out values backed by its memory-mapped segments, so that a value read
+ * on a cache miss is not copied or decoded before the response is built (see TPCMasterHandler).
+ */
+public final class Utf8Value {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	//read-only; null if the value was created from a String
+	private final ByteBuffer bytes;
+	//the decoded value. Decoding twice in a race is harmless
+	private String string;
+
+	public Utf8Value(String string) {
+		this.bytes = null;
+		this.string = string;
+	}
+
+	/**
+	 * @param bytes UTF-8 bytes between position and limit. Must not change afterwards.
+	 */
+	public Utf8Value(ByteBuffer bytes) {
+		this.bytes = bytes.slice().asReadOnlyBuffer();
+		this.string = null;
+	}
+
+	/**
+	 * @return the UTF-8 bytes, in a buffer of their own that the caller may consume
+	 */
+	public ByteBuffer utf8() {
+		if (this.bytes == null) {
+			return ByteBuffer.wrap(this.string.getBytes(UTF8));
+		}
+		return this.bytes.duplicate();
+	}
+
+	/**
+	 * @return number of UTF-8 bytes, without encoding or decoding
+	 */
+	public int utf8Length() {
+		if (this.bytes == null) {
+			return utf8Length(this.string);
+		}
+		return this.bytes.remaining();
+	}
+
+	/**
+	 * Number of bytes of the UTF-8 encoding of s, without encoding it
+	 * @param s
+	 * @return
+	 */
+	public static int utf8Length(String s) {
+		int length = 0;
+		int n = s.length();
+		for (int i = 0; i < n; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				length += 1;
+			} else if (c < 0x800) {
+				length += 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+				length += 4;
+				i++;
+			} else if (Character.isSurrogate(c)) {
+				//unpaired surrogates are encoded as '?'
+				length += 1;
+			} else {
+				length += 3;
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * @return the value, decoded on the first call
+	 */
+	@Override
+	public String toString() {
+		String s = this.string;
+		if (s == null) {
+			byte[] b = new byte[this.bytes.remaining()];
+			this.bytes.duplicate().get(b);
+			s = new String(b, UTF8);
+			this.string = s;
+		}
+		return s;
+	}
+}
@@ -0,0 +1,70 @@
+package edu.berkeley.cs162;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+
+/**
+ * Virtual threads, which Java 21 added, looked up by reflection so that the project builds and runs on older
+ * Java as well. A virtual thread that blocks on a socket or a lock does not hold a platform thread, so a task per
+ * connection or per request costs little. Without them, each task gets a platform thread of its own.
+ */
+public class VirtualThreads {
+	//Thread.ofVirtual() and Thread.Builder.unstarted(Runnable), or null before Java 21
+	private static final Method OF_VIRTUAL;
+	private static final Method UNSTARTED;
+
+	static {
+		Method ofVirtual = null;
+		Method unstarted = null;
+		try {
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			unstarted = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+		} catch (Exception e) {
+			ofVirtual = null;
+			unstarted = null;
+		}
+		OF_VIRTUAL = ofVirtual;
+		UNSTARTED = unstarted;
+	}
+
+	private VirtualThreads() {
+	}
+
+	/**
+	 * @return whether this Java has virtual threads
+	 */
+	public static boolean isAvailable() {
+		return OF_VIRTUAL != null;
+	}
+
+	/**
+	 * @param task
+	 * @param name of the thread
+	 * @return a virtual thread that runs task, not started yet, or a platform thread if there are no virtual threads
+	 */
+	public static Thread newThread(Runnable task, String name) {
+		if (OF_VIRTUAL != null) {
+			try {
+				Thread thread = (Thread) UNSTARTED.invoke(OF_VIRTUAL.invoke(null), task);
+				thread.setName(name);
+				return thread;
+			} catch (Exception e) {
+				//as if there were none
+			}
+		}
+		return new Thread(task, name);
+	}
+
+	/**
+	 * @param name of the threads
+	 * @return an Executor that runs each task on a new thread from newThread()
+	 */
+	public static Executor newThreadPerTaskExecutor(final String name) {
+		return new Executor() {
+			@Override
+			public void execute(Runnable task) {
+				VirtualThreads.newThread(task, name).start();
+			}
+		};
+	}
+}
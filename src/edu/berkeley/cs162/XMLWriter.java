@@ -0,0 +1,170 @@
+package edu.berkeley.cs162;
+
+import java.io.CharConversionException;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Streaming writer for the XML documents of this project. Nothing is buffered besides the underlying Writer,
+ * so a document of any size is written in constant memory.
+ * The output is what the identity Transformer makes of the same DOM document: no whitespace between
+ * elements, empty elements as <name/>, and the same characters escaped in text (&amp;, &lt;, &gt;, CR, the
+ * other C0 and the C1 controls, and supplementary characters as character references) and in attribute values
+ * (those, &quot;, tab and LF). Like the Transformer, it holds back a high surrogate at the end of a text and pairs
+ * it with the next unpaired low surrogate, in whatever text that comes.
+ */
+public class XMLWriter {
+	public static final String DECLARATION = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>";
+
+	private final Writer out;
+	//a high surrogate that ended a text, which the Transformer pairs with the next unpaired low surrogate
+	private char pendingHigh = 0;
+
+	public XMLWriter(Writer out) {
+		this.out = out;
+	}
+
+	public void declaration() throws IOException {
+		this.out.write(DECLARATION);
+	}
+
+	public void start(String name) throws IOException {
+		this.out.write('<');
+		this.out.write(name);
+		this.out.write('>');
+	}
+
+	/**
+	 * <name attribute="value">
+	 * @param name
+	 * @param attribute
+	 * @param value
+	 * @throws IOException
+	 */
+	public void start(String name, String attribute, String value) throws IOException {
+		this.out.write('<');
+		this.out.write(name);
+		this.attribute(attribute, value);
+		this.out.write('>');
+	}
+
+	public void end(String name) throws IOException {
+		this.out.write("</");
+		this.out.write(name);
+		this.out.write('>');
+	}
+
+	public void empty(String name) throws IOException {
+		this.out.write('<');
+		this.out.write(name);
+		this.out.write("/>");
+	}
+
+	/**
+	 * <name attribute="value"/>
+	 * @param name
+	 * @param attribute
+	 * @param value
+	 * @throws IOException
+	 */
+	public void empty(String name, String attribute, String value) throws IOException {
+		this.out.write('<');
+		this.out.write(name);
+		this.attribute(attribute, value);
+		this.out.write("/>");
+	}
+
+	private void attribute(String attribute, String value) throws IOException {
+		this.out.write(' ');
+		this.out.write(attribute);
+		this.out.write("=\"");
+		this.escape(value, true);
+		this.out.write('"');
+	}
+
+	/**
+	 * <name>text</name>, or <name/> if text is empty
+	 * @param name
+	 * @param text
+	 * @throws IOException
+	 */
+	public void element(String name, String text) throws IOException {
+		if (text.length() == 0) {
+			this.empty(name);
+			return;
+		}
+		this.start(name);
+		this.text(text);
+		this.end(name);
+	}
+
+	/**
+	 * Escaped character data
+	 * @param text
+	 * @throws CharConversionException if text has a high surrogate followed by anything but a low surrogate
+	 * @throws IOException if the underlying Writer fails
+	 */
+	public void text(String text) throws IOException {
+		this.escape(text, false);
+	}
+
+	private void escape(String text, boolean attribute) throws IOException {
+		int n = text.length();
+		//write the runs that need no escaping in one call
+		int run = 0;
+		for (int i = 0; i < n; i++) {
+			char c = text.charAt(i);
+			String escaped = null;
+			int skip = 0;
+			if (c == '&') {
+				escaped = "&amp;";
+			} else if (c == '<') {
+				escaped = "&lt;";
+			} else if (c == '>') {
+				escaped = "&gt;";
+			} else if (attribute && c == '"') {
+				escaped = "&quot;";
+			} else if (attribute && (c == '\t' || c == '\n')) {
+				escaped = "&#" + (int) c + ";";
+			} else if ((c < 0x20 && c != '\t' && c != '\n') || (c >= 0x7F && c <= 0x9F)) {
+				if (this.pendingHigh != 0) {
+					//the Transformer takes it for the low surrogate of the held back one
+					throw new CharConversionException("Invalid UTF-16 surrogate detected: " + Integer.toHexString(this.pendingHigh));
+				}
+				escaped = "&#" + (int) c + ";";
+			} else if (Character.isLowSurrogate(c) && this.pendingHigh != 0) {
+				escaped = "&#" + Character.toCodePoint(this.pendingHigh, c) + ";";
+				this.pendingHigh = 0;
+			} else if (Character.isLowSurrogate(c)) {
+				//unpaired: the Transformer writes it as a reference too
+				escaped = "&#" + (int) c + ";";
+			} else if (Character.isHighSurrogate(c)) {
+				if (this.pendingHigh != 0) {
+					throw new CharConversionException("Invalid UTF-16 surrogate detected: " + Integer.toHexString(this.pendingHigh));
+				} else if (i + 1 == n) {
+					//and holds it back at the end of the text
+					escaped = "";
+					if (!attribute) {
+						this.pendingHigh = c;
+					}
+				} else if (!Character.isLowSurrogate(text.charAt(i + 1))) {
+					throw new CharConversionException("Invalid UTF-16 surrogate detected: " + Integer.toHexString(c));
+				} else {
+					escaped = "&#" + Character.toCodePoint(c, text.charAt(i + 1)) + ";";
+					skip = 1;
+				}
+			}
+			if (escaped != null) {
+				this.out.write(text, run, i - run);
+				this.out.write(escaped);
+				i += skip;
+				run = i + 1;
+			}
+		}
+		this.out.write(text, run, n - run);
+	}
+
+	public void flush() throws IOException {
+		this.out.flush();
+	}
+}